@@ -0,0 +1,31 @@
+#!/bin/sh
+# Builds a class data sharing archive for the chat client. The JVM maps the archived classes into memory at startup
+# instead of finding, loading and verifying them on every launch, which is most of the client's startup before it connects.
+# Needs JDK 13 or newer and a running server: the client is started once, logs in, chats and quits, and every class it
+# loaded on the way is written to the archive.
+#
+# Usage: ./cds.sh [classes] [main class] [more classpath]
+#   classes         the compiled classes, default bin. They are packaged into chatclient.jar, archives can't be made from folders
+#   main class      default ca.sheridancollege.chatapp.client.ChatClient
+#   more classpath  jars the client needs, JavaFX for ca.sheridancollege.chatapp.client.gui.ChatClientGUI.
+#                   Close the GUI once it has logged in.
+# The archive is written to chatclient.jsa, or to $CDS_ARCHIVE, and the jar to $CDS_JAR. The archive only works with
+# the same JDK and the same classpath, so build it again after either changes.
+
+CLASSES=${1:-bin}
+MAIN=${2:-ca.sheridancollege.chatapp.client.ChatClient}
+ARCHIVE=${CDS_ARCHIVE:-chatclient.jsa}
+JAR=${CDS_JAR:-chatclient.jar}
+CP=$JAR${3:+:$3}
+NAME=cds-training-$$
+
+jar cf "$JAR" -C "$CLASSES" . || exit 1
+(echo "$NAME"; sleep 2; echo "warming up the archive"; sleep 1; echo "QUIT") \
+	| java -XX:ArchiveClassesAtExit="$ARCHIVE" -Dchatapp.startup.timing=true -cp "$CP" "$MAIN" --name="$NAME" || exit 1
+
+echo
+echo "Wrote $ARCHIVE. Launch the client with:"
+echo "java -XX:SharedArchiveFile=$ARCHIVE -cp $CP $MAIN"
+echo "Compare startup with and without it (the server must be running):"
+echo "java -cp $CP ca.sheridancollege.chatapp.client.StartupBenchmark 10"
+echo "java -cp $CP ca.sheridancollege.chatapp.client.StartupBenchmark 10 -XX:SharedArchiveFile=$ARCHIVE"
@@ -0,0 +1,181 @@
+package ca.sheridancollege.chatapp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+
+import ca.sheridancollege.chatapp.common.AttachmentProtocol;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+
+/**
+ * AttachmentClient uploads and downloads files over the attachment port, see AttachmentProtocol.
+ * A transfer that is cut off is tried again up to ATTEMPTS times, carrying on from where it stopped.
+ * Downloads are written to a .part file that is renamed once the whole file has arrived.
+ *
+ * @author danielnewton
+ *
+ */
+class AttachmentClient {
+
+	private static final int ATTEMPTS = 5;
+	private static final int TIMEOUT = 30000;
+
+	private final String host;
+	private final int port;
+
+	AttachmentClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Sends a file the server has made room for.
+	 */
+	void upload(String id, String token, Path source) throws IOException {
+		IOException failure = null;
+		for(int attempt = 0; attempt < ATTEMPTS; attempt++){
+			try(Socket socket = connect(); FileChannel file = FileChannel.open(source, StandardOpenOption.READ)){
+				Streams streams = openStreams(socket);
+				AttachmentProtocol.writeLine(streams.out, AttachmentProtocol.PUT + " " + id + " " + token);
+				long position = Long.parseLong(readReply(streams.in, AttachmentProtocol.OFFSET));
+				long size = file.size();
+				byte[] chunk = new byte[AttachmentProtocol.CHUNK_SIZE];
+				ByteBuffer buffer = ByteBuffer.wrap(chunk);
+				while(position < size){
+					buffer.clear();
+					int count = file.read(buffer, position);
+					if(count < 0) break;
+					streams.out.write(chunk, 0, count);
+					position += count;
+				}
+				streams.out.flush();
+				readReply(streams.in, AttachmentProtocol.DONE);
+				return;
+			} catch (AttachmentException e){
+				throw e; //the server turned the transfer down, trying again won't help
+			} catch (IOException e){
+				failure = e;
+				pause(attempt);
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Downloads a file into the folder, resuming a .part file left by an earlier attempt.
+	 * @return The downloaded file
+	 */
+	Path download(String id, String fileName, Path folder) throws IOException {
+		Files.createDirectories(folder);
+		Path part = folder.resolve(AttachmentProtocol.cleanFileName(fileName) + "." + id + ".part");
+		IOException failure = null;
+		for(int attempt = 0; attempt < ATTEMPTS; attempt++){
+			try(Socket socket = connect(); FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+				Streams streams = openStreams(socket);
+				long position = file.size();
+				AttachmentProtocol.writeLine(streams.out, AttachmentProtocol.GET + " " + id + " " + position);
+				long size = Long.parseLong(readReply(streams.in, AttachmentProtocol.SIZE));
+				byte[] chunk = new byte[AttachmentProtocol.CHUNK_SIZE];
+				ByteBuffer buffer = ByteBuffer.wrap(chunk);
+				while(position < size){
+					int count = streams.in.read(chunk, 0, (int) Math.min(chunk.length, size - position));
+					if(count < 0) throw new IOException("The download was cut off");
+					buffer.clear();
+					buffer.limit(count);
+					while(buffer.hasRemaining()){
+						position += file.write(buffer, position);
+					}
+				}
+			} catch (AttachmentException e){
+				throw e;
+			} catch (IOException e){
+				failure = e;
+				pause(attempt);
+				continue;
+			}
+			return Files.move(part, freeName(folder, AttachmentProtocol.cleanFileName(fileName)), StandardCopyOption.ATOMIC_MOVE); //the file is closed by now
+		}
+		throw failure;
+	}
+
+	/**
+	 * @return A file in the folder that doesn't exist yet, so a download never replaces an existing file
+	 */
+	private static Path freeName(Path folder, String fileName){
+		Path target = folder.resolve(fileName);
+		for(int i = 1; Files.exists(target); i++){
+			target = folder.resolve("(" + i + ") " + fileName);
+		}
+		return target;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		SocketTuning.apply(socket);
+		socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+
+	private Streams openStreams(Socket socket) throws IOException {
+		if(!TlsTransport.isEnabled()) return new Streams(socket.getInputStream(), socket.getOutputStream());
+		try{
+			TlsSocketStreams tls = new TlsSocketStreams(socket, TlsTransport.createClientEngine(host, port));
+			tls.handshake();
+			return new Streams(tls.getInputStream(), tls.getOutputStream());
+		} catch (NoSuchAlgorithmException e){
+			throw new AttachmentException("TLS is not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the server's reply line.
+	 * @return The rest of the line after the expected reply
+	 */
+	private static String readReply(InputStream in, String expected) throws IOException {
+		String line = AttachmentProtocol.readLine(in);
+		if(line.startsWith(AttachmentProtocol.ERROR)) throw new AttachmentException(line.substring(AttachmentProtocol.ERROR.length()).trim());
+		if(!line.startsWith(expected)) throw new AttachmentException("Unexpected reply: " + line);
+		return line.substring(expected.length()).trim();
+	}
+
+	private static void pause(int attempt) throws IOException {
+		try{
+			Thread.sleep(500L << attempt);
+		} catch (InterruptedException e){
+			throw new IOException("Transfer interrupted");
+		}
+	}
+
+	/**
+	 * The server turned a transfer down.
+	 */
+	static class AttachmentException extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		AttachmentException(String message){
+			super(message);
+		}
+	}
+
+	private static class Streams{
+		private final InputStream in;
+		private final OutputStream out;
+
+		Streams(InputStream in, OutputStream out){
+			this.in = in;
+			this.out = out;
+		}
+	}
+}
@@ -2,16 +2,40 @@ package ca.sheridancollege.chatapp.client;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ca.sheridancollege.chatapp.common.ActivityOutputStream;
+import ca.sheridancollege.chatapp.common.BoundedQueue;
+import ca.sheridancollege.chatapp.common.BoundedQueue.OverflowPolicy;
 import ca.sheridancollege.chatapp.common.Message;
 import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
 
 /**
  * ChatClient is the entry point into the console client. It maintains the socket connections made to the server.
@@ -21,10 +45,10 @@ import ca.sheridancollege.chatapp.common.Message.MessageContext;
 public class ChatClient {
 
 	protected enum ClientState{
-		SET_NAME, LOGGEDIN, CLOSE, CHANGE_NAME
+		SET_NAME, LOGGEDIN, CLOSE, CHANGE_NAME, RECONNECTING
 	}
 	
-	private ClientState state = ClientState.SET_NAME;
+	private volatile ClientState state = ClientState.SET_NAME;
 	
 	final int PORT = 60000;
 	final String HOST = "localhost";
@@ -33,18 +57,107 @@ public class ChatClient {
 	private BufferedReader in = null;
 	private PrintWriter out = null;
 	private Socket s = null;
-	private long lastConnectionCheck = System.currentTimeMillis();
+	private volatile long lastConnectionCheck = System.currentTimeMillis(); //last time anything was received from the server
 	/*
-	 * I used a BufferedReader here instead of a scanner because when I used a scanner it would
-	 * prevent the client from closing until it had received input at scan.nextLine().
-	 * This was noticeable when the server terminated and the lastConnectionCheck exceeded SERVER_TIMEOUT.
+	 * The client sends a CONNECTION_CHECK whenever it has been quiet for a heartbeat interval, and any message from the server counts as proof it is alive.
+	 * The interval asked for with chatapp.heartbeat.interval is sent in CONNECTION_OPEN, the server answers with the interval it picked
+	 * and the connection times out after SERVER_TIMEOUT_INTERVALS quiet intervals.
+	 */
+	final int HEARTBEAT_INTERVAL = Integer.getInteger("chatapp.heartbeat.interval", 5000);
+	final int SERVER_TIMEOUT_INTERVALS = 4;
+	private volatile int heartbeatInterval = HEARTBEAT_INTERVAL;
+	private volatile int serverTimeout = SERVER_TIMEOUT;
+	private volatile boolean heartbeatNegotiated = false; //servers that don't negotiate need every CONNECTION_CHECK answered
+	private ActivityOutputStream activity = null;
+	private volatile int connections = 0; //threads of an old connection stop once this changes
+	/*
+	 * When the server is stopped it sends SERVER_RESTART with how long to wait before reconnecting.
+	 * The client then reconnects on its own, backing off between attempts for up to RECONNECT_TIMEOUT,
+	 * and uses its session token to get its name back without having to pick it again.
+	 * A server too busy to take the connection sends SERVER_BUSY with the delay instead, and the client comes back the same way.
+	 */
+	final int RECONNECT_TIMEOUT = 60000;
+	final int MAX_RECONNECT_BACKOFF = 5000;
+	private volatile long restartDelay = -1; //-1 unless the server said it is restarting
+	private volatile boolean serverBusy = false; //the server turned the connection away with SERVER_BUSY, reconnect after restartDelay
+	private volatile String sessionToken = null;
+	private volatile String requestedName = null;
+	private Thread console = null;
+	/*
+	 * Chat messages are sent with an id: ID_PREFIX, which is random for each run of the client, and a sequence number.
+	 * They are kept until the server ACKs them, and sent again after RETRY_TIMEOUT, doubling up to MAX_RETRY_TIMEOUT,
+	 * and as soon as the client has its name back after a reconnect. The server drops copies it has already seen,
+	 * so retrying early never shows anyone a message twice. Messages not ACKed within GIVE_UP_TIMEOUT are reported as not delivered.
+	 */
+	final int RETRY_TIMEOUT = Integer.getInteger("chatapp.retry.timeout", 1000);
+	final int MAX_RETRY_TIMEOUT = 8000;
+	final int GIVE_UP_TIMEOUT = 60000;
+	private final String ID_PREFIX = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + "-";
+	private final AtomicLong nextMessageId = new AtomicLong();
+	private final ConcurrentSkipListMap<Long, Unacked> unacked = new ConcurrentSkipListMap<Long, Unacked>(); //sequence number -> message, oldest first
+	private Thread retries = null;
+	/*
+	 * Typing indicators and presence are ephemeral, only the latest one matters and the server coalesces them.
+	 * While the user types, TYPING is sent at most once every TYPING_DEBOUNCE. Someone else's indicator is forgotten
+	 * TYPING_EXPIRY after their last one, or as soon as their message arrives.
+	 */
+	final int TYPING_DEBOUNCE = 3000;
+	final int TYPING_EXPIRY = 6000;
+	private final ConcurrentHashMap<String, Long> typingSent = new ConcurrentHashMap<String, Long>(); //addressee, "" for everyone -> when TYPING was last sent
+	private final ConcurrentHashMap<String, Long> typing = new ConcurrentHashMap<String, Long>(); //name -> when their indicator expires
+	private final ConcurrentHashMap<String, String> presence = new ConcurrentHashMap<String, String>(); //name -> status, online clients are left out
+	/*
+	 * Chat from the server carries a sequence number, with no gaps in each conversation, "" for the broadcast chat or the name of the other client.
+	 * The client keeps how far it has received and read each conversation without a gap, and sends the ones that changed in a single
+	 * RECEIPT every RECEIPT_INTERVAL instead of acknowledging every message. Messages of a conversation from different senders can arrive
+	 * out of order, so the ones past a gap are held back from the watermark until the gap fills. A gap still open after RECEIPT_GAP means
+	 * the server dropped messages the client could not keep up with. It is reported as missed before the watermark moves past it,
+	 * so the senders are not told those messages arrived. The console client has read whatever it has printed,
+	 * the GUI only what arrived while its window had focus, see setReading().
+	 * The server answers with how many recipients have received and read each of the client's own messages, kept for the newest RECEIPTS_KEPT.
+	 */
+	final int RECEIPT_INTERVAL = Integer.getInteger("chatapp.receipts.interval", 1000);
+	final int RECEIPT_GAP = Integer.getInteger("chatapp.receipts.gap", 3000);
+	final int RECEIPTS_KEPT = 50;
+	private static final String MISSED = "missed ";
+	private static final int MAX_AHEAD = 1024; //messages held past the gaps of one conversation, the oldest gap is given up on past it
+	private final HashMap<String, Watermark> watermarks = new HashMap<String, Watermark>(); //conversation -> how far it has been received and read
+	private volatile boolean reading = true;
+	private final LinkedHashMap<String, Receipt> receipts = new LinkedHashMap<String, Receipt>(){ //message id -> counts, oldest first
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Receipt> eldest) {
+			return size() > RECEIPTS_KEPT;
+		}
+	};
+	private Thread receiptSender = null;
+	/*
+	 * Files are sent over a separate connection to the server's attachment port, see AttachmentClient.
+	 * Files waiting for the server to say where to upload them are kept by reference, files others have shared by id.
+	 */
+	private final String DOWNLOAD_DIR = System.getProperty("chatapp.downloads.dir", "downloads");
+	private final AtomicInteger nextUploadRef = new AtomicInteger();
+	private final ConcurrentHashMap<String, Path> pendingUploads = new ConcurrentHashMap<String, Path>();
+	private final ConcurrentHashMap<String, SharedFile> sharedFiles = new ConcurrentHashMap<String, SharedFile>();
+	/*
+	 * The console is read on a daemon thread that blocks until a line is typed, so typed messages are sent immediately
+	 * and a waiting read can't keep the client from closing. System.in is never closed, closing it would wait for that read.
 	 */
 	private BufferedReader scan = new BufferedReader(new InputStreamReader(System.in));
 	
 	//for gui support
 	private boolean enableGUISupport = false;
 	private String[] getNames = null;
-	private ArrayList<String> printedMessages;
+	private String[] completions = null;
+	/*
+	 * Messages waiting to be shown by the GUI. The queue is bounded so a stalled GUI can't run the client out of memory.
+	 * The size and what gets dropped when it is full can be changed with the chatapp.inbound.capacity and chatapp.inbound.overflow properties.
+	 */
+	private final int INBOUND_CAPACITY = Integer.getInteger("chatapp.inbound.capacity", 4096);
+	private final OverflowPolicy INBOUND_OVERFLOW = OverflowPolicy.valueOf(System.getProperty("chatapp.inbound.overflow", OverflowPolicy.DROP_OLDEST.name()));
+	private final BoundedQueue<String> printedMessages = new BoundedQueue<String>(INBOUND_CAPACITY, INBOUND_OVERFLOW); //ready before connecting, the GUI drains it from its first frame
+	private volatile boolean connecting = false; //clientStart() is running, see ChatClientAPI.startConnectionInBackground()
 	
 	/**
 	 * Starts the client communications with the server. 
@@ -52,147 +165,356 @@ public class ChatClient {
 	 */
 	protected void clientStart(boolean enableGUISupport) {
 		state = ClientState.SET_NAME;
-		printedMessages = new ArrayList<String>();
 		this.enableGUISupport = enableGUISupport;
+		connecting = true;
 		try {
-			s = new Socket(HOST, PORT);
-			s.setSoTimeout(SERVER_TIMEOUT);
-			out = new PrintWriter(s.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			openConnection();
 			
-			//receive
-			new Thread(new Runnable(){
-				@Override
-				public void run() {
-					try{
-						while(true){
-								try{
-									if(state == ClientState.CLOSE ) return;
-									
-									String incomingStr = in.readLine();
-									Message incoming = Message.createFromString(incomingStr);
-									
-									if(incoming == null) {
-										updateConnectionTimeout();
-										if(state != ClientState.CLOSE){
-											Thread.sleep(1000);
-										}
-										continue;
-									}
-									Message outgoing = null;
-									
-									switch(incoming.getContext()){
-									case CONNECTION_CHECK:
-										lastConnectionCheck = System.currentTimeMillis();
-										outgoing = new Message(MessageContext.CONNECTION_CHECK, out);
-										outgoing.send();
-										break;
-									case CLIENT_NAME:
-										state = ClientState.LOGGEDIN;
-										break;
-									case SEND_BROADCAST:
-										printMessage(incoming);
-										break;
-									case GET_CLIENTS_ALL:
-									case GET_CLIENTS_OTHER:
-										if(enableGUISupport){
-											updateGetNames(incoming);
-										}else {
-											printMessage(incoming, true);
-										}
-										break;
-									case SEND_ADDRESSED:
-										printMessage(incoming, true);
-										break;
-									default:
-										//ignore
-									}
-								} catch(SocketTimeoutException e){
-									updateConnectionTimeout();
-								}
-							}
-					}catch(Exception e){
-						e.printStackTrace();
-					} finally {
-						close(); //close socket and streams
+			//console input handler, started once because it carries on through reconnects
+			if(!enableGUISupport && console == null){
+				console = new Thread(new Runnable(){
+					@Override
+					public void run() {
+						readConsole();
 					}
-				}
-			}).start();
-			
-			//console input handler
-			new Thread(new Runnable(){
-				@Override
-				public void run() {
-					try{
-						new Message(MessageContext.CONNECTION_OPEN, out).send();
-						while(true){
-							if(state == ClientState.CLOSE ) return;
-							if(enableGUISupport) return; //this code is unnecessary if we're using the gui
-						
-							if(!scan.ready()){ //don't read from console unless something has been typed
-								Thread.sleep(100);
-								continue;
-							}
+				});
+				console.setDaemon(true);
+				console.start();
+			}
+			if(retries == null){
+				retries = new Thread(new Runnable(){
+					@Override
+					public void run() {
+						retryUnacked();
+					}
+				}, "Retries");
+				retries.setDaemon(true);
+				retries.start();
+			}
+			if(receiptSender == null){
+				receiptSender = new Thread(new Runnable(){
+					@Override
+					public void run() {
+						sendReceipts();
+					}
+				}, "Receipts");
+				receiptSender.setDaemon(true);
+				receiptSender.start();
+			}
+		} catch (ConnectException ce){
+			printMessage("Failed to connect to server!");
+			state = ClientState.CLOSE;
+		}catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			connecting = false;
+		}
+	}
+	
+	/**
+	 * @return true while clientStart() is connecting to the server
+	 */
+	protected boolean isConnecting(){
+		return connecting;
+	}
+	
+	/**
+	 * Marks the client as connecting ahead of a clientStart() that is about to run on another thread.
+	 */
+	protected void setConnecting(){
+		connecting = true;
+	}
+	
+	/**
+	 * Connects to the server and starts the threads that receive messages and send heartbeats.
+	 * A client that has a session token asks for its session back first.
+	 */
+	private void openConnection() throws IOException, NoSuchAlgorithmException {
+		heartbeatInterval = HEARTBEAT_INTERVAL;
+		serverTimeout = SERVER_TIMEOUT;
+		heartbeatNegotiated = false;
+		lastConnectionCheck = System.currentTimeMillis();
+		final int connection = ++connections;
+		synchronized(watermarks){ //a restarted server numbers messages from the start again
+			watermarks.clear();
+		}
+		s = new Socket();
+		SocketTuning.apply(s);
+		s.connect(new InetSocketAddress(HOST, PORT));
+		s.setSoTimeout(SERVER_TIMEOUT);
+		InputStream socketIn = s.getInputStream();
+		OutputStream socketOut = s.getOutputStream();
+		if(TlsTransport.isEnabled()){ //encrypt the connection
+			TlsSocketStreams tls = new TlsSocketStreams(s, TlsTransport.createClientEngine(HOST, PORT));
+			tls.handshake();
+			socketIn = tls.getInputStream();
+			socketOut = tls.getOutputStream();
+		}
+		activity = new ActivityOutputStream(socketOut);
+		out = new PrintWriter(activity);
+		in = new BufferedReader(new InputStreamReader(socketIn));
+		
+		//receive
+		final BufferedReader reader = in;
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					while(true){
+						try{
+							if(state == ClientState.CLOSE || connection != connections) return;
 							
-							String input = scan.readLine();
-							input = input.trim();
-							if(input.isEmpty()) continue; //ignore empty strings
-
-							Message outgoing = null;
-
-							if(input.equals("QUIT")){
-								state = ClientState.CLOSE;
-								outgoing = new Message(MessageContext.CONNECTION_CLOSE, out);
-								outgoing.send();
-								continue;
-							}
-							if(input.equals("CHANGENAME")){ //request to change name
-								System.out.println("Enter new name:");
-								state = ClientState.CHANGE_NAME;
-								continue;
-							}
-							if(input.equals("GETNAMES")){ //get all names of users
-								sendGetNamesMessage(true);
-								continue;
+							String incomingStr = reader.readLine();
+							if(incomingStr == null){ //the server closed the connection
+								if(restartDelay >= 0 && serverBusy){
+									printMessage("The server is busy, trying again in " + (restartDelay + 999) / 1000 + " seconds...");
+								}else if(restartDelay >= 0){
+									printMessage("The server is restarting, reconnecting...");
+								}else if(state != ClientState.CLOSE){
+									printMessage("The server closed the connection. Goodbye.");
+								}
+								return;
 							}
-
-							switch(state){
-							case CHANGE_NAME:
+							lastConnectionCheck = System.currentTimeMillis(); //any message proves the server is alive
+							Message incoming = Message.createFromString(incomingStr);
+							if(incoming == null) continue; //ignore messages that can't be read
+							Message outgoing = null;
+							
+							switch(incoming.getContext()){
+							case CONNECTION_CHECK:
+								//answer unless our own traffic has already shown the server we are alive
+								if(!heartbeatNegotiated || System.currentTimeMillis() - activity.getLastWrite() >= heartbeatInterval){
+									outgoing = new Message(MessageContext.CONNECTION_CHECK, out);
+									outgoing.send();
+								}
+								break;
+							case CONNECTION_OPEN: //the server has picked the heartbeat interval
+								updateHeartbeatInterval(incoming.getContent());
+								break;
+							case CLIENT_NAME:
 								state = ClientState.LOGGEDIN;
-							case SET_NAME:
-								sendSetNameMessage(input);
+								StartupTiming.loggedIn();
+								for(Unacked message : unacked.values()){ //sent while the connection was down
+									message.nextRetry = 0;
+								}
+								break;
+							case ACK: //the server has the message, stop sending it
+								acknowledge(incoming.getContent());
 								break;
-							case LOGGEDIN:
-								
-								String[] chunks = input.split(":");
-								if(chunks[0].equals("TO") && chunks.length > 2){ //Private Message
-									StringBuilder content = new StringBuilder();
-									for(int i = 2; i < chunks.length; i++){
-										content.append(chunks[i]);
-									}
-									outgoing = sendPrivateMessage(content.toString(), chunks[1]);
-								}else if(chunks[0].equals("ALL")){ //broadcast
-									input = input.substring("ALL:".length(), input.length()).trim(); //remote "ALL:" from message
-									sendBroadcast(input);
-								}else{
-									sendBroadcast(input); //default behavior is broadcast
+							case SESSION_RESUME:
+								if(incoming.getContent() != null && !incoming.getContent().isEmpty()){ //the token for getting this name back
+									sessionToken = incoming.getContent();
+								}else{ //the session could not be resumed, pick the name again
+									sessionToken = null;
+									state = ClientState.SET_NAME;
+									if(requestedName != null) sendSetNameMessage(requestedName);
 								}
-								
+								break;
+							case SERVER_RESTART:
+								restartDelay = parseRestartDelay(incoming.getContent());
+								break;
+							case SERVER_BUSY: //turned away, the server closes the connection next
+								serverBusy = true;
+								restartDelay = parseRestartDelay(incoming.getContent());
+								break;
+							case SEND_BROADCAST:
+								stoppedTyping(incoming.getSender());
+								printMessage(incoming);
+								received("", incoming);
+								break;
+							case RECEIPT: //counts for the client's own messages
+								updateReceipts(incoming.getContent());
+								break;
+							case TYPING:
+								if(Message.SYSTEM_NAME.equals(incoming.getSender()) || incoming.getSender() == null) break;
+								if("1".equals(incoming.getContent())){
+									typing.put(incoming.getSender(), System.currentTimeMillis() + TYPING_EXPIRY);
+								} else {
+									typing.remove(incoming.getSender());
+								}
+								break;
+							case PRESENCE:
+								updatePresence(incoming.getSender(), incoming.getContent());
+								break;
+							case ATTACHMENT_OFFER: //the server has made room for a file
+								uploadFile(incoming.getContent());
+								break;
+							case ATTACHMENT_READY: //someone has shared a file
+								addSharedFile(incoming);
+								break;
+							case GET_CLIENTS_ALL:
+							case GET_CLIENTS_OTHER:
+								if(enableGUISupport){
+									updateGetNames(incoming);
+								}else {
+									printMessage(incoming, true);
+								}
+								break;
+							case COMPLETE_NAMES:
+								if(enableGUISupport){
+									updateCompletions(incoming);
+								}else {
+									printMessage(incoming, true);
+								}
+								break;
+							case SEND_ADDRESSED:
+								stoppedTyping(incoming.getSender());
+								printMessage(incoming, true);
+								received(incoming.getSender(), incoming);
+								break;
+							case SEARCH:
+							case GET_HISTORY:
+							case MENTION:
+							case STATS:
+								printMessage(incoming, true);
 								break;
 							default:
-									//ignore input
+								//ignore
 							}
+						} catch(SocketTimeoutException e){
+							updateConnectionTimeout();
 						}
-					}catch(Exception e){
-						e.printStackTrace();
+					}
+				}catch(Exception e){
+					if(connection == connections && restartDelay < 0) e.printStackTrace();
+				} finally {
+					if(connection != connections){
+						//a newer connection has taken over
+					}else if(restartDelay >= 0 && state != ClientState.CLOSE){
+						reconnect();
+					}else{
+						close(); //close socket and streams
 					}
 				}
-			}).start();
-			
-		} catch (ConnectException ce){
-			printMessage("Failed to connect to server!");
-			state = ClientState.CLOSE;
-		}catch (Exception e) {
+			}
+		}).start();
+		
+		//send a CONNECTION_CHECK when the client has been quiet for a heartbeat interval
+		final PrintWriter writer = out;
+		final ActivityOutputStream writerActivity = activity;
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					while(true){
+						if(state == ClientState.CLOSE || connection != connections) return;
+						long now = System.currentTimeMillis();
+						long nextCheck = writerActivity.getLastWrite() + heartbeatInterval;
+						if(now >= nextCheck){
+							new Message(MessageContext.CONNECTION_CHECK, writer).send();
+							nextCheck = now + heartbeatInterval;
+						}
+						Thread.sleep(Math.max(1, nextCheck - now));
+					}
+				}catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		
+		if(sessionToken != null){ //ask for the name this client had before the server restarted
+			Message resume = new Message(MessageContext.SESSION_RESUME, out);
+			resume.setContent(sessionToken);
+			resume.send();
+		}
+		Message open = new Message(MessageContext.CONNECTION_OPEN, out);
+		open.setContent(Integer.toString(HEARTBEAT_INTERVAL));
+		open.send();
+	}
+	
+	/**
+	 * Reads commands and messages typed into the console until the client is closed.
+	 */
+	private void readConsole(){
+		try{
+			while(true){
+				if(state == ClientState.CLOSE ) return;
+				if(enableGUISupport) return; //this code is unnecessary if we're using the gui
+				
+				String input = scan.readLine();
+				if(input == null) return; //the console was closed
+				if(state == ClientState.CLOSE) return;
+				input = input.trim();
+				if(input.isEmpty()) continue; //ignore empty strings
+
+				Message outgoing = null;
+
+				if(input.equals("QUIT")){
+					state = ClientState.CLOSE;
+					outgoing = new Message(MessageContext.CONNECTION_CLOSE, out);
+					outgoing.send();
+					continue;
+				}
+				if(input.equals("CHANGENAME")){ //request to change name
+					System.out.println("Enter new name:");
+					state = ClientState.CHANGE_NAME;
+					continue;
+				}
+				if(input.equals("GETNAMES")){ //get all names of users
+					sendGetNamesMessage(true);
+					continue;
+				}
+				if(input.startsWith("COMPLETE:")){ //list online names starting with a prefix
+					sendCompleteNamesMessage(input.substring("COMPLETE:".length()).trim());
+					continue;
+				}
+				if(input.startsWith("STATUS:")){ //online, away or busy
+					sendPresence(input.substring("STATUS:".length()));
+					continue;
+				}
+				if(input.equals("RECEIPTS")){ //who has received and read the messages sent
+					printReceipts();
+					continue;
+				}
+				if(input.equals("STATS")){ //usage statistics
+					new Message(MessageContext.STATS, out).send();
+					continue;
+				}
+				if(input.startsWith("SEARCH:")){ //search the chat history
+					sendSearchMessage(input.substring("SEARCH:".length()));
+					continue;
+				}
+				if(input.startsWith("HISTORY:")){ //page back through the direct messages with one client
+					String[] history = input.substring("HISTORY:".length()).split(":", 2);
+					sendHistoryMessage(history[0].trim(), history.length > 1 ? history[1].trim() : "");
+					continue;
+				}
+				if(input.startsWith("SENDFILE:")){ //send a file to everyone
+					sendFile(input.substring("SENDFILE:".length()).trim(), null);
+					continue;
+				}
+				if(input.startsWith("SENDFILETO:") && input.indexOf(':', "SENDFILETO:".length()) > 0){ //send a file to one client
+					String target = input.substring("SENDFILETO:".length());
+					sendFile(target.substring(target.indexOf(':') + 1).trim(), target.substring(0, target.indexOf(':')).trim());
+					continue;
+				}
+				if(input.startsWith("GETFILE:")){ //download a shared file
+					downloadFile(input.substring("GETFILE:".length()).trim());
+					continue;
+				}
+
+				switch(state){
+				case CHANGE_NAME:
+					state = ClientState.LOGGEDIN;
+				case SET_NAME:
+					sendSetNameMessage(input);
+					break;
+				case RECONNECTING:
+					if(sessionToken == null){ //the name can't be resumed, so nothing can be sent as it
+						printMessage("Not connected to the server, the message was not sent.");
+						break;
+					}
+					printMessage("Not connected to the server, the message will be sent when the client reconnects.");
+					sendChatMessage(input);
+					break;
+				case LOGGEDIN:
+					sendChatMessage(input);
+					break;
+				default:
+						//ignore input
+				}
+			}
+		}catch(Exception e){
 			e.printStackTrace();
 		}
 	}
@@ -201,6 +523,7 @@ public class ChatClient {
 	 * Main method. Program will terminate on ConnectException.
 	 */
 	public static void main(String[] args){
+		StartupTiming.start();
 		new ChatClient().clientStart(false);
 	}
 	
@@ -209,10 +532,15 @@ public class ChatClient {
 	 * Ensure state is CLOSE.
 	 */
 	private void close(){
+		state = ClientState.CLOSE;
+		closeStreams();
+	}
+	
+	/**
+	 * Closes the socket and streams of the current connection.
+	 */
+	private void closeStreams(){
 		try{
-			state = ClientState.CLOSE;
-			if(scan != null) scan.close();
-			scan = null;
 			if(out != null) out.close();
 			out = null;
 			if(in != null) in.close();
@@ -224,6 +552,59 @@ public class ChatClient {
 		}
 	}
 	
+	/**
+	 * Reads the delay from a SERVER_RESTART or SERVER_BUSY message.
+	 * @return Milliseconds to wait before reconnecting
+	 */
+	private long parseRestartDelay(String content){
+		try{
+			return Math.max(0, Long.parseLong(content.trim()));
+		} catch (NumberFormatException | NullPointerException e){
+			return 0;
+		}
+	}
+	
+	/**
+	 * Reconnects after the server has restarted. Waits the delay the server asked for, so clients don't all come back at once,
+	 * then keeps trying with a growing random backoff until RECONNECT_TIMEOUT runs out.
+	 */
+	private void reconnect(){
+		state = ClientState.RECONNECTING;
+		closeStreams();
+		final long delay = restartDelay;
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				long giveUp = System.currentTimeMillis() + delay + RECONNECT_TIMEOUT;
+				long backoff = 250;
+				try{
+					Thread.sleep(delay);
+					while(state == ClientState.RECONNECTING){
+						try{
+							restartDelay = -1;
+							serverBusy = false;
+							openConnection();
+							printMessage("Reconnected to the server.");
+							if(sessionToken == null) state = ClientState.SET_NAME;
+							return;
+						} catch (IOException e){
+							closeStreams();
+							if(System.currentTimeMillis() + backoff > giveUp) break;
+							Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+							backoff = Math.min(backoff * 2, MAX_RECONNECT_BACKOFF);
+						}
+					}
+				} catch (InterruptedException | NoSuchAlgorithmException e){
+					//give up
+				}
+				if(state == ClientState.RECONNECTING){
+					printMessage("Could not reconnect to the server. Goodbye.");
+					state = ClientState.CLOSE;
+				}
+			}
+		}, "Reconnect").start();
+	}
+	
 	/**
 	 * prints string as a broadcast message
 	 */
@@ -245,7 +626,7 @@ public class ChatClient {
 	 * print message to console as broadcast, or private message if priv=true.
 	 * If enableGUISupport=true then the messages are queued to be returned by getMessages()
 	 */
-	private synchronized void printMessage(Message message, boolean priv){
+	private void printMessage(Message message, boolean priv){
 		String author = message.getSender();
 		String content = message.getContent();
 		if(priv){
@@ -253,9 +634,10 @@ public class ChatClient {
 		}
 		String output = author + ": " + content;
 		if(enableGUISupport){
-			printedMessages.add(output);
+			printedMessages.offer(output);
 		}else{
 			System.out.println(author + ": " + content);
+			StartupTiming.firstFrame();
 		}
 	}
 	
@@ -288,10 +670,60 @@ public class ChatClient {
 		} else {
 			getNames = new String[0];
 		}
+		presence.keySet().retainAll(Arrays.asList(getNames)); //forget the status of clients that have left
 
 		return updated;
 	}
 	
+	/**
+	 * Stores the names from a COMPLETE_NAMES reply until takeCompletions() is called.
+	 */
+	private synchronized void updateCompletions(Message incoming){
+		String[] lines = incoming.getContent().split("\n");
+		if(lines.length > 1 && lines[1].equals(Message.COMPLETE_NAMES_HEADER)){
+			completions = Arrays.copyOfRange(lines, 2, lines.length);
+		} else {
+			completions = new String[0];
+		}
+	}
+	
+	/**
+	 * Returns the names from the latest COMPLETE_NAMES reply, or null if no reply has arrived since the last call.
+	 */
+	protected synchronized String[] takeCompletions(){
+		String[] names = completions;
+		completions = null;
+		return names;
+	}
+	
+	/**
+	 * Asks the server for the online names that start with prefix.
+	 */
+	protected void sendCompleteNamesMessage(String prefix){
+		Message outgoing = new Message(MessageContext.COMPLETE_NAMES, out);
+		outgoing.setContent(prefix);
+		outgoing.send();
+	}
+	
+	/**
+	 * Sends a line the user typed, "TO:[name]:[message]" privately and anything else, with or without "ALL:", to everyone.
+	 */
+	private void sendChatMessage(String input){
+		String[] chunks = input.split(":");
+		if(chunks[0].equals("TO") && chunks.length > 2){ //Private Message
+			StringBuilder content = new StringBuilder();
+			for(int i = 2; i < chunks.length; i++){
+				content.append(chunks[i]);
+			}
+			sendPrivateMessage(content.toString(), chunks[1]);
+		}else if(chunks[0].equals("ALL")){ //broadcast
+			input = input.substring("ALL:".length(), input.length()).trim(); //remote "ALL:" from message
+			sendBroadcast(input);
+		}else{
+			sendBroadcast(input); //default behavior is broadcast
+		}
+	}
+	
 	/**
 	 * Sends an addressed (private) message which requires a message and the destination client name.
 	 */
@@ -299,7 +731,8 @@ public class ChatClient {
 		Message outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
 		outgoing.setAddressee(addressee.trim());
 		outgoing.setContent(message.toString().trim());
-		outgoing.send();
+		sendUntilAcked(outgoing);
+		typingSent.remove(addressee.trim());
 		outgoing.setSender("TO: " + addressee); //add TO: tag and print to screen so that the sender can see both sides of the conversation
 		printMessage(outgoing, true);
 		return outgoing;
@@ -311,19 +744,403 @@ public class ChatClient {
 	protected Message sendBroadcast(String message){
 		Message outgoing = new Message(MessageContext.SEND_BROADCAST, out);
 		outgoing.setContent(message.trim());
-		outgoing.send();
+		sendUntilAcked(outgoing);
+		typingSent.remove(""); //the message ends the typing indicator
 		return outgoing;
 	}
+
+	/**
+	 * Tells the addressee, or everyone when it is null, that the user is typing or has stopped.
+	 * Calls while the user keeps typing are debounced, and stopping is only sent to those who were told about the typing.
+	 */
+	protected void sendTyping(String addressee, boolean isTyping){
+		if(state != ClientState.LOGGEDIN) return;
+		String key = addressee == null ? "" : addressee;
+		long now = System.currentTimeMillis();
+		if(isTyping){
+			Long last = typingSent.get(key);
+			if(last != null && now - last < TYPING_DEBOUNCE) return;
+			typingSent.put(key, now);
+		} else if(typingSent.remove(key) == null){
+			return;
+		}
+		Message outgoing = new Message(MessageContext.TYPING, out);
+		outgoing.setAddressee(addressee);
+		outgoing.setContent(isTyping ? "1" : "0");
+		outgoing.send();
+	}
+
+	/**
+	 * Sets the status everyone else sees: online, away or busy.
+	 */
+	protected void sendPresence(String status){
+		Message outgoing = new Message(MessageContext.PRESENCE, out);
+		outgoing.setContent(status.trim().toLowerCase());
+		outgoing.send();
+	}
+
+	/**
+	 * Records a status change and tells the user about it.
+	 */
+	private void updatePresence(String name, String status){
+		if(name == null || status == null) return;
+		String previous = "online".equals(status) ? presence.remove(name) : presence.put(name, status);
+		if(status.equals(previous == null ? "online" : previous)) return; //no change
+		printMessage(name + " is now " + status);
+	}
+
+	private void stoppedTyping(String name){
+		if(name != null) typing.remove(name);
+	}
+
+	/**
+	 * @return The names of the clients typing at the moment, in alphabetical order
+	 */
+	protected String[] getTyping(){
+		long now = System.currentTimeMillis();
+		ArrayList<String> names = new ArrayList<String>();
+		for(Map.Entry<String, Long> entry : typing.entrySet()){
+			if(entry.getValue() < now){
+				typing.remove(entry.getKey(), entry.getValue());
+			} else {
+				names.add(entry.getKey());
+			}
+		}
+		Collections.sort(names);
+		return names.toArray(new String[0]);
+	}
+
+	/**
+	 * @return The status of an online client: online, away or busy
+	 */
+	protected String getPresence(String name){
+		String status = presence.get(name);
+		return status == null ? "online" : status;
+	}
+
+	/**
+	 * Gives the message an id and sends it. It is sent again until the server ACKs it.
+	 */
+	private void sendUntilAcked(Message outgoing){
+		long sequence = nextMessageId.incrementAndGet();
+		Message copy = new Message(outgoing.getContext(), null); //the caller may change outgoing to print it
+		copy.setAddressee(outgoing.getAddressee());
+		copy.setContent(outgoing.getContent());
+		copy.setId(ID_PREFIX + Long.toString(sequence, 36));
+		outgoing.setId(copy.getId());
+		synchronized(receipts){
+			receipts.put(copy.getId(), new Receipt(copy.getContent(), copy.getAddressee()));
+		}
+		unacked.put(sequence, new Unacked(copy));
+		copy.setOut(out);
+		copy.send();
+	}
+
+	/**
+	 * Forgets a message the server has ACKed.
+	 */
+	private void acknowledge(String id){
+		if(id == null || !id.startsWith(ID_PREFIX)) return;
+		try{
+			unacked.remove(Long.parseLong(id.substring(ID_PREFIX.length()), 36));
+		} catch (NumberFormatException e){
+			//not one of ours
+		}
+	}
+
+	/**
+	 * Sends messages that have not been ACKed again, oldest first, until the client is closed.
+	 */
+	private void retryUnacked(){
+		try{
+			while(state != ClientState.CLOSE){
+				Thread.sleep(Math.max(10, RETRY_TIMEOUT / 4));
+				if(state != ClientState.LOGGEDIN && state != ClientState.CHANGE_NAME) continue; //not connected, or no name yet
+				long now = System.currentTimeMillis();
+				for(Map.Entry<Long, Unacked> entry : unacked.entrySet()){
+					Unacked message = entry.getValue();
+					if(now - message.firstSent > GIVE_UP_TIMEOUT){
+						unacked.remove(entry.getKey());
+						printMessage("Could not deliver: " + message.message.getContent());
+					}else if(now >= message.nextRetry){
+						message.retryAfter = Math.min(message.retryAfter * 2, MAX_RETRY_TIMEOUT);
+						message.nextRetry = now + message.retryAfter;
+						message.message.setOut(out);
+						message.message.send();
+					}
+				}
+			}
+		} catch (InterruptedException e){
+			//closing
+		}
+	}
 	
+	/**
+	 * Raises the received watermark of a conversation, and the read one while the user is reading.
+	 * @param conversation "" for the broadcast chat, or the name of the other client
+	 */
+	private void received(String conversation, Message incoming){
+		long sequence = incoming.getSequence();
+		if(sequence <= 0 || incoming.getSender() == null || Message.SYSTEM_NAME.equals(incoming.getSender())) return;
+		synchronized(watermarks){
+			Watermark mark = watermarks.get(conversation);
+			if(mark == null){
+				mark = new Watermark();
+				watermarks.put(conversation, mark);
+			}
+			if(sequence <= mark.received) return; //already counted
+			if(sequence > mark.received + 1){ //another sender's message may still be on its way
+				if(mark.ahead == null) mark.ahead = new TreeMap<Long, Long>();
+				if(!mark.ahead.containsKey(sequence)) mark.ahead.put(sequence, System.currentTimeMillis());
+				if(mark.ahead.size() > MAX_AHEAD) skipGap(mark, conversation);
+			} else {
+				mark.received = sequence;
+				advance(mark);
+			}
+			if(reading) mark.read = mark.received;
+		}
+	}
+
+	/**
+	 * Moves the received watermark along the messages held past it for as long as they follow on without a gap.
+	 * Called holding the watermarks.
+	 */
+	private void advance(Watermark mark){
+		if(mark.ahead == null) return;
+		while(!mark.ahead.isEmpty() && mark.ahead.firstKey() == mark.received + 1){
+			mark.received = mark.ahead.pollFirstEntry().getKey();
+		}
+		if(mark.ahead.isEmpty()) mark.ahead = null;
+	}
+
+	/**
+	 * Gives up on the first gap of a conversation: reports it as missed and moves the watermark past it.
+	 * Called holding the watermarks.
+	 */
+	private void skipGap(Watermark mark, String conversation){
+		long next = mark.ahead.firstKey();
+		if(mark.missed == null) mark.missed = new StringBuilder();
+		mark.missed.append(MISSED).append(mark.received + 1).append(' ').append(next - 1).append(' ').append(conversation).append('\n');
+		mark.received = next - 1;
+		advance(mark);
+	}
+
+	/**
+	 * Tells the client whether the user can see new messages. While reading, everything received counts as read.
+	 */
+	protected void setReading(boolean reading){
+		this.reading = reading;
+		if(!reading) return;
+		synchronized(watermarks){
+			for(Watermark mark : watermarks.values()){
+				mark.read = mark.received;
+			}
+		}
+	}
+
+	/**
+	 * Sends the watermarks that changed in one RECEIPT every RECEIPT_INTERVAL, until the client is closed.
+	 * A line is "[received] [read] [conversation]", a watermark covers every message up to it, so nothing is sent per message.
+	 * The gaps it passed are sent before it, each as "missed [first] [last] [conversation]". A gap is only given up on once the message
+	 * after it has waited RECEIPT_GAP. The first message of a conversation waits too, the ones before it may not have been sent to the client at all.
+	 */
+	private void sendReceipts(){
+		try{
+			while(state != ClientState.CLOSE){
+				Thread.sleep(RECEIPT_INTERVAL);
+				if(state != ClientState.LOGGEDIN) continue;
+				StringBuilder content = new StringBuilder();
+				long expired = System.currentTimeMillis() - RECEIPT_GAP;
+				synchronized(watermarks){
+					for(Map.Entry<String, Watermark> entry : watermarks.entrySet()){
+						Watermark mark = entry.getValue();
+						while(mark.ahead != null && mark.ahead.firstEntry().getValue() <= expired){
+							skipGap(mark, entry.getKey());
+						}
+						if(reading) mark.read = mark.received;
+						if(mark.received == mark.sentReceived && mark.read == mark.sentRead) continue; //nothing new
+						if(content.length() > 0) content.append('\n');
+						if(mark.missed != null) content.append(mark.missed); //ends with a line break
+						content.append(mark.received).append(' ').append(mark.read).append(' ').append(entry.getKey());
+						mark.missed = null;
+						mark.sentReceived = mark.received;
+						mark.sentRead = mark.read;
+					}
+				}
+				if(content.length() == 0) continue;
+				Message receipt = new Message(MessageContext.RECEIPT, out);
+				receipt.setContent(content.toString());
+				receipt.send(); //counts as activity, so it also stands in for a heartbeat
+			}
+		} catch (InterruptedException e){
+			//closing
+		}
+	}
+
+	/**
+	 * Stores the counts from a RECEIPT, each line is "[message id] [recipients] [received] [read]".
+	 */
+	private void updateReceipts(String content){
+		if(content == null) return;
+		for(String line : content.split("\n")){
+			String[] parts = line.split(" ");
+			if(parts.length < 4) continue;
+			try{
+				synchronized(receipts){
+					Receipt receipt = receipts.get(parts[0]);
+					if(receipt == null) continue; //too old to be kept
+					receipt.recipients = Integer.parseInt(parts[1]);
+					receipt.received = Integer.parseInt(parts[2]);
+					receipt.read = Integer.parseInt(parts[3]);
+				}
+			} catch (NumberFormatException e){
+				//skip the line
+			}
+		}
+	}
+
+	/**
+	 * Prints who has received and read the newest messages the user has sent.
+	 */
+	private void printReceipts(){
+		StringBuilder report = new StringBuilder("Receipts:");
+		synchronized(receipts){
+			if(receipts.isEmpty()) report.append(" no messages sent yet");
+			for(Receipt receipt : receipts.values()){
+				report.append('\n').append(receipt.addressee == null ? "ALL" : "TO " + receipt.addressee).append(": ")
+					.append(receipt.content).append(" - ").append(receipt.describe());
+			}
+		}
+		printMessage(report.toString());
+	}
+
+	/**
+	 * @return How far the newest message the user has sent has got, or null if nothing has been sent
+	 */
+	protected String getLatestReceipt(){
+		synchronized(receipts){
+			Receipt latest = null;
+			for(Receipt receipt : receipts.values()){
+				latest = receipt;
+			}
+			return latest == null ? null : latest.describe();
+		}
+	}
+
 	/**
 	 * Sends a request to set the clients name.
 	 */
 	protected void sendSetNameMessage(String name){
+		requestedName = name;
 		Message outgoing = new Message(MessageContext.CLIENT_NAME, out);
 		outgoing.setContent(name);
 		outgoing.send();
 	}
 	
+	/**
+	 * Offers a file to the server. It is uploaded once the server answers with an ATTACHMENT_OFFER.
+	 * @param addressee The client to send it to, or null for everyone
+	 */
+	protected void sendFile(String fileName, String addressee){
+		Path file = Paths.get(fileName);
+		if(!Files.isRegularFile(file)){
+			printMessage("No such file: " + fileName);
+			return;
+		}
+		try{
+			String ref = Integer.toString(nextUploadRef.incrementAndGet());
+			pendingUploads.put(ref, file);
+			Message outgoing = new Message(MessageContext.ATTACHMENT_OFFER, out);
+			outgoing.setAddressee(addressee);
+			outgoing.setContent(ref + "\n" + Files.size(file) + "\n" + file.getFileName());
+			outgoing.send();
+		} catch (IOException e){
+			printMessage("Could not read " + fileName + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Uploads an offered file on its own thread, so chat carries on while it is sent.
+	 * @param content The reference the file was offered with, the attachment id, the upload token and the attachment port
+	 */
+	private void uploadFile(String content){
+		final String[] ticket = content == null ? new String[0] : content.split("\n");
+		if(ticket.length < 4) return;
+		final Path file = pendingUploads.remove(ticket[0]);
+		if(file == null) return;
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					new AttachmentClient(HOST, Integer.parseInt(ticket[3])).upload(ticket[1], ticket[2], file);
+					printMessage("Sent " + file.getFileName());
+				} catch (IOException | NumberFormatException e){
+					printMessage("Could not send " + file.getFileName() + ": " + e.getMessage());
+				}
+			}
+		}, "Upload").start();
+	}
+	
+	/**
+	 * Remembers a shared file so it can be downloaded with GETFILE.
+	 * @param incoming An ATTACHMENT_READY with the attachment id, size, attachment port and file name
+	 */
+	private void addSharedFile(Message incoming){
+		String[] details = incoming.getContent() == null ? new String[0] : incoming.getContent().split("\n", 4);
+		if(details.length < 4) return;
+		try{
+			sharedFiles.put(details[0], new SharedFile(details[3], Integer.parseInt(details[2])));
+		} catch (NumberFormatException e){
+			return;
+		}
+		Message notice = new Message(null, null);
+		notice.setSender(incoming.getSender());
+		notice.setContent("shared " + details[3] + " (" + details[1] + " bytes), type GETFILE:" + details[0] + " to download it");
+		printMessage(notice, incoming.getAddressee() != null);
+	}
+	
+	/**
+	 * Downloads a shared file into DOWNLOAD_DIR on its own thread.
+	 */
+	protected void downloadFile(final String id){
+		final SharedFile shared = sharedFiles.get(id);
+		if(shared == null){
+			printMessage("No file has been shared with the id " + id);
+			return;
+		}
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					Path file = new AttachmentClient(HOST, shared.port).download(id, shared.fileName, Paths.get(DOWNLOAD_DIR));
+					printMessage("Downloaded " + file);
+				} catch (IOException e){
+					printMessage("Could not download " + shared.fileName + ": " + e.getMessage());
+				}
+			}
+		}, "Download").start();
+	}
+	
+	/**
+	 * Sends a request to search the broadcast history. The results arrive as a private message from the server.
+	 */
+	protected void sendSearchMessage(String query){
+		Message outgoing = new Message(MessageContext.SEARCH, out);
+		outgoing.setContent(query.trim());
+		outgoing.send();
+	}
+	
+	/**
+	 * Asks for a page of the direct messages with another client. The page arrives as a private message from the server.
+	 * @param cursor Where the page ends, as given with the page after it. Empty for the newest page
+	 */
+	protected void sendHistoryMessage(String name, String cursor){
+		Message outgoing = new Message(MessageContext.GET_HISTORY, out);
+		outgoing.setAddressee(name);
+		outgoing.setContent(cursor);
+		outgoing.send();
+	}
+	
 	/**
 	 * getNames returns a copy of the getNames array which contains all the client names.
 	 * This method will do nothing if enableGUISupport is not enabled.
@@ -351,14 +1168,35 @@ public class ChatClient {
 	}
 	
 	/**
-	 * Returns a copy of all the messages that are to be printed in the window
+	 * Returns all the messages that are waiting to be printed in the window and removes them from the queue.
 	 * This method will do nothing if enableGUISupport is not enabled.
 	 */
-	protected synchronized String[] getMessages(){
-		String[] messages = null;
-		messages = printedMessages.toArray(new String[0]);
-		printedMessages.clear();
-		return messages;
+	protected String[] getMessages(){
+		ArrayList<String> messages = new ArrayList<String>();
+		drainMessages(messages);
+		return messages.toArray(new String[0]);
+	}
+	
+	/**
+	 * Moves all the messages that are waiting to be printed in the window into target.
+	 * @return The number of messages moved
+	 */
+	protected int drainMessages(Collection<? super String> target){
+		return printedMessages.drainTo(target);
+	}
+	
+	/**
+	 * Uses the heartbeat interval the server picked, the timeout follows it.
+	 */
+	private void updateHeartbeatInterval(String content){
+		try{
+			heartbeatInterval = Integer.parseInt(content.trim());
+			serverTimeout = heartbeatInterval * SERVER_TIMEOUT_INTERVALS;
+			s.setSoTimeout(heartbeatInterval); //wake up each interval so a lost connection is reported as it happens
+			heartbeatNegotiated = true;
+		} catch (NumberFormatException | NullPointerException | IOException e){
+			//keep the defaults
+		}
 	}
 	
 	/**
@@ -366,12 +1204,12 @@ public class ChatClient {
 	 */
 	private void updateConnectionTimeout(){
 		long timeOut = System.currentTimeMillis() - lastConnectionCheck;
-		if(timeOut > SERVER_TIMEOUT){
+		if(timeOut > serverTimeout){
 			state = ClientState.CLOSE;
 			String msg = "Connection to the server has timed out and will be disconnected. Goodbye.";
 			printMessage(msg);
-		} else if (timeOut > SERVER_TIMEOUT * 0.5){
-			String msg = "Lost connection to Server! Connection will time out in: " + Math.round(((SERVER_TIMEOUT - timeOut) * 0.001)) + " seconds...";
+		} else if (timeOut > serverTimeout * 0.5){
+			String msg = "Lost connection to Server! Connection will time out in: " + Math.round(((serverTimeout - timeOut) * 0.001)) + " seconds...";
 			printMessage(msg);
 		}
 	}
@@ -382,4 +1220,65 @@ public class ChatClient {
 	protected void setState(ClientState state){
 		this.state = state;
 	}
+	
+	/**
+	 * A file someone has shared, kept until it is downloaded with GETFILE.
+	 */
+	private static class SharedFile{
+		private final String fileName;
+		private final int port;
+		
+		SharedFile(String fileName, int port){
+			this.fileName = fileName;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * How far the client has received and read one conversation, what it last told the server, and the gaps it has yet to report.
+	 */
+	private static class Watermark{
+		private long received = 0;
+		private long read = 0;
+		private long sentReceived = 0;
+		private long sentRead = 0;
+		private StringBuilder missed = null; //lines for the next RECEIPT
+		private TreeMap<Long, Long> ahead = null; //sequence -> when it arrived, for the messages past a gap
+	}
+
+	/**
+	 * How many recipients have received and read a message the user has sent, as last reported by the server.
+	 */
+	private static class Receipt{
+		private final String content;
+		private final String addressee; //null for everyone
+		private int recipients = 0; //0 until the server has reported
+		private int received = 0;
+		private int read = 0;
+		
+		Receipt(String content, String addressee){
+			this.content = content;
+			this.addressee = addressee;
+		}
+		
+		String describe(){
+			if(recipients == 0) return "Sent";
+			if(addressee != null) return read > 0 ? "Read" : received > 0 ? "Delivered" : "Sent";
+			return "Received by " + received + " of " + recipients + ", read by " + read;
+		}
+	}
+
+	/**
+	 * A chat message the server has not ACKed yet.
+	 */
+	private class Unacked{
+		private final Message message;
+		private final long firstSent = System.currentTimeMillis();
+		private volatile long retryAfter = RETRY_TIMEOUT;
+		private volatile long nextRetry = firstSent + RETRY_TIMEOUT;
+		
+		Unacked(Message message){
+			this.message = message;
+		}
+	}
 }
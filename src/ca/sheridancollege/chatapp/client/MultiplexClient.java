@@ -0,0 +1,224 @@
+package ca.sheridancollege.chatapp.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.sheridancollege.chatapp.common.ActivityOutputStream;
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.StreamWriter;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+
+/**
+ * MultiplexClient connects many users to the server over one socket, for gateways and bots.
+ * Each user is a stream: openStream() returns the writer the user's messages are sent with, exactly like ChatClient sends its own,
+ * and messages for the user are handed to the StreamListener with the stream's id.
+ * The heartbeats are sent once for the whole connection. The server must be started with -Dchatapp.multiplex.port.
+ *
+ * The main method is a small demonstration: it connects the given number of users, named bot-1 to bot-N,
+ * and broadcasts each line typed into the console from bot-1.
+ *
+ * @author danielnewton
+ */
+public class MultiplexClient {
+
+	/**
+	 * Receives the messages sent to the users of a MultiplexClient.
+	 */
+	public interface StreamListener{
+		/**
+		 * Called on the receiving thread, so it should return quickly.
+		 * A message sent to several users is passed to each of them as the same Message object.
+		 */
+		void messageReceived(int streamId, Message message);
+	}
+
+	final int HEARTBEAT_INTERVAL = Integer.getInteger("chatapp.heartbeat.interval", 5000);
+	final int SERVER_TIMEOUT = 20000;
+
+	private final String host;
+	private final int port;
+	private final StreamListener listener;
+	private final AtomicInteger nextStreamId = new AtomicInteger();
+	private Socket s = null;
+	private PrintWriter out = null;
+	private ActivityOutputStream activity = null;
+	private volatile int heartbeatInterval = HEARTBEAT_INTERVAL;
+	private volatile boolean closed = false;
+
+	public MultiplexClient(String host, int port, StreamListener listener) {
+		this.host = host;
+		this.port = port;
+		this.listener = listener;
+	}
+
+	/**
+	 * Connects to the server and starts the threads that receive messages and send heartbeats.
+	 */
+	public void connect() throws IOException, NoSuchAlgorithmException {
+		s = new Socket();
+		SocketTuning.apply(s);
+		s.connect(new InetSocketAddress(host, port));
+		s.setSoTimeout(SERVER_TIMEOUT);
+		InputStream socketIn = s.getInputStream();
+		OutputStream socketOut = s.getOutputStream();
+		if(TlsTransport.isEnabled()){ //encrypt the connection
+			TlsSocketStreams tls = new TlsSocketStreams(s, TlsTransport.createClientEngine(host, port));
+			tls.handshake();
+			socketIn = tls.getInputStream();
+			socketOut = tls.getOutputStream();
+		}
+		activity = new ActivityOutputStream(socketOut);
+		out = new PrintWriter(activity);
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socketIn));
+
+		//receive
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					while(!closed){
+						String incomingStr = in.readLine();
+						if(incomingStr == null) return; //the server closed the connection
+						int[] streamIds = StreamWriter.streamIdsOf(incomingStr);
+						if(streamIds != null && streamIds.length == 0) continue; //broken tag
+						Message incoming = Message.createFromString(streamIds == null ? incomingStr : StreamWriter.payloadOf(incomingStr));
+						if(incoming == null) continue;
+						if(streamIds != null){ //one message can be for several users
+							for(int streamId : streamIds){
+								listener.messageReceived(streamId, incoming);
+							}
+						} else if(incoming.getContext() == MessageContext.CONNECTION_OPEN){ //the server has picked the heartbeat interval
+							updateHeartbeatInterval(incoming.getContent());
+						}
+					}
+				} catch (SocketTimeoutException e){
+					//the server has been quiet for too long
+				} catch (IOException e){
+					if(!closed) e.printStackTrace();
+				} finally {
+					close();
+				}
+			}
+		}, "MultiplexReceive").start();
+
+		//send a CONNECTION_CHECK when the connection has been quiet for a heartbeat interval
+		new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					while(!closed){
+						long now = System.currentTimeMillis();
+						long nextCheck = activity.getLastWrite() + heartbeatInterval;
+						if(now >= nextCheck){
+							new Message(MessageContext.CONNECTION_CHECK, out).send();
+							nextCheck = now + heartbeatInterval;
+						}
+						Thread.sleep(Math.max(1, nextCheck - now));
+					}
+				} catch (InterruptedException e){
+					//closing
+				}
+			}
+		}, "MultiplexHeartbeat").start();
+
+		Message open = new Message(MessageContext.CONNECTION_OPEN, out);
+		open.setContent(Integer.toString(HEARTBEAT_INTERVAL));
+		open.send();
+	}
+
+	/**
+	 * Opens a stream for another user. Send a CLIENT_NAME with it first, like ChatClient does.
+	 * @return The writer for the user's messages, pass it to new Message(context, out)
+	 */
+	public StreamWriter openStream(){
+		return new StreamWriter(out, nextStreamId.incrementAndGet());
+	}
+
+	/**
+	 * Disconnects one user, the others stay connected.
+	 */
+	public void closeStream(StreamWriter stream){
+		new Message(MessageContext.CONNECTION_CLOSE, stream).send();
+		stream.close();
+	}
+
+	/**
+	 * Disconnects every user and closes the socket.
+	 */
+	public void close(){
+		if(closed) return;
+		closed = true;
+		try{
+			if(out != null){
+				new Message(MessageContext.CONNECTION_CLOSE, out).send();
+				out.close();
+			}
+			if(s != null) s.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	public boolean isClosed(){
+		return closed;
+	}
+
+	private void updateHeartbeatInterval(String content){
+		try{
+			heartbeatInterval = Integer.parseInt(content.trim());
+			s.setSoTimeout(heartbeatInterval * 4);
+		} catch (NumberFormatException | NullPointerException | IOException e){
+			//keep the defaults
+		}
+	}
+
+	/**
+	 * Connects args[0] users (default 100) and broadcasts console input from the first of them.
+	 */
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final AtomicInteger named = new AtomicInteger();
+		MultiplexClient client = new MultiplexClient("localhost", Integer.getInteger("chatapp.multiplex.port", 60002), new StreamListener(){
+			@Override
+			public void messageReceived(int streamId, Message message){
+				if(message.getContext() == MessageContext.CLIENT_NAME) named.incrementAndGet();
+				if(streamId == 1 && message.getContext() == MessageContext.SEND_BROADCAST){ //show the chat once, as bot-1 sees it
+					System.out.println(message.getSender() + ": " + message.getContent());
+				}
+			}
+		});
+		client.connect();
+		StreamWriter[] streams = new StreamWriter[users];
+		for(int i = 0; i < users; i++){
+			streams[i] = client.openStream();
+			Message name = new Message(MessageContext.CLIENT_NAME, streams[i]);
+			name.setContent("bot-" + (i + 1));
+			name.send();
+		}
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while(!client.isClosed() && (line = console.readLine()) != null){
+			if(line.trim().equals("QUIT")) break;
+			if(line.trim().equals("COUNT")){
+				System.out.println(named.get() + " of " + users + " users are connected over one socket");
+				continue;
+			}
+			Message broadcast = new Message(MessageContext.SEND_BROADCAST, streams[0]);
+			broadcast.setContent(line.trim());
+			broadcast.send();
+		}
+		client.close();
+	}
+}
@@ -0,0 +1,183 @@
+package ca.sheridancollege.chatapp.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+
+/**
+ * StartupBenchmark measures how long the client takes to start. Every run launches the client in a new JVM with
+ * -Dchatapp.startup.timing=true, picks a new name and reads the STARTUP line printed by StartupTiming. One warm up run is not counted.
+ * It prints the median, 90th percentile and best of the time to the first frame and to logged in, both from main(),
+ * and of the whole launch: from starting the process to logged in, JVM startup included.
+ *
+ * Usage: StartupBenchmark [runs] [JVM options...], default 10 runs of the console client.
+ * -Dchatapp.benchmark.main=[class] benchmarks another client, ca.sheridancollege.chatapp.client.gui.ChatClientGUI for example.
+ * The JVM options are given to every run, so comparing a run with -XX:SharedArchiveFile=[archive] to one without shows
+ * what a class data sharing archive saves, see cds.sh.
+ *
+ * The server must already be running. The benchmark stays connected while it runs so the server doesn't close itself between runs.
+ *
+ * @author danielnewton
+ *
+ */
+public class StartupBenchmark {
+
+	private static final String HOST = "localhost";
+	private static final int PORT = 60000;
+	private static final long RUN_TIMEOUT = 30000;
+	private static final long EXIT_TIMEOUT = 1000; //the console client takes up to a heartbeat interval to exit, no need to wait for it
+
+	public static void main(String[] args) throws Exception {
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		List<String> jvmOptions = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : new ArrayList<String>();
+		String mainClass = System.getProperty("chatapp.benchmark.main", ChatClient.class.getName());
+
+		Socket anchor = connectAnchor();
+		List<Double> firstFrame = new ArrayList<Double>();
+		List<Double> loggedIn = new ArrayList<Double>();
+		List<Double> launch = new ArrayList<Double>();
+		String prefix = "bench" + Long.toString(System.nanoTime() & 0xffffff, 36) + "-";
+		for(int i = 0; i <= runs; i++){
+			double[] times = run(mainClass, jvmOptions, prefix + i);
+			if(times == null){
+				System.out.println("Run " + i + " failed");
+				continue;
+			}
+			System.out.println((i == 0 ? "Warm up" : "Run " + i) + ": first_frame=" + format(times[0]) + "ms logged_in=" + format(times[1])
+					+ "ms launch=" + format(times[2]) + "ms");
+			if(i == 0) continue;
+			firstFrame.add(times[0]);
+			loggedIn.add(times[1]);
+			launch.add(times[2]);
+		}
+		anchor.close();
+		System.out.println(mainClass + " " + jvmOptions);
+		System.out.println(summary("first_frame", firstFrame));
+		System.out.println(summary("logged_in", loggedIn));
+		System.out.println(summary("launch", launch));
+	}
+
+	/**
+	 * Launches the client once.
+	 * @return The time to the first frame and to logged in from main(), and from launching to logged in, in milliseconds, or null if the run failed
+	 */
+	private static double[] run(String mainClass, List<String> jvmOptions, String name) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(jvmOptions);
+		command.add("-Dchatapp.startup.timing=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass);
+		command.add("--name=" + name); //the GUI picks its name from this, the console client from what is typed
+		long launched = System.nanoTime();
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+		Thread reader = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try(BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))){
+					String line;
+					while((line = in.readLine()) != null){
+						lines.add(line);
+					}
+				} catch (IOException e){
+					//the process has exited
+				}
+			}
+		}, "BenchmarkOutput");
+		reader.setDaemon(true);
+		reader.start();
+		OutputStream console = process.getOutputStream();
+		console.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+		console.flush();
+
+		double[] times = null;
+		long deadline = System.currentTimeMillis() + RUN_TIMEOUT;
+		while(times == null && System.currentTimeMillis() < deadline){
+			String line = lines.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			if(line == null) break;
+			if(line.startsWith(StartupTiming.PREFIX + " ")){
+				times = new double[]{ field(line, "first_frame"), field(line, "logged_in"), (System.nanoTime() - launched) / 1e6 };
+			}
+		}
+		try{
+			console.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+			console.close();
+		} catch (IOException e){
+			//already exited
+		}
+		if(!process.waitFor(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)){ //the GUI doesn't read the console
+			process.destroy();
+			process.waitFor();
+		}
+		return times;
+	}
+
+	private static double field(String line, String name){
+		for(String part : line.split(" ")){
+			if(part.startsWith(name + "=")) return Double.parseDouble(part.substring(name.length() + 1));
+		}
+		return Double.NaN;
+	}
+
+	private static String summary(String name, List<Double> times){
+		if(times.isEmpty()) return name + " no runs";
+		Collections.sort(times);
+		return name + " median=" + format(times.get(times.size() / 2)) + "ms p90=" + format(times.get((int) Math.ceil(times.size() * 0.9) - 1))
+				+ "ms best=" + format(times.get(0)) + "ms";
+	}
+
+	private static String format(double millis){
+		return String.format(Locale.ROOT, "%.1f", millis);
+	}
+
+	/**
+	 * Keeps a named connection open for the whole benchmark, answering the server's heartbeats.
+	 */
+	private static Socket connectAnchor() throws IOException {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(HOST, PORT), 1000);
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		final PrintWriter out = new PrintWriter(socket.getOutputStream());
+		new Message(MessageContext.CONNECTION_OPEN, out).send();
+		Message name = new Message(MessageContext.CLIENT_NAME, out);
+		name.setContent("startup-benchmark-" + Long.toString(System.nanoTime() & 0xffffff, 36));
+		name.send();
+		Thread drain = new Thread(new Runnable(){ //read everything so the server never has to drop messages for it
+			@Override
+			public void run() {
+				try{
+					String line;
+					while((line = in.readLine()) != null){
+						Message incoming = Message.createFromString(line);
+						if(incoming != null && incoming.getContext() == MessageContext.CONNECTION_CHECK){
+							new Message(MessageContext.CONNECTION_CHECK, out).send();
+						}
+					}
+				} catch (IOException e){
+					//the benchmark is over
+				}
+			}
+		}, "BenchmarkAnchor");
+		drain.setDaemon(true);
+		drain.start();
+		return socket;
+	}
+}
@@ -0,0 +1,60 @@
+package ca.sheridancollege.chatapp.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupTiming measures how long a client takes to start, when it is run with -Dchatapp.startup.timing=true.
+ * Two moments are recorded: the first frame, when the window is first drawn (for the console client, when the first line is printed),
+ * and logged in, when the server has accepted the client's name. Once both have happened one line is printed:
+ * STARTUP first_frame=[ms] logged_in=[ms] jvm=[ms], times from main() and the time the JVM took to get to main().
+ * StartupBenchmark reads this line.
+ *
+ * @author danielnewton
+ *
+ */
+public class StartupTiming {
+
+	public static final String PREFIX = "STARTUP";
+	private static final boolean ENABLED = Boolean.getBoolean("chatapp.startup.timing");
+	private static final long started = System.nanoTime();
+	private static long firstFrame = -1;
+	private static long loggedIn = -1;
+	private static boolean reported = false;
+
+	private StartupTiming(){
+	}
+
+	/**
+	 * Starts the clock. Called first thing in main().
+	 */
+	public static void start(){
+		//loading the class starts the clock
+	}
+
+	public static synchronized void firstFrame(){
+		if(!ENABLED || firstFrame >= 0) return;
+		firstFrame = System.nanoTime();
+		report();
+	}
+
+	public static synchronized void loggedIn(){
+		if(!ENABLED || loggedIn >= 0) return;
+		loggedIn = System.nanoTime();
+		report();
+	}
+
+	private static void report(){
+		if(reported || firstFrame < 0 || loggedIn < 0) return;
+		reported = true;
+		long sinceMain = System.nanoTime() - started;
+		long jvm = TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime()) - sinceMain; //asked now, so loading it is not timed
+		System.out.println(PREFIX + " first_frame=" + millis(firstFrame - started) + " logged_in=" + millis(loggedIn - started)
+				+ " jvm=" + millis(Math.max(0, jvm)));
+	}
+
+	private static String millis(long nanos){
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+}
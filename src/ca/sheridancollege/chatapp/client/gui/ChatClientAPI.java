@@ -1,6 +1,7 @@
 package ca.sheridancollege.chatapp.client.gui;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 import ca.sheridancollege.chatapp.client.ChatClient;
 
@@ -14,6 +15,7 @@ public class ChatClientAPI extends ChatClient{
 
 	public final static String OPTION_BROADCAST = "ALL";
 	public final static String OPTION_NAME = "NEW NAME";
+	public final static String OPTION_SEARCH = "SEARCH";
 
 	/**
 	 * If the client fails to connect to the server it will print an error message and die.
@@ -22,9 +24,39 @@ public class ChatClientAPI extends ChatClient{
 		startConnection();
 	}
 	
+	/**
+	 * @param connect false to create the client without connecting, see startConnectionInBackground()
+	 */
+	public ChatClientAPI(boolean connect){
+		if(connect) startConnection();
+	}
+	
 	public void startConnection(){
 		clientStart(true);
 	}
+	
+	/**
+	 * Connects on a thread of its own, so the window can be built and shown while the client connects.
+	 * isConnecting() is true until it has finished, and isConnected() is false afterwards if it failed.
+	 * @param name The name to pick once connected, or null to let the user pick one
+	 */
+	public void startConnectionInBackground(final String name){
+		setConnecting(); //before the thread starts, so nobody sees a client that is neither connecting nor connected
+		Thread connect = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				startConnection();
+				if(name != null && isConnected()) setName(name);
+			}
+		}, "Connect");
+		connect.setDaemon(true);
+		connect.start();
+	}
+	
+	@Override
+	public boolean isConnecting(){
+		return super.isConnecting();
+	}
 
 	public void setName(String name){
 		sendSetNameMessage(name);
@@ -34,19 +66,76 @@ public class ChatClientAPI extends ChatClient{
 		sendBroadcast(message);
 	}
 
+	public void search(String query){
+		sendSearchMessage(query);
+	}
+
+	/**
+	 * Asks the server for the online names starting with prefix. The answer is returned by getCompletions().
+	 */
+	public void completeName(String prefix){
+		sendCompleteNamesMessage(prefix);
+	}
+
+	/**
+	 * @return The names from the latest completeName() answer, or null if there is no new answer
+	 */
+	public String[] getCompletions(){
+		return takeCompletions();
+	}
+
 	public void privateMessage(String message, String addressee){
 		sendPrivateMessage(message, addressee);
 	}
 
+	/**
+	 * Tells the clients the selected option sends to whether the user is typing. Debounced by the client.
+	 */
+	public void typing(String selection, boolean isTyping){
+		if(selection == null || selection.equals(OPTION_NAME) || selection.equals(OPTION_SEARCH)) return;
+		sendTyping(selection.equals(OPTION_BROADCAST) ? null : selection, isTyping);
+	}
+
+	/**
+	 * @return The names of the clients typing at the moment
+	 */
+	public String[] getTypingNames(){
+		return getTyping();
+	}
+
+	/**
+	 * @return How far the newest message sent has got, received and read, or null if nothing has been sent
+	 */
+	@Override
+	public String getLatestReceipt(){
+		return super.getLatestReceipt();
+	}
+
+	/**
+	 * Messages only count as read while the window has focus.
+	 */
+	@Override
+	public void setReading(boolean reading){
+		super.setReading(reading);
+	}
+
+	/**
+	 * @param status online, away or busy
+	 */
+	public void setStatus(String status){
+		sendPresence(status);
+	}
+
 	/**
 	 * Returns the options for sending a message.
 	 * This includes the names of all clients on the server for private message.
-	 * This also includes choosing to broadcast to all clients and changing the clients name.
+	 * This also includes choosing to broadcast to all clients, changing the clients name and searching the history.
 	 * 
 	 * The order will always be:
 	 * 1. BROADCAST
 	 * 2. SET NAME
-	 * 3. Client Names
+	 * 3. SEARCH
+	 * 4. Client Names
 	 * 
 	 * @return Array of Strings representing messaging options
 	 */
@@ -55,6 +144,7 @@ public class ChatClientAPI extends ChatClient{
 		if(getState() == ClientState.LOGGEDIN){
 			options.add(OPTION_BROADCAST);
 			options.add(OPTION_NAME);
+			options.add(OPTION_SEARCH);
 			try{
 				String[] names = getNames();
 				if(names != null && names.length > 0){
@@ -85,6 +175,15 @@ public class ChatClientAPI extends ChatClient{
 		return getMessages();
 	}
 	
+	/**
+	 * Same as getConsoleUpdates but moves the messages into target instead of allocating an array.
+	 * 
+	 * @return Number of messages moved
+	 */
+	public int drainConsoleUpdates(Collection<? super String> target){
+		return drainMessages(target);
+	}
+	
 	/**
 	 * If the client is not disconnected then true is returned.
 	 * 
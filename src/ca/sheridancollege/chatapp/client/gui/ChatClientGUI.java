@@ -1,10 +1,17 @@
 package ca.sheridancollege.chatapp.client.gui;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -16,7 +23,9 @@ import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.ComboBox;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -24,6 +33,9 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javafx.util.Callback;
+
+import ca.sheridancollege.chatapp.client.StartupTiming;
 
 /**
  * ChatClientGUI is the entry point into the GUI controls for the chat client.
@@ -39,13 +51,36 @@ public class ChatClientGUI extends Application{
 	
 	private GUIState state = GUIState.RUNNING;
 	
+	/*
+	 * Only this many messages are kept in the message pane, the oldest are dropped first.
+	 * Can be changed with the --scrollback=N launch argument.
+	 */
+	private final int DEFAULT_SCROLLBACK = 1000;
+	private int scrollback = DEFAULT_SCROLLBACK;
+	private static final String[] STATUSES = {"online", "away", "busy"};
+	/*
+	 * main() starts connecting before JavaFX starts, so the connection and the serialization classes it loads are ready
+	 * by the time the window is. The --name=N launch argument picks the name as soon as the client is connected.
+	 */
+	private static ChatClientAPI connectingClient = null;
+	
 	/**
 	 * Performs all configurations required by the GUI to start
 	 */
     @Override
     public void start(Stage primaryStage) {
     	
-    	ChatClientAPI client = new ChatClientAPI(); //start client
+    	//main() has started connecting already, unless the GUI was launched without it
+    	ChatClientAPI client = connectingClient != null ? connectingClient : connect(getParameters().getNamed().get("name"));
+    	
+    	String scrollbackArg = getParameters().getNamed().get("scrollback");
+    	if(scrollbackArg != null){
+    		try{
+    			scrollback = Math.max(1, Integer.parseInt(scrollbackArg));
+    		}catch(NumberFormatException nfe){
+    			System.out.println("Invalid scrollback: " + scrollbackArg + ", using " + DEFAULT_SCROLLBACK);
+    		}
+    	}
     	
     	/*
     	 * Create GUI components
@@ -57,10 +92,25 @@ public class ChatClientGUI extends Application{
         grid.setVgap(10);
         grid.setPadding(new Insets(25, 25, 25, 25));
         
-        TextArea ta = new TextArea();
-        ta.setEditable(false);
-        ta.setWrapText(true);
-        grid.add(ta, 0, 0, 3, 1);
+        //a ListView only lays out the visible rows, so the cost of the pane does not grow with the history
+        ListView<String> messages = new ListView<String>();
+        messages.setPrefHeight(150);
+        messages.setCellFactory(new Callback<ListView<String>, ListCell<String>>() {
+        	@Override
+        	public ListCell<String> call(ListView<String> list) {
+        		ListCell<String> cell = new ListCell<String>() {
+        			@Override
+        			protected void updateItem(String item, boolean empty) {
+        				super.updateItem(item, empty);
+        				setText(empty ? null : item);
+        			}
+        		};
+        		cell.setWrapText(true);
+        		cell.prefWidthProperty().bind(list.widthProperty().subtract(20)); //wrap instead of scrolling sideways
+        		return cell;
+        	}
+        });
+        grid.add(messages, 0, 0, 3, 1);
         
         ComboBox<String> options = new ComboBox<String>();
         options.setPrefWidth(100);
@@ -76,7 +126,15 @@ public class ChatClientGUI extends Application{
         hbBtn.getChildren().add(btn);
         grid.add(hbBtn, 2, 1, 1, 1);
         
-        Scene scene = new Scene(grid, 500, 250);
+        ComboBox<String> status = new ComboBox<String>(FXCollections.observableArrayList(STATUSES));
+        status.setPrefWidth(100);
+        status.setValue(STATUSES[0]);
+        grid.add(status, 0, 2, 1, 1);
+        
+        Label typingLabel = new Label();
+        grid.add(typingLabel, 1, 2, 2, 1);
+        
+        Scene scene = new Scene(grid, 500, 280);
         primaryStage.setScene(scene);
         primaryStage.show();
         
@@ -101,6 +159,40 @@ public class ChatClientGUI extends Application{
                 }
             }
         });
+        
+        //let the people the message is for see that the user is typing, the client debounces it
+        textField.textProperty().addListener(new ChangeListener<String>()
+        {
+            @Override
+            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
+            {
+                client.typing(options.getValue(), newValue != null && !newValue.trim().isEmpty());
+            }
+        });
+        
+        status.setOnAction(new EventHandler<ActionEvent>() {
+        	@Override
+            public void handle(ActionEvent e) {
+            	client.setStatus(status.getValue());
+            }
+        });
+        
+        //TAB completes the @name being typed. The filter runs before TAB moves the focus.
+        textField.addEventFilter(KeyEvent.KEY_PRESSED, new EventHandler<KeyEvent>()
+        {
+            @Override
+            public void handle(KeyEvent ke)
+            {
+                if (ke.getCode().equals(KeyCode.TAB))
+                {
+                    String prefix = mentionPrefix(textField);
+                    if(prefix != null){
+                        client.completeName(prefix);
+                        ke.consume();
+                    }
+                }
+            }
+        });
 
         primaryStage.setOnCloseRequest(new EventHandler<WindowEvent>() {
             public void handle(WindowEvent we) {
@@ -142,13 +234,22 @@ public class ChatClientGUI extends Application{
             					} else if(options.getItems().size() > 0){
             						options.setValue(options.getItems().get(0));
             					}
-
-            					//update text area
-            					String[] updates = client.getConsoleUpdates();
-            					if(updates != null && updates.length > 0){
-            						for(int i = 0; i < updates.length; i++){
-            							ta.appendText("\n" + updates[0]);
-            						}
+            					
+            					client.setReading(primaryStage.isFocused());
+            					String[] typingNames = client.getTypingNames();
+            					String receipt = client.getLatestReceipt();
+            					if(client.isConnecting()){
+            						typingLabel.setText("Connecting...");
+            					} else if(typingNames.length == 0){ //nobody typing, show how far the last message sent has got
+            						typingLabel.setText(receipt == null ? "" : receipt);
+            					} else {
+            						typingLabel.setText(String.join(", ", typingNames) + (typingNames.length == 1 ? " is typing..." : " are typing..."));
+            					}
+            					
+            					//finish an @name completion
+            					String[] completions = client.getCompletions();
+            					if(completions != null){
+            						applyCompletions(textField, messages, completions);
             					}
             				} else if(state == GUIState.RUNNING){ //not connected
             					state = GUIState.POPUP;
@@ -158,7 +259,7 @@ public class ChatClientGUI extends Application{
             					Alert alert = new Alert(AlertType.CONFIRMATION, alertMsg);
             					Optional<ButtonType> result = alert.showAndWait();
             					if (result.isPresent() && result.get() == ButtonType.OK) {
-            						client.startConnection();
+            						client.startConnectionInBackground(null);
             						state = GUIState.RUNNING;
             					} else {
             						Platform.exit();
@@ -185,6 +286,70 @@ public class ChatClientGUI extends Application{
         updateThread.setDaemon(true);
         updateThread.start();
         
+        /*
+         * Move incoming messages into the message pane once per frame as a single batch
+         */
+        new AnimationTimer() {
+        	private final List<String> batch = new ArrayList<String>();
+        	
+        	@Override
+        	public void handle(long now) {
+        		StartupTiming.firstFrame(); //the first pulse after the window is shown draws it
+        		if(client.drainConsoleUpdates(batch) > 0){
+        			appendMessages(messages, batch);
+        			batch.clear();
+        		}
+        	}
+        }.start();
+    }
+    
+    /**
+     * Adds a batch of messages to the message pane and trims it to the scrollback limit.
+     * 
+     * @param messages The message pane
+     * @param updates The new messages
+     */
+    private void appendMessages(ListView<String> messages, List<String> updates){
+    	ObservableList<String> items = messages.getItems();
+    	if(updates.size() >= scrollback){ //the batch alone fills the pane
+    		items.setAll(updates.subList(updates.size() - scrollback, updates.size()));
+    	} else {
+    		int overflow = items.size() + updates.size() - scrollback;
+    		if(overflow > 0){
+    			items.remove(0, overflow);
+    		}
+    		items.addAll(updates);
+    	}
+    	messages.scrollTo(items.size() - 1);
+    }
+    
+    /**
+     * Returns the part of the @name that ends at the caret, or null if the caret is not after an @name.
+     */
+    private String mentionPrefix(TextField textField){
+    	String text = textField.getText();
+    	int caret = textField.getCaretPosition();
+    	for(int i = caret - 1; i >= 0; i--){
+    		char c = text.charAt(i);
+    		if(c == '@') return text.substring(i + 1, caret);
+    		if(Character.isWhitespace(c)) return null;
+    	}
+    	return null;
+    }
+    
+    /**
+     * Replaces the @name at the caret if there is one match, otherwise lists the matches in the message pane.
+     */
+    private void applyCompletions(TextField textField, ListView<String> messages, String[] completions){
+    	String prefix = mentionPrefix(textField);
+    	if(prefix == null) return; //the user moved on
+    	if(completions.length == 1){
+    		int caret = textField.getCaretPosition();
+    		textField.replaceText(caret - prefix.length(), caret, completions[0] + " ");
+    	} else {
+    		String list = completions.length == 0 ? "No online names start with: " + prefix : "Matching names: " + String.join(", ", completions);
+    		appendMessages(messages, Arrays.asList(list));
+    	}
     }
     
     /**
@@ -199,6 +364,7 @@ public class ChatClientGUI extends Application{
     	String text = textField.getText();
     	if(selection == null || selection.isEmpty()) return;
     	if(text == null || text.trim().isEmpty()) return;
+    	if(client.isConnecting()) return; //keep the text until there is a connection to send it on
     	
         switch(selection){
         case ChatClientAPI.OPTION_BROADCAST:
@@ -208,6 +374,9 @@ public class ChatClientGUI extends Application{
         	client.setName(text);
         	options.setValue(options.getItems().get(0));
         	break;
+        case ChatClientAPI.OPTION_SEARCH:
+        	client.search(text);
+        	break;
         default:
         	client.privateMessage(text, selection);
         	break;
@@ -221,6 +390,23 @@ public class ChatClientGUI extends Application{
      * 
      */
     public static void main(String[] args) {
+        StartupTiming.start();
+        String name = null;
+        for(String arg : args){
+            if(arg.startsWith("--name=")) name = arg.substring("--name=".length());
+        }
+        connectingClient = connect(name);
         launch(args);
     }
+    
+    /**
+     * Creates the client and starts connecting it in the background.
+     * 
+     * @param name The name to pick once connected, or null to let the user pick one
+     */
+    private static ChatClientAPI connect(String name){
+        ChatClientAPI client = new ChatClientAPI(false);
+        client.startConnectionInBackground(name);
+        return client;
+    }
 }
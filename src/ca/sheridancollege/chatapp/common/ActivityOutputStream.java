@@ -0,0 +1,40 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ActivityOutputStream remembers when bytes were last written to a connection.
+ * Heartbeats are only needed when a connection has been quiet, so both ends use this to skip them while traffic is flowing.
+ *
+ * @author danielnewton
+ *
+ */
+public class ActivityOutputStream extends FilterOutputStream {
+
+	private volatile long lastWrite = System.currentTimeMillis();
+
+	public ActivityOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		lastWrite = System.currentTimeMillis();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len); //FilterOutputStream would write one byte at a time
+		lastWrite = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return Time of the last write in milliseconds
+	 */
+	public long getLastWrite(){
+		return lastWrite;
+	}
+}
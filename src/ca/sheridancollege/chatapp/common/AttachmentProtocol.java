@@ -0,0 +1,67 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * AttachmentProtocol holds what the client and the server share about moving files over the attachment port.
+ * Files never go through the chat connection. The chat connection only carries the offer and the notice that a file is ready,
+ * each transfer gets a connection of its own, so a big file can't hold up chat and TCP flow control applies to each transfer separately.
+ *
+ * Every transfer starts with one request line and one reply line, then the file bytes:
+ * -	PUT [id] [upload token] - answered with OFFSET [bytes the server already has], then the client sends the rest of the file and gets DONE
+ * -	GET [id] [offset] - answered with SIZE [file size], then the server sends the file from the offset
+ * -	Either can be answered with ERROR [reason] instead.
+ * An interrupted transfer is resumed by sending the same request again, the offsets let it carry on where it stopped.
+ *
+ * @author danielnewton
+ *
+ */
+public class AttachmentProtocol {
+
+	public static final String PUT = "PUT";
+	public static final String GET = "GET";
+	public static final String OFFSET = "OFFSET";
+	public static final String SIZE = "SIZE";
+	public static final String DONE = "DONE";
+	public static final String ERROR = "ERROR";
+	public static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	private AttachmentProtocol(){
+	}
+
+	/**
+	 * Reads a request or reply line one byte at a time, so none of the file bytes that follow it are read by mistake.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while(true){
+			int b = in.read();
+			if(b < 0) throw new EOFException("Connection closed before the end of the line");
+			if(b == '\n') return line.toString();
+			if(line.length() >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+			line.append((char) b);
+		}
+	}
+
+	public static void writeLine(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * @return The file name without any folders, so a name sent by someone else can't point outside the download folder
+	 */
+	public static String cleanFileName(String fileName){
+		if(fileName == null) return "attachment";
+		String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+		name = name.replaceAll("[\\p{Cntrl}]", "").trim();
+		if(name.length() > 255) name = name.substring(0, 255);
+		if(name.isEmpty() || name.equals(".") || name.equals("..")) return "attachment";
+		return name;
+	}
+}
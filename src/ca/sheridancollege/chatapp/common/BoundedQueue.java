@@ -0,0 +1,151 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * BoundedQueue is a fixed size, lock-free queue used to hand messages from a receiving thread to a consumer.
+ * Producers and consumers never block each other and the memory used never grows past the capacity.
+ * When the queue is full the OverflowPolicy decides whether the new element or the oldest element is dropped.
+ *
+ * Each slot carries a sequence number that tells producers and consumers whose turn it is to use the slot,
+ * so offer() and poll() only need a single compare-and-set each.
+ *
+ * @author danielnewton
+ *
+ * @param <E> Type of the queued elements
+ */
+public class BoundedQueue<E> {
+
+	public enum OverflowPolicy{
+		DROP_NEWEST, DROP_OLDEST
+	}
+
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final OverflowPolicy policy;
+	private final AtomicLong head = new AtomicLong(); //next position to poll
+	private final AtomicLong tail = new AtomicLong(); //next position to offer
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of queued elements, rounded up to a power of two
+	 * @param policy What to drop when the queue is full
+	 */
+	public BoundedQueue(int capacity, OverflowPolicy policy) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.buffer = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.policy = policy;
+		for(int i = 0; i < size; i++){
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element to the queue, applying the overflow policy if the queue is full.
+	 * @return false if element was dropped
+	 */
+	public boolean offer(E element){
+		if(element == null) throw new NullPointerException();
+		while(true){
+			if(tryOffer(element)) return true;
+			if(policy == OverflowPolicy.DROP_NEWEST){
+				dropped.incrementAndGet();
+				return false;
+			}
+			if(poll() != null){ //make room by discarding the oldest element
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	private boolean tryOffer(E element){
+		long pos = tail.get();
+		while(true){
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if(diff == 0){ //slot is free for this position
+				if(tail.compareAndSet(pos, pos + 1)){
+					buffer.set(index, element);
+					sequences.set(index, pos + 1); //publish to consumers
+					return true;
+				}
+				pos = tail.get();
+			} else if(diff < 0){ //slot still holds an element from the previous lap, queue is full
+				return false;
+			} else { //another producer took this position
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element.
+	 * @return The element, or null if the queue is empty
+	 */
+	public E poll(){
+		long pos = head.get();
+		while(true){
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if(diff == 0){ //slot has been published for this position
+				if(head.compareAndSet(pos, pos + 1)){
+					E element = buffer.getAndSet(index, null);
+					sequences.set(index, pos + mask + 1); //hand the slot back to producers for the next lap
+					return element;
+				}
+				pos = head.get();
+			} else if(diff < 0){ //nothing published yet, queue is empty
+				return null;
+			} else { //another consumer took this position
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Moves every queued element into target, oldest first.
+	 * @return The number of elements moved
+	 */
+	public int drainTo(Collection<? super E> target){
+		return drainTo(target, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Moves at most maxElements queued elements into target, oldest first.
+	 * @return The number of elements moved
+	 */
+	public int drainTo(Collection<? super E> target, int maxElements){
+		int moved = 0;
+		E element;
+		while(moved < maxElements && (element = poll()) != null){
+			target.add(element);
+			moved++;
+		}
+		return moved;
+	}
+
+	/**
+	 * @return Approximate number of queued elements
+	 */
+	public int size(){
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public int capacity(){
+		return mask + 1;
+	}
+
+	/**
+	 * @return Number of elements discarded because the queue was full
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+}
@@ -0,0 +1,51 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * FrameWriter is a PrintWriter for connections that do not use the standard serialized line format.
+ * Message.send() hands messages to writeMessage() instead of printing the serialized Message.
+ *
+ * When one message goes to many recipients, the server encodes it once per encoding and uses writeFrame()
+ * for every recipient that shares that encoding.
+ *
+ * @author danielnewton
+ *
+ */
+public abstract class FrameWriter extends PrintWriter {
+
+	public static final String LINE_ENCODING = "line"; //the serialized Message format used by plain PrintWriters
+
+	protected FrameWriter(Writer out) {
+		super(out);
+	}
+
+	/**
+	 * @return Name of the encoding, writers that return the same name can share encoded messages
+	 */
+	public abstract String getEncoding();
+
+	/**
+	 * @return The message in this writer's encoding, or null if it can't be encoded
+	 */
+	public abstract String encode(Message message);
+
+	/**
+	 * Writes a message that was encoded by a writer with the same encoding.
+	 */
+	public abstract void writeFrame(String encoded);
+
+	/**
+	 * Writes an encoded message. Writers that treat messages differently by their context override this.
+	 * @param message The message that was encoded
+	 */
+	public void writeFrame(Message message, String encoded){
+		writeFrame(encoded);
+	}
+
+	public void writeMessage(Message message){
+		String encoded = encode(message);
+		if(encoded != null) writeFrame(message, encoded);
+	}
+}
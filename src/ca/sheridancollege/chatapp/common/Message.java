@@ -20,16 +20,23 @@ public class Message implements Serializable{
 
 	public static final String SYSTEM_NAME = "System";
 	public static final String GETNAMES_HEADER = "Currently Online:";
+	public static final String SEARCH_HEADER = "Search results:";
+	public static final String COMPLETE_NAMES_HEADER = "Matching names:";
+	public static final String STATS_HEADER = "Usage statistics:";
+	public static final String HISTORY_HEADER = "Conversation with ";
 	
 	public enum MessageContext{
-		CONNECTION_OPEN, CONNECTION_CHECK, CONNECTION_CLOSE, CLIENT_NAME, SEND_BROADCAST, SEND_ADDRESSED, GET_CLIENTS_ALL, GET_CLIENTS_OTHER
+		CONNECTION_OPEN, CONNECTION_CHECK, CONNECTION_CLOSE, CLIENT_NAME, SEND_BROADCAST, SEND_ADDRESSED, GET_CLIENTS_ALL, GET_CLIENTS_OTHER, SEARCH, COMPLETE_NAMES, MENTION, SESSION_RESUME, SERVER_RESTART, ATTACHMENT_OFFER, ATTACHMENT_READY, STATS, ACK, SERVER_BUSY, TYPING, PRESENCE, GET_HISTORY, RECEIPT
 	}
 	
 	private MessageContext context;
 	private String sender;
 	private String addressee;
 	private String content;
+	private String id; //chosen by the client for the messages it sends, so a message sent again can be recognized
+	private long sequence; //given by the server to the chat messages it delivers, 0 if none, see ReceiptTracker
 	private transient PrintWriter out;
+	private transient long receivedNanos; //System.nanoTime() when the message that caused this one was received, 0 if unknown
 	
 	public Message(MessageContext context, PrintWriter out) {
 		this.context = context;
@@ -65,27 +72,71 @@ public class Message implements Serializable{
 	public void setSender(String sender){
 		this.sender = sender;
 	}
+
+	/**
+	 * @return The id the client gave the message, or null if it has none
+	 */
+	public String getId(){
+		return id;
+	}
+
+	public void setId(String id){
+		this.id = id;
+	}
+
+	/**
+	 * @return The sequence number the server gave the message, or 0 if it has none
+	 */
+	public long getSequence(){
+		return sequence;
+	}
+
+	public void setSequence(long sequence){
+		this.sequence = sequence;
+	}
 	
 	public void setOut(PrintWriter out){
 		this.out = out;
 	}
 	
+	public long getReceivedNanos(){
+		return receivedNanos;
+	}
+	
+	public void setReceivedNanos(long receivedNanos){
+		this.receivedNanos = receivedNanos;
+	}
+	
 	/**
 	 * Serializes the Message and sends it to the PrintWriter out.
 	 */
 	public void send(){
 		if(out == null) return; //sending would be impossible if out=null
+		if(out instanceof FrameWriter){ //connection uses its own encoding
+			((FrameWriter) out).writeMessage(this);
+			return;
+		}
+		String serializedMessage = encode();
+		if(serializedMessage == null) return;
+		out.println(serializedMessage);
+		out.flush();
+	}
+
+	/**
+	 * Serializes the Message to the String form that is sent over the connection.
+	 * 
+	 * @return The serialized Message, or null if it could not be serialized
+	 */
+	public String encode(){
 		String serializedMessage = null;
 		ByteArrayOutputStream bo = null;
 		ObjectOutputStream so = null;
-		try { //convert Message to a string and send it via out.
+		try { //convert Message to a string
 			bo = new ByteArrayOutputStream();
 			so = new ObjectOutputStream(bo);
 			so.writeObject(this);
 			so.flush();
 			serializedMessage = new String(Base64.getEncoder().encodeToString(bo.toByteArray()));  
-			out.println(serializedMessage);
-			out.flush();
 		} catch (Exception e) {
 			e.printStackTrace();        
 		} finally {
@@ -96,6 +147,7 @@ public class Message implements Serializable{
 				e.printStackTrace();
 			}
 		}
+		return serializedMessage;
 	}
 
 	/**
@@ -0,0 +1,62 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+/**
+ * SocketTuning applies the socket options used by the client and the server.
+ * -Dchatapp.lowlatency=true turns on the low latency settings, the options can also be set one at a time:
+ * -	chatapp.tcp.nodelay - Send small messages right away instead of waiting to combine them (on in low latency mode)
+ * -	chatapp.tcp.sendbuffer and chatapp.tcp.receivebuffer - Socket buffer sizes in bytes, the system default when not set
+ *
+ * @author danielnewton
+ *
+ */
+public class SocketTuning {
+
+	private SocketTuning(){
+	}
+
+	public static boolean isLowLatency(){
+		return Boolean.getBoolean("chatapp.lowlatency");
+	}
+
+	/**
+	 * Must be called before the socket connects, so the receive buffer is used for the TCP window.
+	 */
+	public static void apply(Socket socket) throws SocketException{
+		socket.setTcpNoDelay(Boolean.parseBoolean(System.getProperty("chatapp.tcp.nodelay", Boolean.toString(isLowLatency()))));
+		Integer sendBuffer = Integer.getInteger("chatapp.tcp.sendbuffer");
+		if(sendBuffer != null) socket.setSendBufferSize(sendBuffer);
+		Integer receiveBuffer = Integer.getInteger("chatapp.tcp.receivebuffer");
+		if(receiveBuffer != null) socket.setReceiveBufferSize(receiveBuffer);
+	}
+
+	/**
+	 * Must be called before the server socket is bound. Accepted sockets inherit the receive buffer size.
+	 */
+	public static void apply(ServerSocket serverSocket) throws SocketException{
+		Integer receiveBuffer = Integer.getInteger("chatapp.tcp.receivebuffer");
+		if(receiveBuffer != null) serverSocket.setReceiveBufferSize(receiveBuffer);
+	}
+
+	/**
+	 * Lets more server sockets bind the same port, so the system spreads new connections between them. Must be called before binding.
+	 * SO_REUSEPORT is looked up by name because Java only has it from version 9, and not every system supports it.
+	 * @return false if the option could not be set
+	 */
+	public static boolean reusePort(ServerSocket serverSocket){
+		try{
+			SocketOption<?> option = (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(serverSocket, option, Boolean.TRUE);
+			return true;
+		} catch (ReflectiveOperationException e){ //older Java, or the system doesn't support it
+			return false;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * StreamWriter writes the messages of one logical stream of a multiplexed connection.
+ * A multiplexed connection carries many clients over one socket, each line is tagged with the id of the stream it belongs to
+ * as "[stream id]:[line]". Serialized messages never contain ':', so untagged lines are left for the connection itself
+ * (CONNECTION_OPEN and the heartbeats), which are paid for once per socket instead of once per client.
+ * A message for several streams of one connection is sent once, tagged with all their ids: "[id],[id],[id]:[line]".
+ *
+ * Closing a StreamWriter only closes the stream, the connection and the other streams carry on.
+ *
+ * @author danielnewton
+ *
+ */
+public class StreamWriter extends FrameWriter {
+
+	public static final char SEPARATOR = ':';
+	public static final char ID_SEPARATOR = ',';
+	private static final int MAX_GROUP = 1024; //most ids in one tag, keeps lines short
+
+	private final PrintWriter target;
+	private final int streamId;
+	private final String prefix;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param target The writer of the connection that carries the stream
+	 * @param streamId Id of the stream, greater than zero
+	 */
+	public StreamWriter(PrintWriter target, int streamId) {
+		super(target);
+		this.target = target;
+		this.streamId = streamId;
+		this.prefix = Integer.toString(streamId) + SEPARATOR;
+	}
+
+	public int getStreamId(){
+		return streamId;
+	}
+
+	/**
+	 * @return The writer of the connection that carries the stream
+	 */
+	public PrintWriter getTarget(){
+		return target;
+	}
+
+	/**
+	 * @return The stream id a line is tagged with, or 0 if it is an untagged line for the connection itself, -1 if the tag is not a valid id
+	 */
+	public static int streamIdOf(String line){
+		int separator = line.indexOf(SEPARATOR);
+		if(separator < 0) return 0;
+		try{
+			int id = Integer.parseInt(line.substring(0, separator));
+			return id > 0 ? id : -1;
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the tag of a line that may be for several streams.
+	 * @return The stream ids, null for an untagged line, empty if the tag is not valid
+	 */
+	public static int[] streamIdsOf(String line){
+		int separator = line.indexOf(SEPARATOR);
+		if(separator < 0) return null;
+		String[] ids = line.substring(0, separator).split(String.valueOf(ID_SEPARATOR));
+		int[] streamIds = new int[ids.length];
+		try{
+			for(int i = 0; i < ids.length; i++){
+				streamIds[i] = Integer.parseInt(ids[i]);
+				if(streamIds[i] <= 0) return new int[0];
+			}
+		} catch (NumberFormatException e){
+			return new int[0];
+		}
+		return streamIds;
+	}
+
+	/**
+	 * Sends one message to several streams of the same connection as a single line.
+	 * @param streams Open or closed streams that share a target, closed streams are left out
+	 */
+	public static void writeGroup(List<StreamWriter> streams, Message message, String encoded){
+		if(encoded == null || streams.isEmpty()) return;
+		PrintWriter target = streams.get(0).target;
+		StringBuilder tag = new StringBuilder();
+		int count = 0;
+		for(StreamWriter stream : streams){
+			if(stream.closed) continue;
+			if(count > 0) tag.append(ID_SEPARATOR);
+			tag.append(stream.streamId);
+			if(++count == MAX_GROUP){
+				write(target, message, tag.append(SEPARATOR).append(encoded).toString());
+				tag.setLength(0);
+				count = 0;
+			}
+		}
+		if(count > 0) write(target, message, tag.append(SEPARATOR).append(encoded).toString());
+	}
+
+	private static void write(PrintWriter target, Message message, String tagged){
+		if(target instanceof FrameWriter && message == null){
+			((FrameWriter) target).writeFrame(tagged);
+		} else if(target instanceof FrameWriter){
+			((FrameWriter) target).writeFrame(message, tagged);
+		} else {
+			target.println(tagged);
+			target.flush();
+		}
+	}
+
+	/**
+	 * @return The line without its stream tag
+	 */
+	public static String payloadOf(String line){
+		return line.substring(line.indexOf(SEPARATOR) + 1);
+	}
+
+	@Override
+	public String getEncoding() {
+		return target instanceof FrameWriter ? ((FrameWriter) target).getEncoding() : LINE_ENCODING;
+	}
+
+	@Override
+	public String encode(Message message) {
+		return target instanceof FrameWriter ? ((FrameWriter) target).encode(message) : message.encode();
+	}
+
+	@Override
+	public void writeFrame(String encoded) {
+		println(encoded);
+	}
+
+	/**
+	 * Tags the message and passes it on with its context, so a LaneWriter underneath still sends it in the right lane.
+	 */
+	@Override
+	public void writeFrame(Message message, String encoded) {
+		if(closed) return;
+		write(target, message, prefix + encoded);
+	}
+
+	@Override
+	public void println(String x) {
+		if(closed) return;
+		write(target, null, prefix + x);
+	}
+
+	@Override
+	public boolean checkError() {
+		return closed || target.checkError();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,144 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+/**
+ * TlsSocketStreams puts a TlsTransport between a blocking Socket and the plain text streams the client and server read and write.
+ * Reads honour the socket timeout, so a SocketTimeoutException reaches the reader just like on a plain socket.
+ *
+ * @author danielnewton
+ *
+ */
+public class TlsSocketStreams {
+
+	private final Socket socket;
+	private final TlsTransport tls;
+	private final InputStream netIn;
+	private final WritableByteChannel netOut;
+	private final byte[] readBuffer = new byte[16 * 1024];
+	private final Object readLock = new Object();
+
+	private final InputStream in = new InputStream(){
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			synchronized(readLock){
+				while(true){
+					int count = tls.read(bytes, offset, length);
+					if(count > 0) return count;
+					TlsTransport.Status status = tls.process();
+					sendPending(); //the engine may have had to answer the peer
+					count = tls.read(bytes, offset, length);
+					if(count > 0) return count;
+					if(status == TlsTransport.Status.CLOSED || !fill()) return -1;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocketStreams.this.close();
+		}
+	};
+
+	private final OutputStream out = new OutputStream(){
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{ (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			tls.send(ByteBuffer.wrap(bytes, offset, length));
+			sendPending();
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocketStreams.this.close();
+		}
+	};
+
+	public TlsSocketStreams(Socket socket, SSLEngine engine) throws IOException {
+		this.socket = socket;
+		this.tls = new TlsTransport(engine);
+		this.netIn = socket.getInputStream();
+		this.netOut = Channels.newChannel(socket.getOutputStream());
+	}
+
+	/**
+	 * Performs the TLS handshake. Must be called before the streams are used.
+	 */
+	public void handshake() throws IOException {
+		tls.beginHandshake();
+		synchronized(readLock){
+			while(true){
+				TlsTransport.Status status = tls.process();
+				sendPending();
+				if(tls.isHandshakeComplete()) return;
+				if(status == TlsTransport.Status.CLOSED) throw new SSLException("Connection closed during the TLS handshake");
+				if(!fill()) throw new EOFException("Connection closed during the TLS handshake");
+			}
+		}
+	}
+
+	public InputStream getInputStream(){
+		return in;
+	}
+
+	public OutputStream getOutputStream(){
+		return out;
+	}
+
+	/**
+	 * Reads more bytes from the socket into the engine.
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		int count = netIn.read(readBuffer);
+		if(count < 0) return false;
+		tls.received(readBuffer, 0, count);
+		return true;
+	}
+
+	/**
+	 * Sends everything the engine has encrypted. Holding the transport lock keeps records from different threads in order.
+	 */
+	private void sendPending() throws IOException {
+		synchronized(tls){
+			while(tls.hasOutput()){
+				tls.flushTo(netOut);
+			}
+		}
+	}
+
+	/**
+	 * Sends close_notify and closes the socket.
+	 */
+	public void close() throws IOException {
+		try{
+			tls.close();
+			sendPending();
+		} catch (IOException e){
+			//the socket is closing anyway
+		} finally {
+			socket.close();
+		}
+	}
+}
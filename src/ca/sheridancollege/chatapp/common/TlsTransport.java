@@ -0,0 +1,303 @@
+package ca.sheridancollege.chatapp.common;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TlsTransport encrypts and decrypts a connection with an SSLEngine.
+ * It never touches a socket itself: network bytes are handed in with received() and taken out with flushTo(),
+ * so the same class works for a blocking stream (see TlsSocketStreams) or a non-blocking channel.
+ *
+ * TLS is turned on for both the client and the server with -Dchatapp.tls=true. The keys and trusted certificates
+ * come from the standard javax.net.ssl.keyStore and javax.net.ssl.trustStore properties.
+ * All engines share one SSLContext, so a client that reconnects resumes its session (or uses a session ticket)
+ * instead of doing a full handshake.
+ *
+ * The CPU time spent on handshakes and on encrypting/decrypting records is measured and reported by getStats().
+ *
+ * @author danielnewton
+ *
+ */
+public class TlsTransport {
+
+	public enum Status{
+		NEED_INPUT, //the engine is waiting for bytes from the network
+		CLOSED //the peer closed the TLS session
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static SSLContext context = null;
+
+	private static final AtomicLong handshakes = new AtomicLong();
+	private static final AtomicLong resumed = new AtomicLong();
+	private static final AtomicLong handshakeCpuNanos = new AtomicLong();
+	private static final AtomicLong recordCpuNanos = new AtomicLong();
+	private static final AtomicLong bytesEncrypted = new AtomicLong();
+	private static final AtomicLong bytesDecrypted = new AtomicLong();
+
+	private final SSLEngine engine;
+	private ByteBuffer netIn; //received and not yet decrypted, kept ready for writing
+	private ByteBuffer netOut; //encrypted and not yet sent, kept ready for writing
+	private ByteBuffer appIn; //decrypted and not yet read, kept ready for writing
+	private long handshakeStartedAt = 0;
+	private boolean handshakeComplete = false;
+
+	public TlsTransport(SSLEngine engine) {
+		this.engine = engine;
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+	}
+
+	/**
+	 * @return true if -Dchatapp.tls=true was given
+	 */
+	public static boolean isEnabled(){
+		return Boolean.getBoolean("chatapp.tls");
+	}
+
+	/**
+	 * @return The SSLContext shared by every engine so sessions can be resumed
+	 */
+	public static synchronized SSLContext getContext() throws NoSuchAlgorithmException{
+		if(context == null){
+			context = SSLContext.getDefault();
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(50000);
+			sessions.setSessionTimeout(24 * 60 * 60);
+		}
+		return context;
+	}
+
+	public static SSLEngine createServerEngine() throws NoSuchAlgorithmException{
+		SSLEngine engine = getContext().createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * The host and port are the key the client session cache uses, they must be given for resumption to work.
+	 */
+	public static SSLEngine createClientEngine(String host, int port) throws NoSuchAlgorithmException{
+		SSLEngine engine = getContext().createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	public synchronized void beginHandshake() throws SSLException{
+		handshakeStartedAt = System.currentTimeMillis();
+		long cpu = cpuTime();
+		engine.beginHandshake();
+		account(cpu);
+	}
+
+	public synchronized boolean isHandshakeComplete(){
+		return handshakeComplete;
+	}
+
+	/**
+	 * Adds bytes that were read from the network.
+	 */
+	public synchronized void received(byte[] bytes, int offset, int length){
+		netIn = ensureRemaining(netIn, length);
+		netIn.put(bytes, offset, length);
+	}
+
+	/**
+	 * Runs the engine as far as it can go with the bytes received so far.
+	 * Handshake replies are added to the output and decrypted data can then be read with read().
+	 */
+	public synchronized Status process() throws SSLException{
+		while(true){
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			if(hs == HandshakeStatus.NEED_TASK){
+				long cpu = cpuTime();
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null){
+					task.run();
+				}
+				account(cpu);
+			} else if(hs == HandshakeStatus.NEED_WRAP){
+				if(!wrap(EMPTY)) return Status.CLOSED;
+			} else {
+				if(netIn.position() == 0 && hs != HandshakeStatus.NEED_UNWRAP_AGAIN) return Status.NEED_INPUT;
+				Status status = unwrap();
+				if(status != null) return status;
+			}
+		}
+	}
+
+	/**
+	 * Encrypts application data. The encrypted bytes must then be sent with flushTo().
+	 */
+	public synchronized void send(ByteBuffer data) throws SSLException{
+		while(data.hasRemaining()){
+			int before = data.remaining();
+			if(!wrap(data)) throw new SSLException("TLS session is closed");
+			bytesEncrypted.addAndGet(before - data.remaining());
+		}
+	}
+
+	/**
+	 * Copies decrypted data into bytes.
+	 * @return Number of bytes copied, 0 if there is nothing to read
+	 */
+	public synchronized int read(byte[] bytes, int offset, int length){
+		appIn.flip();
+		int count = Math.min(length, appIn.remaining());
+		appIn.get(bytes, offset, count);
+		appIn.compact();
+		return count;
+	}
+
+	public synchronized boolean hasOutput(){
+		return netOut.position() > 0;
+	}
+
+	/**
+	 * Writes pending encrypted bytes to the network. A non-blocking channel may not take them all, the rest is kept for the next call.
+	 * @return Number of bytes written
+	 */
+	public synchronized int flushTo(WritableByteChannel channel) throws IOException{
+		netOut.flip();
+		try{
+			return channel.write(netOut);
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	/**
+	 * Starts closing the session. The close_notify must then be sent with flushTo().
+	 */
+	public synchronized void close(){
+		engine.closeOutbound();
+		try{
+			while(!engine.isOutboundDone() && wrap(EMPTY));
+		} catch (SSLException e){
+			//the peer will see the connection drop instead
+		}
+	}
+
+	/**
+	 * @return true if the engine can still produce output
+	 */
+	private boolean wrap(ByteBuffer data) throws SSLException{
+		while(true){
+			long cpu = cpuTime();
+			SSLEngineResult result = engine.wrap(data, netOut);
+			account(cpu);
+			switch(result.getStatus()){
+			case BUFFER_OVERFLOW:
+				netOut = ensureRemaining(netOut, engine.getSession().getPacketBufferSize());
+				break;
+			case CLOSED:
+				return false;
+			default:
+				checkFinished(result);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return null if something was decrypted and processing can go on
+	 */
+	private Status unwrap() throws SSLException{
+		netIn.flip();
+		try{
+			while(true){
+				long cpu = cpuTime();
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				account(cpu);
+				switch(result.getStatus()){
+				case BUFFER_OVERFLOW:
+					appIn = ensureRemaining(appIn, engine.getSession().getApplicationBufferSize());
+					break;
+				case BUFFER_UNDERFLOW: //only part of a record has arrived
+					return Status.NEED_INPUT;
+				case CLOSED:
+					return Status.CLOSED;
+				default:
+					bytesDecrypted.addAndGet(result.bytesProduced());
+					checkFinished(result);
+					return null;
+				}
+			}
+		} finally {
+			netIn.compact();
+			netIn = ensureRemaining(netIn, engine.getSession().getPacketBufferSize() - netIn.position());
+		}
+	}
+
+	private void checkFinished(SSLEngineResult result){
+		if(result.getHandshakeStatus() != HandshakeStatus.FINISHED || handshakeComplete) return;
+		handshakeComplete = true;
+		handshakes.incrementAndGet();
+		if(engine.getSession().getCreationTime() < handshakeStartedAt){ //the session existed before this handshake
+			resumed.incrementAndGet();
+		}
+	}
+
+	private long cpuTime(){
+		return CpuClock.measureCpu ? CpuClock.threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private void account(long startCpu){
+		if(!CpuClock.measureCpu) return;
+		long used = CpuClock.threads.getCurrentThreadCpuTime() - startCpu;
+		if(handshakeComplete){
+			recordCpuNanos.addAndGet(used);
+		} else {
+			handshakeCpuNanos.addAndGet(used);
+		}
+	}
+
+	/**
+	 * Returns a buffer in write mode with at least needed bytes of space, keeping the contents.
+	 */
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed){
+		if(buffer.remaining() >= needed) return buffer;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/**
+	 * @return One line summary of the TLS work done by this process
+	 */
+	public static String getStats(){
+		long count = handshakes.get();
+		return "TLS handshakes=" + count
+				+ " resumed=" + resumed.get()
+				+ " handshakeCpu=" + handshakeCpuNanos.get() / 1000000 + "ms"
+				+ " (avg " + (count == 0 ? 0 : handshakeCpuNanos.get() / count / 1000) + "us)"
+				+ " recordCpu=" + recordCpuNanos.get() / 1000000 + "ms"
+				+ " encrypted=" + bytesEncrypted.get() + "B"
+				+ " decrypted=" + bytesDecrypted.get() + "B";
+	}
+
+	/**
+	 * Holds the thread CPU clock, which loads the management classes. They take tens of milliseconds to load, so they are
+	 * only loaded once TLS is used rather than whenever isEnabled() is asked, which every client does at startup.
+	 */
+	private static class CpuClock {
+		static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		static final boolean measureCpu = threads.isCurrentThreadCpuTimeSupported() && Boolean.parseBoolean(System.getProperty("chatapp.tls.cpustats", "true"));
+	}
+}
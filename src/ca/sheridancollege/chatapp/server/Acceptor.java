@@ -0,0 +1,201 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+
+/**
+ * Acceptor accepts the connections to one port on threads that do nothing else, and hands each one to connect().
+ * Every connection is checked with AdmissionControl first. A connection that is turned away is sent busyResponse(),
+ * which tells the client when to try again, and closed a moment later so the client can read it.
+ *
+ * With more than one acceptor thread each gets its own server socket bound with SO_REUSEPORT, so the system spreads
+ * new connections between them. Where SO_REUSEPORT is not available the threads share one server socket.
+ *
+ * Configured with these properties, shared by every port the server listens on:
+ * chatapp.accept.backlog - connections the system holds until they are accepted, default 1024
+ * chatapp.accept.threads - acceptor threads for each port, default 1
+ *
+ * @author danielnewton
+ *
+ */
+public abstract class Acceptor {
+
+	private static final int BACKLOG = Integer.getInteger("chatapp.accept.backlog", 1024);
+	private static final int THREADS = Math.max(1, Integer.getInteger("chatapp.accept.threads", 1));
+	private static final int SHED_LINGER = 500; //milliseconds a turned away connection is kept open so the client can read the response
+	private static final int MAX_LINGERING = 1024; //beyond this turned away connections are closed at once, they hold file descriptors
+	private static final AtomicLong accepted = new AtomicLong();
+	private static final AtomicLong shed = new AtomicLong();
+	private static final AtomicInteger lingering = new AtomicInteger();
+	private static final ScheduledThreadPoolExecutor closer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ShedCloser");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final String description;
+	private final int port;
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param description What the port is for, used in the log
+	 */
+	protected Acceptor(String description, int port) {
+		this.description = description;
+		this.port = port;
+	}
+
+	/**
+	 * Binds the port and starts the acceptor threads.
+	 * @throws IOException If the port can't be bound
+	 */
+	public void start() throws IOException {
+		boolean reusePort = false;
+		for(int i = 0; i < THREADS; i++){
+			ServerSocket serverSocket = new ServerSocket();
+			SocketTuning.apply(serverSocket);
+			if(THREADS > 1) reusePort = SocketTuning.reusePort(serverSocket);
+			serverSocket.bind(new InetSocketAddress(port), BACKLOG);
+			serverSockets.add(serverSocket);
+			if(!reusePort) break; //the threads share this socket
+		}
+		for(int i = 0; i < THREADS; i++){
+			final ServerSocket serverSocket = serverSockets.get(i % serverSockets.size());
+			Thread acceptor = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					acceptLoop(serverSocket);
+				}
+			}, description + "-Acceptor-" + i);
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+		ChatServer.log(description + " listening on port " + port + " (backlog " + BACKLOG + ", " + THREADS + " acceptor"
+				+ (THREADS > 1 ? "s" + (reusePort ? " with SO_REUSEPORT" : " sharing one socket") : "") + ")");
+	}
+
+	private void acceptLoop(ServerSocket serverSocket){
+		while(!closed){
+			Socket socket;
+			try{
+				socket = serverSocket.accept();
+			} catch (IOException e){
+				if(closed) return;
+				e.printStackTrace(); //out of file descriptors, for example, so wait a moment instead of spinning
+				try{
+					Thread.sleep(100);
+				} catch (InterruptedException ie){
+					return;
+				}
+				continue;
+			}
+			accepted.incrementAndGet();
+			long retryAfter = AdmissionControl.check();
+			if(retryAfter >= 0){
+				shed(socket, retryAfter);
+				continue;
+			}
+			try{
+				connect(socket);
+			} catch (RuntimeException e){
+				e.printStackTrace();
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Takes over an accepted connection, usually by starting a ConnectionThread for it.
+	 */
+	protected abstract void connect(Socket socket);
+
+	/**
+	 * @param retryAfter Milliseconds the client should wait before connecting again
+	 * @return What to send a connection that is turned away, or null to close it without a word
+	 */
+	protected byte[] busyResponse(long retryAfter){
+		if(TlsTransport.isEnabled()) return null; //not worth a TLS handshake
+		Message busy = new Message(MessageContext.SERVER_BUSY, null);
+		busy.setSender(Message.SYSTEM_NAME);
+		busy.setContent(Long.toString(retryAfter));
+		return (busy.encode() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Turns a connection away. The response fits in the socket buffer, so writing it doesn't block.
+	 * Closing the socket at once could reset the connection before the client reads the response, so the output is shut
+	 * and the socket closed SHED_LINGER later.
+	 */
+	private void shed(final Socket socket, long retryAfter){
+		shed.incrementAndGet();
+		byte[] response = busyResponse(retryAfter);
+		if(response == null || lingering.get() >= MAX_LINGERING){
+			close(socket);
+			return;
+		}
+		try{
+			socket.getOutputStream().write(response);
+			socket.shutdownOutput();
+		} catch (IOException e){
+			close(socket);
+			return;
+		}
+		lingering.incrementAndGet();
+		closer.schedule(new Runnable(){
+			@Override
+			public void run() {
+				lingering.decrementAndGet();
+				close(socket);
+			}
+		}, SHED_LINGER, TimeUnit.MILLISECONDS);
+	}
+
+	private static void close(Socket socket){
+		try{
+			socket.close();
+		} catch (IOException e){
+			//already closed
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Connections already accepted carry on.
+	 */
+	public void close(){
+		closed = true;
+		for(ServerSocket serverSocket : serverSockets){
+			try{
+				serverSocket.close();
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return Connections accepted and turned away on every port, used for the server status log
+	 */
+	public static String getStats(){
+		return "ACCEPT accepted=" + accepted.get() + " handshaking=" + ConnectionThread.getHandshaking()
+				+ " timeouts=" + ConnectionThread.getHandshakeTimeouts() + " shed=" + shed.get() + " " + AdmissionControl.getStats();
+	}
+}
@@ -0,0 +1,64 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * AdminEndpoint serves the server's statistics over HTTP for monitoring, on the loopback address only:
+ * -	/stats - the usage analytics report
+ * -	/metrics - the pipeline, lane and heartbeat metrics from the status log
+ * It is turned on with -Dchatapp.admin.port=[port].
+ *
+ * @author danielnewton
+ *
+ */
+class AdminEndpoint {
+
+	private final HttpServer server;
+
+	private AdminEndpoint(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/stats", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String report = ChatServer.getAnalyticsReport();
+				respond(exchange, report == null ? "Analytics are turned off" : report);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, ChatServer.getPipeline().getMetrics() + "\n" + LaneWriter.getMetrics() + "\n" + ConnectionThread.getHeartbeatStats());
+			}
+		});
+	}
+
+	/**
+	 * Starts the endpoint if a port is configured.
+	 * @return The running endpoint, or null if it is not turned on
+	 */
+	static AdminEndpoint startFromProperties() throws IOException {
+		Integer port = Integer.getInteger("chatapp.admin.port");
+		if(port == null) return null;
+		AdminEndpoint endpoint = new AdminEndpoint(port);
+		endpoint.server.start();
+		ChatServer.log("Admin endpoint listening on 127.0.0.1:" + port);
+		return endpoint;
+	}
+
+	private static void respond(HttpExchange exchange, String text) throws IOException {
+		byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(body);
+		}
+	}
+}
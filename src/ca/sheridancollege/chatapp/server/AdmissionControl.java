@@ -0,0 +1,93 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionControl decides whether the server can take another connection. When it is past one of its limits new connections
+ * are turned away with a hint of when to try again, so a reconnect storm slows down instead of starving the clients already connected.
+ * The hints are spread between half and one and a half times RETRY_AFTER so the clients that were turned away don't all come back at once.
+ *
+ * The heap is measured as it was after the last garbage collection, so garbage waiting to be collected doesn't count.
+ *
+ * Configured with these properties:
+ * chatapp.admission.connections - most open connections, 0 for no limit (the default)
+ * chatapp.admission.handshakes - most connections that have not picked a name yet, default 1000
+ * chatapp.admission.heap - largest fraction of the heap in use, default 0.9
+ * chatapp.admission.retry - how long clients that are turned away are asked to wait in milliseconds, default 5000
+ *
+ * @author danielnewton
+ *
+ */
+class AdmissionControl {
+
+	private static final int MAX_CONNECTIONS = Integer.getInteger("chatapp.admission.connections", 0);
+	private static final int MAX_HANDSHAKES = Integer.getInteger("chatapp.admission.handshakes", 1000);
+	private static final double MAX_HEAP = Double.parseDouble(System.getProperty("chatapp.admission.heap", "0.9"));
+	private static final int RETRY_AFTER = Integer.getInteger("chatapp.admission.retry", 5000);
+	private static final long HEAP_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); //the memory beans are too slow to ask on every accept
+	private static final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+	private static final AtomicLong shedConnections = new AtomicLong();
+	private static final AtomicLong shedHandshakes = new AtomicLong();
+	private static final AtomicLong shedMemory = new AtomicLong();
+	private static volatile long lastHeapCheck = System.nanoTime() - HEAP_CHECK_INTERVAL;
+	private static volatile double heapUsed = 0;
+
+	static{
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType() == MemoryType.HEAP) heapPools.add(pool);
+		}
+	}
+
+	private AdmissionControl(){
+	}
+
+	/**
+	 * @return -1 to let the connection in, otherwise how long it should wait before trying again in milliseconds
+	 */
+	static long check(){
+		if(MAX_CONNECTIONS > 0 && ResourceTracker.getOpenConnections() >= MAX_CONNECTIONS){
+			shedConnections.incrementAndGet();
+		} else if(ConnectionThread.getHandshaking() >= MAX_HANDSHAKES){
+			shedHandshakes.incrementAndGet();
+		} else if(getHeapUsed() >= MAX_HEAP){
+			shedMemory.incrementAndGet();
+		} else {
+			return -1;
+		}
+		return RETRY_AFTER / 2 + ThreadLocalRandom.current().nextLong(RETRY_AFTER + 1);
+	}
+
+	/**
+	 * @return The fraction of the heap in use after the last collection, measured at most every HEAP_CHECK_INTERVAL
+	 */
+	static double getHeapUsed(){
+		long now = System.nanoTime();
+		if(now - lastHeapCheck >= HEAP_CHECK_INTERVAL){
+			lastHeapCheck = now;
+			long used = 0;
+			for(MemoryPoolMXBean pool : heapPools){
+				MemoryUsage usage = pool.getCollectionUsage();
+				if(usage == null) usage = pool.getUsage(); //the pool is not collected
+				used += usage.getUsed();
+			}
+			heapUsed = used / (double) Runtime.getRuntime().maxMemory();
+		}
+		return heapUsed;
+	}
+
+	/**
+	 * @return Connections turned away for each limit, used for the server status log
+	 */
+	static String getStats(){
+		return "(connections=" + shedConnections.get() + " handshakes=" + shedHandshakes.get() + " memory=" + shedMemory.get()
+				+ ") heap=" + Math.round(getHeapUsed() * 100) + "%";
+	}
+}
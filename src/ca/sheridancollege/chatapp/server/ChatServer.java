@@ -1,22 +1,42 @@
 package ca.sheridancollege.chatapp.server;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ca.sheridancollege.chatapp.common.Message;
 import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+import ca.sheridancollege.chatapp.server.analytics.UsageAnalytics;
+import ca.sheridancollege.chatapp.server.attachment.Attachment;
+import ca.sheridancollege.chatapp.server.attachment.AttachmentListener;
+import ca.sheridancollege.chatapp.server.attachment.AttachmentStore;
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture;
+import ca.sheridancollege.chatapp.server.dedupe.DuplicateFilter;
+import ca.sheridancollege.chatapp.server.dm.ConversationStore;
+import ca.sheridancollege.chatapp.server.filter.ContentFilter;
+import ca.sheridancollege.chatapp.server.multiplex.MultiplexListener;
+import ca.sheridancollege.chatapp.server.presence.EphemeralEvents;
+import ca.sheridancollege.chatapp.server.receipts.ReceiptTracker;
+import ca.sheridancollege.chatapp.server.search.IndexedMessage;
+import ca.sheridancollege.chatapp.server.search.SearchIndex;
+import ca.sheridancollege.chatapp.server.websocket.WebSocketListener;
 
 /**
  * ChatServer is the entrypoint to start the server.
  * The server will wait for connections until somebody connects to it.
- * After having that initial connection established the server will close itself the next time it times out waiting for a connection.
+ * After having that initial connection established the server will close itself the next time its status check finds nobody connected.
+ * Connections are accepted by an Acceptor on threads of their own, the main thread only runs the status check.
  * 
  * @author danielnewton
  *
@@ -27,15 +47,53 @@ public class ChatServer {
 		RUNNING_PENDING, RUNNING, CLOSE
 	}
 	
-	private static ServerState state = ServerState.RUNNING_PENDING;
+	private static volatile ServerState state = ServerState.RUNNING_PENDING;
 	
 	private final static DateFormat df = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
 	private final int PORT = 60000;
-	private ServerSocket serverSocket = null;
-	private static ArrayList<String> clientNames = new ArrayList<String>();
-	private static ArrayList<PrintWriter> clientOutputs = new ArrayList<PrintWriter>();
-	private final int CONN_TIMEOUT = 10000;
+	private Acceptor acceptor = null;
+	private static SearchIndex searchIndex = SearchIndex.fromProperties();
+	private static MessagePipeline pipeline = new MessagePipeline();
+	private static NameTrie nameTrie = new NameTrie();
+	private static SessionStore sessions = new SessionStore();
+	private static ClientRegistry registry = ClientRegistry.fromProperties(sessions, nameTrie);
+	private static AttachmentListener attachments = null; //null when attachments are turned off
+	private static UsageAnalytics analytics = null; //null when analytics are turned off
+	private static TrafficCapture capture = null; //null unless traffic is being captured
+	private static DuplicateFilter dedupe = null; //null when deduplication is turned off
+	private static ConversationStore conversations = null; //null when direct messages are not kept
+	private static ReceiptTracker receipts = null; //null when receipts are turned off
+	private static EphemeralEvents ephemeral = EphemeralEvents.fromProperties();
+	public static final int MAX_COMPLETIONS = 10;
+	private final int STATUS_INTERVAL = 10000;
 	private String lastStatusUpdate = "";
+	private long lastPipelineCount = 0;
+	private String lastTlsStats = "";
+	private int lastOpenConnections = 0;
+	private String lastCaptureStats = "";
+	private String lastAcceptStats = "";
+	private String lastEphemeralStats = "";
+	private String lastDedupeStats = "";
+	private String lastConversationStats = "";
+	private String lastReceiptStats = "";
+	private String lastRegistryStats = "";
+	private String lastHeartbeatStats = "";
+	private String lastAnalyticsSummary = "";
+	/*
+	 * With -Dchatapp.snapshot.file=[path] the sessions and the newest SNAPSHOT_HISTORY broadcasts are saved every SNAPSHOT_INTERVAL
+	 * (when something changed) and when the server stops, and loaded again when it starts.
+	 * Restored sessions keep their names for SESSION_GRACE while their clients reconnect.
+	 * When the server stops, clients are told to wait a different time within RESTART_WINDOW before reconnecting.
+	 */
+	private static final String SNAPSHOT_FILE = System.getProperty("chatapp.snapshot.file");
+	private final int SNAPSHOT_INTERVAL = Integer.getInteger("chatapp.snapshot.interval", 30000);
+	private static final int SNAPSHOT_HISTORY = Integer.getInteger("chatapp.snapshot.history", 10000);
+	private final int SESSION_GRACE = Integer.getInteger("chatapp.snapshot.grace", 60000);
+	private static final int RESTART_WINDOW = Integer.getInteger("chatapp.restart.window", 1000);
+	private static final int REPLAY_LIMIT = 100; //most missed broadcasts sent to a client that resumes its session
+	private static final Object snapshotLock = new Object();
+	private static final AtomicLong stateVersion = new AtomicLong(); //changes whenever there is something new to snapshot
+	private long lastSnapshotVersion = 0;
 	
 	/**
 	 * Starts the server.
@@ -43,26 +101,99 @@ public class ChatServer {
 	 */
 	private void serverStart() {
 		try {
-			serverSocket = new ServerSocket(PORT);
-			serverSocket.setSoTimeout(CONN_TIMEOUT);
+			restoreSnapshot();
+			searchIndex.start();
+			startSnapshots();
+			dedupe = DuplicateFilter.fromProperties();
+			if(dedupe != null){
+				pipeline.addInterceptor(dedupe); //first, so a message sent twice is filtered and counted once
+			}
+			ContentFilter filter = ContentFilter.fromProperties();
+			if(filter != null){
+				pipeline.addInterceptor(filter);
+			}
+			receipts = ReceiptTracker.fromProperties();
+			analytics = UsageAnalytics.fromProperties();
+			if(analytics != null){
+				pipeline.addInterceptor(analytics); //after the filter, so rejected messages are not counted
+			}
+			AdminEndpoint.startFromProperties();
+			capture = TrafficCapture.fromProperties();
+			if(capture != null) log("Capturing traffic to " + System.getProperty("chatapp.capture.file"));
+			startListener(WebSocketListener.fromProperties());
+			startListener(MultiplexListener.fromProperties());
+			startAttachments();
+			startConversations();
 
-			log("Server started");
+			acceptor = new Acceptor("Chat", PORT){
+				@Override
+				protected void connect(Socket socket) {
+					new ConnectionThread(socket).start();
+				}
+			};
+			acceptor.start();
+			log("Server started" + (TlsTransport.isEnabled() ? " with TLS" : ""));
 			while (true) {
-				try {
-					if(state == ServerState.CLOSE) return;
-					Socket clientSocket = serverSocket.accept();
-					ConnectionThread clientConnection = new ConnectionThread(clientSocket);
-					clientConnection.start();
-				} catch (SocketTimeoutException ste) {
-					if(state == ServerState.RUNNING && getNumConnections() == 0){
-						state = ServerState.CLOSE;
-					}
-					String status = "STATUS UPDATE: " + state.name() + " --- " + getNumConnections() + " connections";
-					if(!status.equals(lastStatusUpdate)){ //only log status update on change
-						lastStatusUpdate = status;
-						log("STATUS UPDATE: " + state.name() + " --- " + getNumConnections() + " connections");
-					}
+				Thread.sleep(STATUS_INTERVAL);
+				if(state == ServerState.RUNNING && getNumConnections() == 0){
+					state = ServerState.CLOSE;
+				}
+				String status = "STATUS UPDATE: " + state.name() + " --- " + getNumConnections() + " connections";
+				if(!status.equals(lastStatusUpdate)){ //only log status update on change
+					lastStatusUpdate = status;
+					log("STATUS UPDATE: " + state.name() + " --- " + getNumConnections() + " connections");
+				}
+				long pipelineCount = pipeline.getProcessed(MessagePipeline.Stage.DECODE);
+				if(pipelineCount != lastPipelineCount){ //only log pipeline metrics when there has been traffic
+					lastPipelineCount = pipelineCount;
+					log(pipeline.getMetrics());
+					log(LaneWriter.getMetrics());
+				}
+				if(analytics != null && !analytics.getSummary().equals(lastAnalyticsSummary)){
+					lastAnalyticsSummary = analytics.getSummary();
+					log(lastAnalyticsSummary);
+				}
+				if(!ConnectionThread.getHeartbeatStats().equals(lastHeartbeatStats)){
+					lastHeartbeatStats = ConnectionThread.getHeartbeatStats();
+					log(lastHeartbeatStats);
+				}
+				if(TlsTransport.isEnabled() && !TlsTransport.getStats().equals(lastTlsStats)){
+					lastTlsStats = TlsTransport.getStats();
+					log(lastTlsStats);
+				}
+				if(dedupe != null && !dedupe.getStats().equals(lastDedupeStats)){
+					lastDedupeStats = dedupe.getStats();
+					log(lastDedupeStats);
+				}
+				if(!registry.getStats().equals(lastRegistryStats)){
+					lastRegistryStats = registry.getStats();
+					log(lastRegistryStats);
+				}
+				if(conversations != null && !conversations.getStats().equals(lastConversationStats)){
+					lastConversationStats = conversations.getStats();
+					log(lastConversationStats);
+				}
+				if(receipts != null && !receipts.getStats().equals(lastReceiptStats)){
+					lastReceiptStats = receipts.getStats();
+					log(lastReceiptStats);
+				}
+				if(capture != null && !capture.getStats().equals(lastCaptureStats)){
+					lastCaptureStats = capture.getStats();
+					log(lastCaptureStats);
+				}
+				if(!ephemeral.getStats().equals(lastEphemeralStats)){
+					lastEphemeralStats = ephemeral.getStats();
+					log(lastEphemeralStats);
+				}
+				if(!Acceptor.getStats().equals(lastAcceptStats)){
+					lastAcceptStats = Acceptor.getStats();
+					log(lastAcceptStats);
 				}
+				if(ResourceTracker.checkLeaks() > 0 || ResourceTracker.getOpenConnections() != lastOpenConnections){
+					lastOpenConnections = ResourceTracker.getOpenConnections();
+					log(ResourceTracker.getStats());
+				}
+				if(state == ServerState.CLOSE) return;
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -72,16 +203,142 @@ public class ChatServer {
 	}
 	
 	/**
-	 * Close the server socket resource.
-	 * Attempt to force close all running threads.
+	 * Stops accepting connections.
 	 */
 	private synchronized void close(){
+		if(acceptor != null) acceptor.close();
+		log("Server Closed");
+	}
+
+	/**
+	 * Starts accepting connections on another port. The server carries on without it if the port can't be bound.
+	 */
+	private void startListener(Acceptor listener){
+		if(listener == null) return;
 		try{
-			serverSocket.close();
-		} catch (Exception e){
+			listener.start();
+		} catch (IOException e){
 			e.printStackTrace();
 		}
-		log("Server Closed");
+	}
+
+	/**
+	 * Starts accepting file transfers, unless attachments are turned off.
+	 */
+	private void startAttachments(){
+		try{
+			AttachmentListener listener = AttachmentListener.fromProperties(AttachmentStore.fromProperties());
+			if(listener == null) return;
+			listener.start();
+			attachments = listener;
+		} catch (IOException e){
+			log("Attachments are turned off, the spool folder could not be created: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts keeping direct messages, unless that is turned off.
+	 */
+	private void startConversations(){
+		try{
+			conversations = ConversationStore.fromProperties();
+		} catch (IOException e){
+			log("Direct messages won't be kept, the folder could not be created: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the snapshot saved by the previous run, if there is one.
+	 */
+	private void restoreSnapshot(){
+		if(SNAPSHOT_FILE == null || !Files.exists(Paths.get(SNAPSHOT_FILE))) return;
+		try{
+			long start = System.currentTimeMillis();
+			ServerSnapshot snapshot = ServerSnapshot.read(Paths.get(SNAPSHOT_FILE));
+			searchIndex.restore(snapshot.getHistory());
+			sessions.restore(snapshot.getSessions(), SESSION_GRACE);
+			log("Restored " + snapshot.getSessions().size() + " sessions and " + snapshot.getHistory().size()
+					+ " messages from the snapshot in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e){
+			log("Could not restore the snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts saving snapshots in the background and, if they are on, prepares the clients for a restart when the server is stopped.
+	 */
+	private void startSnapshots(){
+		if(SNAPSHOT_FILE != null){
+			Thread snapshots = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						while(true){
+							Thread.sleep(SNAPSHOT_INTERVAL);
+							long version = stateVersion.get();
+							if(version != lastSnapshotVersion){ //only save when something changed
+								lastSnapshotVersion = version;
+								writeSnapshot();
+							}
+						}
+					} catch (InterruptedException e){
+						//server is shutting down
+					}
+				}
+			}, "Snapshots");
+			snapshots.setDaemon(true);
+			snapshots.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			@Override
+			public void run() {
+				if(SNAPSHOT_FILE != null) prepareRestart(); //without a snapshot there is no session to come back to
+				if(capture != null) capture.close(); //write the end of the capture
+			}
+		}, "PrepareRestart"));
+	}
+
+	/**
+	 * Saves the sessions and the newest broadcasts. Only the session list is copied under the session store's lock,
+	 * the history comes from the immutable search segments, so chat carries on while the file is written.
+	 */
+	private static void writeSnapshot(){
+		if(SNAPSHOT_FILE == null) return;
+		synchronized(snapshotLock){
+			List<SessionStore.Session> current = sessions.getSessions();
+			Path file = Paths.get(SNAPSHOT_FILE);
+			try{
+				new ServerSnapshot(System.currentTimeMillis(), current, searchIndex.recent(Long.MIN_VALUE, SNAPSHOT_HISTORY)).write(file);
+			} catch (IOException e){
+				log("Could not write the snapshot: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Runs when the server is stopped. Saves a final snapshot and tells every client how long to wait before reconnecting,
+	 * spreading them over RESTART_WINDOW so the restarted server isn't hit by every client at once.
+	 */
+	private static void prepareRestart(){
+		writeSnapshot();
+		PrintWriter[] outputs = registry.outputs();
+		if(outputs.length == 0) return;
+		long slot = Math.max(1, RESTART_WINDOW / outputs.length);
+		for(int i = 0; i < outputs.length; i++){
+			Message hint = new Message(MessageContext.SERVER_RESTART, outputs[i]);
+			hint.setSender(Message.SYSTEM_NAME);
+			hint.setContent(Long.toString(i * slot + ThreadLocalRandom.current().nextLong(slot)));
+			hint.send();
+		}
+		long deadline = System.currentTimeMillis() + 500;
+		try{
+			for(PrintWriter o : outputs){ //give the hints a moment to go out before the process exits
+				if(o instanceof LaneWriter) ((LaneWriter) o).awaitDrained(Math.max(0, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e){
+			//exit now
+		}
+		log("Told " + outputs.length + " clients to reconnect within " + RESTART_WINDOW + "ms");
 	}
 
 	/**
@@ -91,12 +348,26 @@ public class ChatServer {
 		new ChatServer().serverStart();
 	}
 
-	private synchronized static int getNumConnections(){
-		return clientNames.size();
+	private static int getNumConnections(){
+		return registry.size();
+	}
+
+	/**
+	 * @return true if messages are still being sent to the writer, used to find connections that closed without leaving the registry
+	 */
+	static boolean isRegistered(PrintWriter out){
+		return registry.containsOutput(out);
+	}
+
+	/**
+	 * @return true if a client with the name is connected
+	 */
+	public static boolean isOnline(String name){
+		return registry.contains(name);
 	}
 	
-	public synchronized static String[] getClientNames(){
-		return clientNames.toArray(new String[0]);
+	public static String[] getClientNames(){
+		return registry.names();
 	}
 	
 	/**
@@ -105,14 +376,14 @@ public class ChatServer {
 	 * @param connection The ConnectionThread managing the connection to the client
 	 * @return Success
 	 */
-	public synchronized static boolean registerClient(String name, PrintWriter out){
+	public static boolean registerClient(String name, PrintWriter out){
 		try{
 			state = ServerState.RUNNING;
-			if(clientNames.contains(name)){ //name is not unique
+			if(!registry.add(name, out)){ //name is not unique or is waiting for its session to resume
 				return false; 
 			}
-			clientNames.add(name);
-			clientOutputs.add(out);
+			if(receipts != null) receipts.joined(name);
+			stateVersion.incrementAndGet();
 			log("Established connection with: " + name);
 			return true;
 		}catch(Exception e){
@@ -121,11 +392,45 @@ public class ChatServer {
 		}
 	}
 	
-	public synchronized static void closeConnection(String name){
-		if(clientNames.contains(name)){
-			int i = clientNames.indexOf(name);
-			clientNames.remove(i);
-			clientOutputs.remove(i);
+	/**
+	 * Gives a reconnecting client back the name of a session that was restored from the snapshot.
+	 * @return The session, or null if there is no such session to resume
+	 */
+	static SessionStore.Session resumeSession(String token, PrintWriter out){
+		SessionStore.Session session = registry.resume(token, out);
+		if(session == null) return null;
+		state = ServerState.RUNNING;
+		if(receipts != null) receipts.joined(session.name);
+		stateVersion.incrementAndGet();
+		log("Resumed the session of: " + session.name);
+		return session;
+	}
+
+	/**
+	 * @return The session token of an online client, or null
+	 */
+	static String getSessionToken(String name){
+		return sessions.getToken(name);
+	}
+
+	/**
+	 * Sends a client the broadcasts it missed while it was away, oldest first.
+	 * @param after When the client was last connected
+	 * @param until When it was registered again, later broadcasts have already been sent to it
+	 */
+	static void replayHistory(PrintWriter out, long after, long until){
+		for(IndexedMessage m : searchIndex.recent(after, until, REPLAY_LIMIT)){
+			Message missed = new Message(MessageContext.SEND_BROADCAST, out);
+			missed.setSender(m.getSender());
+			missed.setContent(m.getContent());
+			missed.send();
+		}
+	}
+
+	public static void closeConnection(String name){
+		if(registry.remove(name)){
+			if(receipts != null) receipts.left(name);
+			stateVersion.incrementAndGet();
 			
 			Message outgoing = new Message(MessageContext.SEND_BROADCAST, null);
 			outgoing.setSender(Message.SYSTEM_NAME);
@@ -142,12 +447,15 @@ public class ChatServer {
 	 * @param newn New name
 	 * @return success
 	 */
-	public synchronized static boolean changeClientName(String oldn, String newn){
-		if(clientNames.contains(newn) || !clientNames.contains(oldn)){ //new name is not unique or old name does not exist
+	public static boolean changeClientName(String oldn, String newn){
+		if(!registry.rename(oldn, newn)){ //new name is not unique or old name does not exist
 			return false;
 		}
-		int i = clientNames.indexOf(oldn);
-		clientNames.set(i, newn);
+		if(receipts != null){ //counting starts again under the new name
+			receipts.left(oldn);
+			receipts.joined(newn);
+		}
+		stateVersion.incrementAndGet();
 		log("Client " + oldn + " has changed their name to: " + newn);
 		return true;
 	}
@@ -155,30 +463,223 @@ public class ChatServer {
 	/**
 	 * Sends a message to all clients if Message is a broadcast.
 	 * If the message is addressed then it is sent only to the addressee.
+	 * Attachments and ephemeral events go to their addressee, or to everyone when they don't have one. Receipt counts go to their addressee.
+	 * Chat from clients is given its sequence number for receipts here, and loses the id its sender gave it.
+	 * The recipients are looked up in the registry without taking a lock, the encoding and writing happen in the pipeline.
 	 * @param message The Message to be sent
 	 */
-	public synchronized static void sendMessage(Message message){
+	public static void sendMessage(Message message){
 		try{
-			//HashMap<String, ConnectionThread> clients = INSTANCE.getClients();
-			if(message.getContext() == MessageContext.SEND_BROADCAST){
-				for(PrintWriter o : clientOutputs){
-					message.setOut(o);
-					message.send();
+			long sent = System.currentTimeMillis(); //no later than the recipients are read, which is what a resumed client replays by
+			PrintWriter[] recipients = new PrintWriter[0];
+			boolean either = message.getContext() == MessageContext.ATTACHMENT_READY
+					|| message.getContext() == MessageContext.TYPING || message.getContext() == MessageContext.PRESENCE;
+			if(message.getContext() == MessageContext.SEND_BROADCAST || (either && message.getAddressee() == null)){
+				if(message.getContext() == MessageContext.TYPING){ //nobody needs to see themselves typing
+					recipients = registry.outputsExcept(registry.get(message.getSender()));
+				} else {
+					recipients = registry.outputs();
 				}
 			}
-			if(message.getContext() == MessageContext.SEND_ADDRESSED){
-				String clientName = message.getAddressee();
-				if(clientNames.contains(clientName)){
-					int i = clientNames.indexOf(clientName);
-					message.setOut(clientOutputs.get(i));
-					message.send();
+			if(message.getContext() == MessageContext.SEND_ADDRESSED || message.getContext() == MessageContext.MENTION || message.getContext() == MessageContext.RECEIPT
+					|| (either && message.getAddressee() != null)){
+				PrintWriter addressee = registry.get(message.getAddressee());
+				if(addressee != null){
+					recipients = new PrintWriter[]{ addressee };
 				}
 			}
+			if(message.getContext() == MessageContext.SEND_BROADCAST || message.getContext() == MessageContext.SEND_ADDRESSED){
+				ephemeral.chatSent(message.getSender(), message.getAddressee()); //the message replaces the typing indicator
+				if(receipts != null && recipients.length > 0 && message.getSender() != null && !Message.SYSTEM_NAME.equals(message.getSender())){
+					boolean broadcast = message.getContext() == MessageContext.SEND_BROADCAST;
+					int others = broadcast && registry.contains(message.getSender()) ? recipients.length - 1 : recipients.length; //broadcasts go back to their sender too
+					receipts.sent(message, others);
+				}
+				message.setId(null); //only the sender knows what it means
+			}
+			pipeline.deliver(message, recipients);
+			if(message.getContext() == MessageContext.SEND_ADDRESSED && recipients.length > 0 && conversations != null
+					&& message.getSender() != null && !Message.SYSTEM_NAME.equals(message.getSender())){ //only what was delivered
+				conversations.append(message.getSender(), message.getAddressee(), message.getContent());
+			}
+			if(message.getContext() == MessageContext.SEND_BROADCAST && !Message.SYSTEM_NAME.equals(message.getSender())){ //only chat is searchable
+				searchIndex.submit(message.getSender(), message.getContent(), sent);
+				stateVersion.incrementAndGet();
+				notifyMentions(message);
+			}
 		}catch(Exception e){
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Makes room for a file a client wants to send.
+	 * @param addressee The client the file is for, or null for everyone
+	 * @return The attachment to upload to, or null if attachments are off, the file is too big or over quota, or the addressee is not online
+	 */
+	static Attachment offerAttachment(String sender, String addressee, String fileName, long size){
+		if(attachments == null) return null;
+		if(addressee != null && !registry.contains(addressee)) return null;
+		return attachments.getStore().offer(sender, addressee, fileName, size);
+	}
+
+	/**
+	 * @return The port files are uploaded and downloaded on, -1 when attachments are off
+	 */
+	static int getAttachmentPort(){
+		return attachments == null ? -1 : attachments.getPort();
+	}
+
+	/**
+	 * Tells the recipients of a file that has finished uploading how to download it.
+	 */
+	public static void shareAttachment(Attachment attachment){
+		Message ready = new Message(MessageContext.ATTACHMENT_READY, null);
+		ready.setSender(attachment.getSender());
+		ready.setAddressee(attachment.getAddressee());
+		ready.setContent(attachment.getId() + "\n" + attachment.getSize() + "\n" + getAttachmentPort() + "\n" + attachment.getFileName());
+		sendMessage(ready);
+		log(attachment.getSender() + " shared " + attachment.getFileName() + " (" + attachment.getSize() + " bytes)");
+	}
+	
+	/**
+	 * Sends a MENTION to every online client that is mentioned as @name in a broadcast.
+	 */
+	private static void notifyMentions(Message broadcast){
+		for(String name : nameTrie.findMentions(broadcast.getContent())){
+			if(name.equals(broadcast.getSender())) continue; //no need to tell people they mentioned themselves
+			Message mention = new Message(MessageContext.MENTION, null);
+			mention.setSender(Message.SYSTEM_NAME);
+			mention.setAddressee(name);
+			mention.setContent(broadcast.getSender() + " mentioned you: " + broadcast.getContent());
+			sendMessage(mention);
+		}
+	}
+	
+	/**
+	 * Returns the online names that start with prefix, formatted like the GETNAMES list.
+	 * @param prefix Start of the name
+	 * @return Up to MAX_COMPLETIONS names in alphabetical order
+	 */
+	public static String completeName(String prefix){
+		StringBuilder content = new StringBuilder("\n" + Message.COMPLETE_NAMES_HEADER);
+		for(String name : nameTrie.complete(prefix, MAX_COMPLETIONS)){
+			content.append("\n");
+			content.append(name);
+		}
+		return content.toString();
+	}
+	
+	/**
+	 * @return The pipeline that every message received by the server goes through
+	 */
+	public static MessagePipeline getPipeline(){
+		return pipeline;
+	}
+	
+	/**
+	 * Hands a typing indicator or presence change to EphemeralEvents, which sends the latest one at the end of its window.
+	 */
+	static void publishEphemeral(String sender, Message incoming){
+		ephemeral.publish(sender, incoming);
+	}
+
+	/**
+	 * Called once a message from a client has been routed, ACKs it if the client gave it an id.
+	 */
+	static void routed(ConnectionThread connection, Message message){
+		if(dedupe != null) dedupe.routed(connection, message);
+	}
+
+	/**
+	 * Merges the watermarks a client has sent in a RECEIPT, the counts are sent to the senders at the end of the window.
+	 */
+	static void receipt(String name, String content){
+		if(receipts != null) receipts.receipt(name, content);
+	}
+
+	/**
+	 * @return The capture recording what clients send, or null if traffic is not being captured
+	 */
+	static TrafficCapture getCapture(){
+		return capture;
+	}
+
+	/**
+	 * @return The usage analytics report, or null if analytics are turned off
+	 */
+	static String getAnalyticsReport(){
+		return analytics == null ? null : analytics.getReport();
+	}
+	
+	/**
+	 * Searches the broadcast history. See SearchIndex for the query syntax.
+	 * @param query The search query
+	 * @return The newest matching messages formatted for display, one per line
+	 */
+	public static String searchHistory(String query){
+		List<IndexedMessage> results = searchIndex.search(query, SearchIndex.DEFAULT_RESULTS);
+		DateFormat format = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss"); //df is shared between threads
+		StringBuilder content = new StringBuilder("\n" + Message.SEARCH_HEADER);
+		if(results.isEmpty()){
+			content.append("\nNo messages found");
+		}
+		for(IndexedMessage m : results){
+			content.append("\n[");
+			content.append(format.format(new Date(m.getTimestamp())));
+			content.append("] ");
+			content.append(m.getSender());
+			content.append(": ");
+			content.append(m.getContent());
+		}
+		return content.toString();
+	}
+	
+	/**
+	 * Reads a page of the direct messages between two clients.
+	 * @param name The client asking
+	 * @param other The client they were talking to
+	 * @param cursor Where the page ends, from the previous page. Empty for the newest page
+	 * @return The messages formatted for display, oldest first, followed by the command for the page before
+	 */
+	public static String conversationHistory(String name, String other, String cursor){
+		StringBuilder content = new StringBuilder("\n" + Message.HISTORY_HEADER + other + ":");
+		if(conversations == null || other == null){
+			content.append("\nDirect messages are not kept");
+			return content.toString();
+		}
+		long before = -1;
+		try{
+			if(cursor != null && !cursor.trim().isEmpty()) before = Long.parseLong(cursor.trim());
+		} catch (NumberFormatException e){
+			//not a cursor, start from the newest page
+		}
+		ConversationStore.Page page;
+		try{
+			page = conversations.page(name, other, before);
+		} catch (IOException e){
+			e.printStackTrace();
+			content.append("\nThe history could not be read");
+			return content.toString();
+		}
+		DateFormat format = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss"); //df is shared between threads
+		if(page.getMessages().isEmpty()){
+			content.append("\nNo messages found");
+		}
+		for(IndexedMessage m : page.getMessages()){
+			content.append("\n[");
+			content.append(format.format(new Date(m.getTimestamp())));
+			content.append("] ");
+			content.append(m.getSender());
+			content.append(": ");
+			content.append(m.getContent());
+		}
+		if(page.getOlder() >= 0){
+			content.append("\nOlder messages: HISTORY:" + other + ":" + page.getOlder());
+		}
+		return content.toString();
+	}
+	
 	/*
 	protected HashMap<String, ConnectionThread> getClients(){
 		return clients;
@@ -0,0 +1,225 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.sheridancollege.chatapp.server.analytics.Hash64;
+
+/**
+ * ClientRegistry holds the online clients, by name, and keeps their sessions and the name trie in step with them.
+ *
+ * It is split into shards and every name lives on the shard its hash picks, so joining, leaving and renaming only lock the shard of
+ * the name (both shards for a rename, taken in order) and clients on different shards never wait for each other.
+ * SessionStore and NameTrie have no locks of their own, so they don't bring back a lock that every change takes:
+ * the shard lock keeps each name's changes to them in order.
+ * Finding recipients, which every message does, takes no lock at all: a client is looked up in its shard's concurrent map, and
+ * every change publishes a new copy of the shard's writers, so a broadcast reads each shard's copy in turn.
+ * Clients join and leave far less often than they send messages, so copying one shard on each change is cheap.
+ *
+ * Configured with chatapp.shards, the number of shards, by default the number of processors.
+ *
+ * @author danielnewton
+ *
+ */
+class ClientRegistry {
+
+	private final Shard[] shards;
+	private final ConcurrentHashMap<PrintWriter, String> writers = new ConcurrentHashMap<PrintWriter, String>(); //writer -> name, to check a writer in one lookup
+	private final SessionStore sessions;
+	private final NameTrie trie;
+
+	ClientRegistry(int shardCount, SessionStore sessions, NameTrie trie) {
+		this.shards = new Shard[Math.max(1, shardCount)];
+		for(int i = 0; i < shards.length; i++){
+			shards[i] = new Shard();
+		}
+		this.sessions = sessions;
+		this.trie = trie;
+	}
+
+	static ClientRegistry fromProperties(SessionStore sessions, NameTrie trie){
+		return new ClientRegistry(Integer.getInteger("chatapp.shards", Runtime.getRuntime().availableProcessors()), sessions, trie);
+	}
+
+	private int shardIndex(String name){
+		return (int) ((Hash64.of(name) >>> 1) % shards.length);
+	}
+
+	private Shard shardOf(String name){
+		return shards[shardIndex(name)];
+	}
+
+	/**
+	 * Adds a client and opens its session.
+	 * @return false if the name is taken, or is waiting for its session to be resumed
+	 */
+	boolean add(String name, PrintWriter out){
+		Shard shard = shardOf(name);
+		synchronized(shard){
+			if(shard.clients.containsKey(name) || sessions.isReserved(name)) return false;
+			shard.clients.put(name, out);
+			writers.put(out, name);
+			sessions.open(name);
+			trie.add(name); //under the shard lock, so the trie sees a name join and leave in the same order the registry does
+			shard.publish();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a client under the name of a session restored from a snapshot.
+	 * @return The session, or null if there is no such session to resume
+	 */
+	SessionStore.Session resume(String token, PrintWriter out){
+		String name = sessions.getReservedName(token);
+		if(name == null) return null;
+		Shard shard = shardOf(name);
+		synchronized(shard){
+			SessionStore.Session session = sessions.resume(token); //reserved names can't be taken, so the name is still free
+			if(session == null) return null;
+			shard.clients.put(session.name, out);
+			writers.put(out, session.name);
+			trie.add(session.name);
+			shard.publish();
+			return session;
+		}
+	}
+
+	/**
+	 * Removes a client and closes its session.
+	 * @return false if there was no such client
+	 */
+	boolean remove(String name){
+		Shard shard = shardOf(name);
+		synchronized(shard){
+			PrintWriter out = shard.clients.remove(name);
+			if(out == null) return false;
+			writers.remove(out, name);
+			sessions.close(name);
+			trie.remove(name);
+			shard.publish();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves a client to a new name, which may live on another shard.
+	 * @return false if the new name is taken or reserved, or the old name is not online
+	 */
+	boolean rename(String oldName, String newName){
+		int from = shardIndex(oldName);
+		int to = shardIndex(newName);
+		Shard first = shards[Math.min(from, to)]; //always locked in the same order, so two renames can't deadlock
+		Shard second = shards[Math.max(from, to)];
+		synchronized(first){
+			synchronized(second){
+				Shard oldShard = shards[from];
+				Shard newShard = shards[to];
+				if(newShard.clients.containsKey(newName) || !oldShard.clients.containsKey(oldName) || sessions.isReserved(newName)) return false;
+				PrintWriter out = oldShard.clients.remove(oldName);
+				newShard.clients.put(newName, out);
+				writers.put(out, newName);
+				sessions.rename(oldName, newName);
+				trie.remove(oldName);
+				trie.add(newName);
+				oldShard.publish();
+				if(newShard != oldShard) newShard.publish();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The writer of an online client, or null
+	 */
+	PrintWriter get(String name){
+		return name == null ? null : shardOf(name).clients.get(name);
+	}
+
+	boolean contains(String name){
+		return get(name) != null;
+	}
+
+	/**
+	 * @return The writers of every online client
+	 */
+	PrintWriter[] outputs(){
+		return outputsExcept(null);
+	}
+
+	/**
+	 * @return The writers of every online client but one
+	 * @param except The writer to leave out, or null for none
+	 */
+	PrintWriter[] outputsExcept(PrintWriter except){
+		PrintWriter[][] copies = new PrintWriter[shards.length][];
+		int total = 0;
+		for(int i = 0; i < shards.length; i++){
+			copies[i] = shards[i].outputs;
+			total += copies[i].length;
+		}
+		PrintWriter[] all = new PrintWriter[total];
+		int n = 0;
+		for(PrintWriter[] copy : copies){
+			for(PrintWriter out : copy){
+				if(out != except) all[n++] = out;
+			}
+		}
+		return n == total ? all : Arrays.copyOf(all, n);
+	}
+
+	/**
+	 * @return The names of every online client in alphabetical order
+	 */
+	String[] names(){
+		List<String> names = new ArrayList<String>();
+		for(Shard shard : shards){
+			names.addAll(shard.clients.keySet());
+		}
+		String[] sorted = names.toArray(new String[0]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	int size(){
+		int size = 0;
+		for(Shard shard : shards){
+			size += shard.outputs.length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return true if the writer belongs to an online client
+	 */
+	boolean containsOutput(PrintWriter out){
+		return out != null && writers.containsKey(out);
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	String getStats(){
+		int largest = 0;
+		for(Shard shard : shards){
+			largest = Math.max(largest, shard.outputs.length);
+		}
+		return "REGISTRY shards=" + shards.length + " clients=" + size() + " largest_shard=" + largest;
+	}
+
+	/**
+	 * One slice of the clients. The map is only changed while holding the shard's lock, and outputs is replaced after every change.
+	 */
+	private static class Shard {
+
+		final ConcurrentHashMap<String, PrintWriter> clients = new ConcurrentHashMap<String, PrintWriter>();
+		volatile PrintWriter[] outputs = new PrintWriter[0];
+
+		void publish(){
+			outputs = clients.values().toArray(new PrintWriter[0]);
+		}
+	}
+}
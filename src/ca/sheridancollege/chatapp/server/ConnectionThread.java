@@ -1,13 +1,30 @@
 package ca.sheridancollege.chatapp.server;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import ca.sheridancollege.chatapp.common.ActivityOutputStream;
 import ca.sheridancollege.chatapp.common.Message;
 import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+import ca.sheridancollege.chatapp.server.attachment.Attachment;
+import ca.sheridancollege.chatapp.server.attachment.AttachmentStore;
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture;
 
 /**
  * ConnectionThread manages the connection to the client from the server.
@@ -21,33 +38,130 @@ public class ConnectionThread extends Thread {
 		SET_NAME, LISTENING, DISCONNECT
 	}
 
-	private ConnState state = ConnState.SET_NAME;
+	private volatile ConnState state = ConnState.SET_NAME;
 
 	private Socket socket = null;
 	private BufferedReader in = null;
-	private PrintWriter out = null;
-	private String clientName = null;
-	private long lastConnectionCheck = System.currentTimeMillis();
+	private volatile PrintWriter out = null;
+	private volatile String clientName = null;
+	private volatile long lastConnectionCheck = System.currentTimeMillis(); //last time anything was received from the client
+	private ActivityOutputStream activity = null;
 	private final int CLIENT_TIMEOUT = 30000;
 	private final int CONN_CHECK_WAIT_TIME = 5000;
+	/*
+	 * Heartbeats are only sent when the connection has been quiet for a whole interval.
+	 * Clients ask for an interval in their CONNECTION_OPEN message and the server answers with the one it will use,
+	 * kept between chatapp.heartbeat.min and chatapp.heartbeat.max. The client times out after TIMEOUT_INTERVALS quiet intervals.
+	 */
+	private final int MIN_HEARTBEAT_INTERVAL = Integer.getInteger("chatapp.heartbeat.min", 1000);
+	private final int MAX_HEARTBEAT_INTERVAL = Integer.getInteger("chatapp.heartbeat.max", 60000);
+	private final int TIMEOUT_INTERVALS = CLIENT_TIMEOUT / CONN_CHECK_WAIT_TIME;
+	private volatile int heartbeatInterval = CONN_CHECK_WAIT_TIME;
+	private volatile Thread heartbeat = null;
+	private static final AtomicLong heartbeatsSent = new AtomicLong();
+	private static final AtomicLong heartbeatsSkipped = new AtomicLong();
+	private static final AtomicInteger nextConnectionId = new AtomicInteger();
+	private final int connectionId = nextConnectionId.incrementAndGet();
+	private final boolean logical; //carried by another connection's socket, see MultiplexConnection
+	private final ResourceTracker.ConnectionResources resources = ResourceTracker.open(connectionId);
+	private final AtomicBoolean closed = new AtomicBoolean();
+	/*
+	 * A client has HANDSHAKE_TIMEOUT from connecting until it has a name, TLS handshake included, or it is disconnected,
+	 * so connections that never finish don't hold their threads. The default leaves a person time to type a name.
+	 * One shared thread watches every deadline. The number of connections still handshaking is used by AdmissionControl.
+	 */
+	private static final int HANDSHAKE_TIMEOUT = Integer.getInteger("chatapp.handshake.timeout", 60000);
+	private static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HandshakeDeadlines");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final AtomicInteger handshaking = new AtomicInteger();
+	private static final AtomicLong handshakeTimeouts = new AtomicLong();
+	private final AtomicBoolean handshakePending = new AtomicBoolean();
+	private volatile ScheduledFuture<?> handshakeDeadline = null;
+
+	static{
+		deadlines.setRemoveOnCancelPolicy(true); //most clients finish in time, their deadlines shouldn't wait in the queue
+	}
 	
 
 	public ConnectionThread(Socket socket) {
 		super("ConnectionThread");
+		setName("ConnectionThread-" + connectionId);
 		this.socket = socket;
+		this.logical = false;
+		resources.setSocket(socket);
+		resources.addThread(this);
+	}
+
+	/**
+	 * Creates a logical connection, one client among many sharing another connection's socket.
+	 * It is never started, the connection that owns the socket reads its lines and keeps it alive.
+	 * @param out Writer for the messages to this client
+	 */
+	protected ConnectionThread(PrintWriter out) {
+		super("ConnectionThread");
+		this.logical = true;
+		this.out = out;
+		resources.setOut(out);
+	}
+
+	/**
+	 * @return A number that identifies this connection for as long as the server runs
+	 */
+	public int getConnectionId(){
+		return connectionId;
+	}
+
+	/**
+	 * @return The name of the client, or null if they have not picked one yet
+	 */
+	public String getClientName(){
+		return clientName;
+	}
+
+	/**
+	 * @return The writer for messages to this client, null until the streams are open
+	 */
+	protected PrintWriter getWriter(){
+		return out;
+	}
+
+	/**
+	 * Sends a message to this client only.
+	 */
+	public void sendToClient(Message message){
+		message.setOut(out);
+		message.send();
 	}
 
 	/**
 	 * Starts the threads to receive messages from the client and ensure the connection with the client is alive.
 	 */
 	public void run() {
+		startHandshake();
 		try {
 			socket.setSoTimeout(CLIENT_TIMEOUT);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out = new PrintWriter(socket.getOutputStream());
+			SocketTuning.apply(socket);
+			InputStream socketIn = socket.getInputStream();
+			OutputStream socketOut = socket.getOutputStream();
+			if(TlsTransport.isEnabled()){ //encrypt the connection
+				TlsSocketStreams tls = new TlsSocketStreams(socket, TlsTransport.createServerEngine());
+				tls.handshake();
+				socketIn = tls.getInputStream();
+				socketOut = tls.getOutputStream();
+			}
+			activity = new ActivityOutputStream(socketOut);
+			openStreams(socketIn, activity);
+			final TrafficCapture capture = ChatServer.getCapture();
+			if(capture != null) capture.open(connectionId, getTransport());
 
 			//recieve messages
-			new Thread(new Runnable(){
+			Thread receiver = new Thread(new Runnable(){
 				@Override
 				public void run() {
 					try{
@@ -55,137 +169,335 @@ public class ConnectionThread extends Thread {
 							try{
 								if(state == ConnState.DISCONNECT) return;
 								String incomingStr = in.readLine();
-								Message incoming = Message.createFromString(incomingStr);
-
-								if(incoming == null) {
-									updateConnectionTimeout();
-									if(state != ConnState.DISCONNECT){
-										Thread.sleep(CONN_CHECK_WAIT_TIME);
-									}
-									continue;
-								}
-								Message outgoing = null;
-								
-								switch(incoming.getContext()){
-								case CONNECTION_CHECK: //connection is alive
-									lastConnectionCheck = System.currentTimeMillis();
-									break;
-								case CONNECTION_OPEN: //client has just connected
-									outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
-									outgoing.setSender(Message.SYSTEM_NAME);
-									outgoing.setContent("Please enter a user name:");
-									outgoing.send();
-									break;
-								case CONNECTION_CLOSE: //client has announced that they have disconnected
-									state = ConnState.DISCONNECT;
-									break;
-								case GET_CLIENTS_ALL: //get all client names and send GETNAMES String
-								case GET_CLIENTS_OTHER: //ignores this clients name
-									String[] clientNames = ChatServer.getClientNames();
-									StringBuilder content = new StringBuilder("\n" + Message.GETNAMES_HEADER);
-									for(String c : clientNames){
-										if(incoming.getContext() == MessageContext.GET_CLIENTS_OTHER && c.equals(clientName)) continue;
-										content.append("\n");
-										content.append(c);
-									}
-									outgoing = new Message(incoming.getContext(), out);
-									outgoing.setSender(Message.SYSTEM_NAME);
-									outgoing.setContent(content.toString());
-									outgoing.send();
-									break;
-								case CLIENT_NAME: //attempt to set the client name
-									String name = incoming.getContent();
-									
-									if(clientName == null){ //this is an initial name
-										if(validateName(name) && ChatServer.registerClient(name, out)){ //name is valid
-											clientName = name;
-											//let client know that they now have a name
-											outgoing = new Message(MessageContext.CLIENT_NAME, out);
-											outgoing.send();
-											//send welcome message
-											outgoing = new Message(MessageContext.SEND_BROADCAST, null);
-											outgoing.setSender(Message.SYSTEM_NAME);
-											outgoing.setContent("Welcome " + clientName + "!");
-											ChatServer.sendMessage(outgoing);
-											state = ConnState.LISTENING;
-										} else { //name is invalid. request new name.
-											//send error message
-											outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
-											outgoing.setSender(Message.SYSTEM_NAME);
-											outgoing.setContent("The requested name is invalid or taken, try again");
-											outgoing.send();
-											//prompt for name entry
-											outgoing.setContent("Please Enter a name:");
-											outgoing.send();
-										}
-									} else { //this is  name change, mostly the same as above but doesnt require new name.
-										if(validateName(name) && ChatServer.changeClientName(clientName, name)){
-											//send success message
-											outgoing = new Message(MessageContext.SEND_BROADCAST, null);
-											outgoing.setSender(Message.SYSTEM_NAME);
-											outgoing.setContent(clientName + " has changed their name to: " + name);
-											clientName = name;
-											ChatServer.sendMessage(outgoing);
-										} else {
-											//send error messaqge
-											outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
-											outgoing.setSender(Message.SYSTEM_NAME);
-											outgoing.setContent("The requested name is invalid or taken. Your name is still: " + clientName);
-											outgoing.send();
-										}
-									}
-									break;
-								case SEND_BROADCAST: //sends message to all clients
-									outgoing = new Message(MessageContext.SEND_BROADCAST, null);
-									outgoing.setSender(clientName);
-									outgoing.setContent(incoming.getContent());
-									ChatServer.sendMessage(outgoing);
-									break;
-								case SEND_ADDRESSED: //sends message to the addressee
-									outgoing = new Message(MessageContext.SEND_ADDRESSED, null);
-									outgoing.setSender(clientName);
-									outgoing.setAddressee(incoming.getAddressee());
-									outgoing.setContent(incoming.getContent());
-									ChatServer.sendMessage(outgoing);
-									break;
-								default:
-									//ignore unhandled message
-								}
+								if(incomingStr == null) return; //the client closed the connection
+								lastConnectionCheck = System.currentTimeMillis(); //any message proves the client is alive
+								if(capture != null) capture.frame(connectionId, incomingStr);
+								receive(incomingStr);
 							} catch (SocketTimeoutException stoe){
 								updateConnectionTimeout();
 							} 
 						}
 					}catch(Exception e){
-						e.printStackTrace();
+						if(!closed.get()) e.printStackTrace(); //otherwise the socket was closed under the reader on purpose
 					} finally {
 						close(); //close resources
 					}
 				}
-			}).start();
+			}, "Receive-" + connectionId);
+			resources.addThread(receiver);
+			receiver.start();
 
-			//send message to client to ensure the connection is still alive, limited by CONN_CHECK_WAIT_TIME
-			new Thread(new Runnable(){
+			//send a message to the client when the connection has been quiet, so both ends know it is still alive
+			heartbeat = new Thread(new Runnable(){
 				@Override
 				public void run() {
 					try{
 						lastConnectionCheck = System.currentTimeMillis();
 						while (true) {
 							if(state == ConnState.DISCONNECT) return;
-							Message outgoing = new Message(MessageContext.CONNECTION_CHECK, out);
-							outgoing.send();
-							Thread.sleep(CONN_CHECK_WAIT_TIME);
+							long now = System.currentTimeMillis();
+							int interval = heartbeatInterval;
+							long nextCheck = activity.getLastWrite() + interval;
+							/*
+							 * The client sends its own heartbeats when it has nothing to say,
+							 * but clients that only answer CONNECTION_CHECK need to be asked once they go quiet.
+							 */
+							boolean clientQuiet = now - lastConnectionCheck >= interval * 2;
+							if(now >= nextCheck || clientQuiet){
+								Message outgoing = new Message(MessageContext.CONNECTION_CHECK, out);
+								outgoing.send();
+								heartbeatsSent.incrementAndGet();
+								nextCheck = now + interval;
+							} else {
+								heartbeatsSkipped.incrementAndGet();
+							}
+							try{
+								Thread.sleep(Math.max(1, nextCheck - now));
+							} catch (InterruptedException ie){
+								//the interval changed, work out the next check again
+							}
 						}
 					}catch(Exception e){
 						e.printStackTrace();
 					} 
 				}
-			}).start();
+			}, "Heartbeat-" + connectionId);
+			resources.addThread(heartbeat);
+			heartbeat.start();
 
 		} catch (Exception e) {
 			e.printStackTrace();
+			close(); //the handshake failed, nothing else holds the socket
 		}
 	}	
 
+	/**
+	 * Sets up the reader and writer used to talk to the client.
+	 * Connections that use a different protocol on top of the socket override this and call setStreams().
+	 */
+	protected void openStreams(InputStream socketIn, OutputStream socketOut) throws IOException{
+		setStreams(new BufferedReader(new InputStreamReader(socketIn)), new PrintWriter(socketOut));
+	}
+
+	/**
+	 * @param in Must return one encoded message per line
+	 * @param out Writer that messages to the client are sent to, it is wrapped in a LaneWriter so control messages go first
+	 */
+	protected void setStreams(BufferedReader in, PrintWriter out){
+		this.in = in;
+		LaneWriter lanes = new LaneWriter(out, "LaneWriter-" + connectionId);
+		resources.setOut(lanes);
+		resources.addThread(lanes.getWriterThread());
+		this.out = lanes;
+	}
+
+	/**
+	 * Decodes a line received from the client. Undecodable lines return null.
+	 */
+	protected Message decode(String incomingStr){
+		return Message.createFromString(incomingStr);
+	}
+
+	/**
+	 * Hands a line read from the socket to the pipeline. Connections that carry several clients override this to pick the client.
+	 */
+	protected void receive(String incomingStr){
+		ChatServer.getPipeline().receive(this, incomingStr);
+	}
+
+	/**
+	 * @return How the client talks to the server, recorded in traffic captures so they can be replayed to the right port
+	 */
+	protected TrafficCapture.Transport getTransport(){
+		return TrafficCapture.Transport.CHAT;
+	}
+
+	/**
+	 * @return false for connections that only carry other clients and never pick a name of their own
+	 */
+	protected boolean needsName(){
+		return true;
+	}
+
+	/**
+	 * Acts on a message from the client. This is the ROUTE stage of the MessagePipeline.
+	 * @param incoming A decoded and validated message
+	 */
+	void handleMessage(Message incoming){
+		Message outgoing = null;
+		
+		switch(incoming.getContext()){
+		case CONNECTION_CHECK: //connection is alive, already recorded when it was received
+			break;
+		case CONNECTION_OPEN: //client has just connected
+			negotiateHeartbeat(incoming.getContent());
+			outgoing = new Message(MessageContext.CONNECTION_OPEN, out);
+			outgoing.setContent(Integer.toString(heartbeatInterval));
+			outgoing.send();
+			if(clientName != null || !needsName()) break; //the client already resumed its session or doesn't need a name
+			outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setContent("Please enter a user name:");
+			outgoing.send();
+			break;
+		case SESSION_RESUME: //client is reconnecting after a server restart and wants its name back
+			if(clientName != null) break;
+			long resumed = System.currentTimeMillis(); //broadcasts after this are sent to the writer as soon as it is registered
+			SessionStore.Session session = ChatServer.resumeSession(incoming.getContent(), out);
+			outgoing = new Message(MessageContext.SESSION_RESUME, out);
+			if(session == null){ //no content tells the client to pick a name again
+				outgoing.send();
+				break;
+			}
+			setClientName(session.name);
+			state = ConnState.LISTENING;
+			new Message(MessageContext.CLIENT_NAME, out).send();
+			outgoing.setContent(session.token);
+			outgoing.send();
+			//no welcome broadcast, a restart would otherwise flood everyone with them
+			ChatServer.replayHistory(out, session.lastSeen, resumed);
+			break;
+		case CONNECTION_CLOSE: //client has announced that they have disconnected
+			close(); //release everything now rather than when the socket times out
+			break;
+		case GET_CLIENTS_ALL: //get all client names and send GETNAMES String
+		case GET_CLIENTS_OTHER: //ignores this clients name
+			String[] clientNames = ChatServer.getClientNames();
+			StringBuilder content = new StringBuilder("\n" + Message.GETNAMES_HEADER);
+			for(String c : clientNames){
+				if(incoming.getContext() == MessageContext.GET_CLIENTS_OTHER && c.equals(clientName)) continue;
+				content.append("\n");
+				content.append(c);
+			}
+			outgoing = new Message(incoming.getContext(), out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setContent(content.toString());
+			outgoing.send();
+			break;
+		case SEARCH: //search the broadcast history and send the results back
+			outgoing = new Message(MessageContext.SEARCH, out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setContent(ChatServer.searchHistory(incoming.getContent()));
+			outgoing.send();
+			break;
+		case GET_HISTORY: //send back a page of the direct messages with the addressee, the content is the cursor
+			outgoing = new Message(MessageContext.GET_HISTORY, out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setAddressee(incoming.getAddressee());
+			outgoing.setContent(ChatServer.conversationHistory(clientName, incoming.getAddressee(), incoming.getContent()));
+			outgoing.send();
+			break;
+		case STATS: //send back the usage analytics
+			String report = ChatServer.getAnalyticsReport();
+			outgoing = new Message(MessageContext.STATS, out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setContent("\n" + Message.STATS_HEADER + "\n" + (report == null ? "Analytics are turned off" : report));
+			outgoing.send();
+			break;
+		case COMPLETE_NAMES: //send back the online names that start with the content
+			outgoing = new Message(MessageContext.COMPLETE_NAMES, out);
+			outgoing.setSender(Message.SYSTEM_NAME);
+			outgoing.setContent(ChatServer.completeName(incoming.getContent()));
+			outgoing.send();
+			break;
+		case CLIENT_NAME: //attempt to set the client name
+			String name = incoming.getContent();
+			
+			if(clientName == null){ //this is an initial name
+				if(validateName(name) && ChatServer.registerClient(name, out)){ //name is valid
+					setClientName(name);
+					//let client know that they now have a name, and how to get it back after a restart
+					outgoing = new Message(MessageContext.CLIENT_NAME, out);
+					outgoing.send();
+					outgoing = new Message(MessageContext.SESSION_RESUME, out);
+					outgoing.setContent(ChatServer.getSessionToken(clientName));
+					outgoing.send();
+					//send welcome message
+					outgoing = new Message(MessageContext.SEND_BROADCAST, null);
+					outgoing.setSender(Message.SYSTEM_NAME);
+					outgoing.setContent("Welcome " + clientName + "!");
+					ChatServer.sendMessage(outgoing);
+					state = ConnState.LISTENING;
+				} else { //name is invalid. request new name.
+					//send error message
+					outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
+					outgoing.setSender(Message.SYSTEM_NAME);
+					outgoing.setContent("The requested name is invalid or taken, try again");
+					outgoing.send();
+					//prompt for name entry
+					outgoing.setContent("Please Enter a name:");
+					outgoing.send();
+				}
+			} else { //this is  name change, mostly the same as above but doesnt require new name.
+				if(validateName(name) && ChatServer.changeClientName(clientName, name)){
+					//send success message
+					outgoing = new Message(MessageContext.SEND_BROADCAST, null);
+					outgoing.setSender(Message.SYSTEM_NAME);
+					outgoing.setContent(clientName + " has changed their name to: " + name);
+					clientName = name;
+					ChatServer.sendMessage(outgoing);
+				} else {
+					//send error messaqge
+					outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
+					outgoing.setSender(Message.SYSTEM_NAME);
+					outgoing.setContent("The requested name is invalid or taken. Your name is still: " + clientName);
+					outgoing.send();
+				}
+			}
+			break;
+		case SEND_BROADCAST: //sends message to all clients
+			outgoing = new Message(MessageContext.SEND_BROADCAST, null);
+			outgoing.setSender(clientName);
+			outgoing.setContent(incoming.getContent());
+			outgoing.setId(incoming.getId()); //receipts are reported to the sender by id, not sent on to the recipients
+			outgoing.setReceivedNanos(incoming.getReceivedNanos());
+			ChatServer.sendMessage(outgoing);
+			break;
+		case SEND_ADDRESSED: //sends message to the addressee
+			outgoing = new Message(MessageContext.SEND_ADDRESSED, null);
+			outgoing.setSender(clientName);
+			outgoing.setAddressee(incoming.getAddressee());
+			outgoing.setContent(incoming.getContent());
+			outgoing.setId(incoming.getId());
+			outgoing.setReceivedNanos(incoming.getReceivedNanos());
+			ChatServer.sendMessage(outgoing);
+			break;
+		case TYPING: //typing indicators and presence are held and coalesced, see EphemeralEvents
+		case PRESENCE:
+			ChatServer.publishEphemeral(clientName, incoming);
+			break;
+		case RECEIPT: //watermarks of what the client has received and read, see ReceiptTracker
+			ChatServer.receipt(clientName, incoming.getContent());
+			break;
+		case ATTACHMENT_OFFER: //client wants to send a file, tell it where to upload it
+			String[] offer = incoming.getContent() == null ? new String[0] : incoming.getContent().split("\n", 3); //reference, size, file name
+			Attachment attachment = null;
+			if(offer.length == 3){
+				attachment = ChatServer.offerAttachment(clientName, incoming.getAddressee(), offer[2], parseSize(offer[1]));
+			}
+			if(attachment == null){
+				outgoing = new Message(MessageContext.SEND_ADDRESSED, out);
+				outgoing.setSender(Message.SYSTEM_NAME);
+				outgoing.setContent("The file can't be sent. Files must be under " + AttachmentStore.MAX_SIZE + " bytes, the recipient must be online and the server must have room for it.");
+				outgoing.send();
+				break;
+			}
+			outgoing = new Message(MessageContext.ATTACHMENT_OFFER, out);
+			outgoing.setContent(offer[0] + "\n" + attachment.getId() + "\n" + attachment.getUploadToken() + "\n" + ChatServer.getAttachmentPort());
+			outgoing.send();
+			break;
+		default:
+			//ignore unhandled message
+		}
+	}
+
+	private long parseSize(String size){
+		try{
+			return Long.parseLong(size.trim());
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Records the first name of the client, which ends the handshake.
+	 * A connection that closed while the name was being registered didn't see it, so it gives the name up here.
+	 */
+	private void setClientName(String name){
+		clientName = name;
+		finishHandshake();
+		if(closed.get()) ChatServer.closeConnection(name);
+	}
+
+	/**
+	 * Counts the connection as handshaking and gives it HANDSHAKE_TIMEOUT to get a name.
+	 */
+	private void startHandshake(){
+		if(!needsName()) return;
+		handshakePending.set(true);
+		handshaking.incrementAndGet();
+		if(HANDSHAKE_TIMEOUT <= 0) return;
+		handshakeDeadline = deadlines.schedule(new Runnable(){
+			@Override
+			public void run() {
+				if(!handshakePending.compareAndSet(true, false)) return; //finished in time
+				handshaking.decrementAndGet();
+				handshakeTimeouts.incrementAndGet();
+				close();
+			}
+		}, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Ends the handshake once the client has a name or the connection is closed. Only the first call does anything.
+	 */
+	private void finishHandshake(){
+		if(!handshakePending.compareAndSet(true, false)) return;
+		handshaking.decrementAndGet();
+		ScheduledFuture<?> deadline = handshakeDeadline;
+		if(deadline != null) deadline.cancel(false);
+	}
+
 	/**
 	 * Ensures name is not invalid
 	 * @param name Candidate clientName
@@ -198,28 +510,73 @@ public class ConnectionThread extends Thread {
 	}
 
 	/**
-	 * Closes resources and ensures state=DISCONNECT
+	 * Closes resources and ensures state=DISCONNECT. Only the first call does anything, so every thread of the connection can call it.
+	 * The socket is closed first, a reader blocked in readLine() holds the reader's lock until the socket goes.
 	 */
 	public void close(){
+		if(!closed.compareAndSet(false, true)) return;
+		state = ConnState.DISCONNECT;
+		finishHandshake();
 		try{
-			state = ConnState.DISCONNECT;
-			if(in != null) in.close();
-			in = null;
-			if(out != null) out.close();
-			out = null;
-			if(out != null) socket.close();
-			socket = null;
-			ChatServer.closeConnection(clientName);
-		}catch(Exception e){
+			if(socket != null) socket.close();
+		}catch(IOException e){
 			e.printStackTrace();
 		}
+		if(heartbeat != null) heartbeat.interrupt(); //don't wait out the interval
+		if(out != null) out.close();
+		try{
+			if(in != null) in.close();
+		}catch(IOException e){
+			//the socket is already closed
+		}
+		if(clientName != null) ChatServer.closeConnection(clientName);
+		TrafficCapture capture = ChatServer.getCapture();
+		if(capture != null && !logical) capture.closeConnection(connectionId);
+		resources.close();
+	}
+
+	/**
+	 * Picks the heartbeat interval for this connection.
+	 * @param requested The interval the client asked for in milliseconds, null for the default
+	 */
+	private void negotiateHeartbeat(String requested){
+		if(requested == null || logical) return; //logical connections use the heartbeat of the connection that carries them
+		try{
+			int interval = Integer.parseInt(requested.trim());
+			heartbeatInterval = Math.max(MIN_HEARTBEAT_INTERVAL, Math.min(MAX_HEARTBEAT_INTERVAL, interval));
+			socket.setSoTimeout(heartbeatInterval * TIMEOUT_INTERVALS);
+			if(heartbeat != null) heartbeat.interrupt();
+		} catch (NumberFormatException | IOException e){
+			//keep the default interval
+		}
+	}
+
+	/**
+	 * @return Heartbeats sent and heartbeats skipped because the connection was busy, used for the server status log
+	 */
+	public static String getHeartbeatStats(){
+		return "HEARTBEATS sent=" + heartbeatsSent.get() + " skipped=" + heartbeatsSkipped.get();
+	}
+
+	/**
+	 * @return Connections that have not got a name yet
+	 */
+	static int getHandshaking(){
+		return handshaking.get();
+	}
+
+	/**
+	 * @return Connections closed because they took longer than HANDSHAKE_TIMEOUT to get a name
+	 */
+	static long getHandshakeTimeouts(){
+		return handshakeTimeouts.get();
 	}
 
 	/**
 	 * Marks the connection to be closed if it has exceeded the timeout.
 	 */
 	private void updateConnectionTimeout(){
-		if(System.currentTimeMillis() - lastConnectionCheck > CLIENT_TIMEOUT){
+		if(System.currentTimeMillis() - lastConnectionCheck > heartbeatInterval * TIMEOUT_INTERVALS){
 			ChatServer.log("Client: " + clientName + " has timedout. They will be disconnected");
 			state = ConnState.DISCONNECT;
 		}
@@ -0,0 +1,300 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ca.sheridancollege.chatapp.common.FrameWriter;
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+
+/**
+ * LaneWriter queues the messages going to one client in priority lanes and writes them on its own thread.
+ * Whenever the writer thread is free it sends the oldest message of the highest priority lane that has one,
+ * so heartbeats, name replies and system notices go out ahead of any chat that is still waiting.
+ *
+ * Each lane is bounded. When a lane is full its oldest message is dropped and counted, so a client that can't keep up
+ * loses chat instead of running the server out of memory. Typing and presence events go in the EPHEMERAL lane, which is written last
+ * and dropped as soon as the client falls behind with its chat, since a newer event will soon replace them. Lanes only use memory for the messages waiting in them,
+ * so idle connections stay cheap. The time messages spend waiting in each lane is recorded for the status log.
+ *
+ * @author danielnewton
+ *
+ */
+public class LaneWriter extends FrameWriter {
+
+	public enum Lane{
+		CONTROL, SYSTEM, CHAT, EPHEMERAL //highest priority first
+	}
+
+	private static final int CONTROL_CAPACITY = 1024;
+	private static final int SYSTEM_CAPACITY = 1024;
+	private static final int CHAT_CAPACITY = Integer.getInteger("chatapp.lanes.chat.capacity", 8192);
+	private static final int EPHEMERAL_CAPACITY = 64;
+	private static final int BEHIND = 32; //chat messages waiting before ephemeral events are dropped instead of queued
+	private static final LatencyHistogram[] queueDelay = new LatencyHistogram[Lane.values().length];
+	private static final AtomicLongArray droppedTotal = new AtomicLongArray(Lane.values().length);
+	static{
+		for(int i = 0; i < queueDelay.length; i++){
+			queueDelay[i] = new LatencyHistogram();
+		}
+	}
+
+	private final PrintWriter target;
+	private final LaneQueue[] lanes = new LaneQueue[Lane.values().length];
+	private final Thread writerThread;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param target The writer of the connection, a FrameWriter or a PrintWriter that takes serialized lines
+	 * @param name Name for the writer thread
+	 */
+	public LaneWriter(PrintWriter target, String name) {
+		super(target);
+		this.target = target;
+		lanes[Lane.CONTROL.ordinal()] = new LaneQueue(Lane.CONTROL, CONTROL_CAPACITY);
+		lanes[Lane.SYSTEM.ordinal()] = new LaneQueue(Lane.SYSTEM, SYSTEM_CAPACITY);
+		lanes[Lane.CHAT.ordinal()] = new LaneQueue(Lane.CHAT, CHAT_CAPACITY);
+		lanes[Lane.EPHEMERAL.ordinal()] = new LaneQueue(Lane.EPHEMERAL, EPHEMERAL_CAPACITY);
+
+		writerThread = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, name);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * @return The lane a message is sent in
+	 */
+	public static Lane laneOf(Message message){
+		MessageContext context = message.getContext();
+		if(context == null) return Lane.SYSTEM;
+		switch(context){
+		case CONNECTION_OPEN:
+		case CONNECTION_CHECK:
+		case CONNECTION_CLOSE:
+		case CLIENT_NAME:
+		case SESSION_RESUME:
+		case SERVER_RESTART:
+		case ACK:
+		case SERVER_BUSY:
+			return Lane.CONTROL;
+		case ATTACHMENT_READY:
+			return Lane.CHAT;
+		case TYPING:
+		case PRESENCE:
+			return Lane.EPHEMERAL;
+		case SEND_BROADCAST:
+		case SEND_ADDRESSED:
+			return Message.SYSTEM_NAME.equals(message.getSender()) ? Lane.SYSTEM : Lane.CHAT;
+		default: //replies to requests and notifications
+			return Lane.SYSTEM;
+		}
+	}
+
+	@Override
+	public String getEncoding() {
+		return target instanceof FrameWriter ? ((FrameWriter) target).getEncoding() : LINE_ENCODING;
+	}
+
+	@Override
+	public String encode(Message message) {
+		return target instanceof FrameWriter ? ((FrameWriter) target).encode(message) : message.encode();
+	}
+
+	@Override
+	public void writeFrame(String encoded) {
+		enqueue(Lane.SYSTEM, encoded);
+	}
+
+	@Override
+	public void writeFrame(Message message, String encoded) {
+		enqueue(laneOf(message), encoded);
+	}
+
+	/**
+	 * Lines printed directly are sent as system messages.
+	 */
+	@Override
+	public void println(String x) {
+		enqueue(Lane.SYSTEM, x);
+	}
+
+	private void enqueue(Lane lane, String encoded){
+		if(closed || encoded == null) return;
+		if(lane == Lane.EPHEMERAL && lanes[Lane.CHAT.ordinal()].size.get() > BEHIND){ //the client is behind, chat matters more
+			lanes[lane.ordinal()].drop();
+			return;
+		}
+		lanes[lane.ordinal()].offer(new Frame(encoded, System.nanoTime()));
+		if(closed){ //closed while adding, the frame would never be written or released
+			clear();
+			return;
+		}
+		LockSupport.unpark(writerThread);
+	}
+
+	/**
+	 * Writes queued messages, highest priority first, until the writer is closed.
+	 * Plain writers are only flushed once the lanes are empty, so a backlog goes out in as few writes as possible.
+	 */
+	private void writeLoop(){
+		boolean unflushed = false;
+		while(!closed){
+			Frame frame = null;
+			int lane = 0;
+			for(; lane < lanes.length && frame == null; lane++){
+				frame = lanes[lane].poll();
+			}
+			if(frame == null){
+				if(unflushed){
+					target.flush();
+					unflushed = false;
+					continue; //check again before sleeping, more may have arrived during the flush
+				}
+				LockSupport.park(this);
+				continue;
+			}
+			queueDelay[lane - 1].record(System.nanoTime() - frame.queuedAt);
+			if(target instanceof FrameWriter){
+				((FrameWriter) target).writeFrame(frame.encoded);
+			} else {
+				target.println(frame.encoded);
+				unflushed = true;
+			}
+		}
+	}
+
+	@Override
+	public boolean checkError() {
+		return target.checkError();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writerThread);
+		target.close();
+		clear(); //nobody will write them, let them go now
+	}
+
+	private void clear(){
+		for(LaneQueue lane : lanes){
+			while(lane.poll() != null);
+		}
+	}
+
+	/**
+	 * @return Messages waiting to be written
+	 */
+	public int getQueued(){
+		int waiting = 0;
+		for(LaneQueue lane : lanes){
+			waiting += lane.size.get();
+		}
+		return waiting;
+	}
+
+	/**
+	 * @return The thread that writes the lanes, it ends soon after the writer is closed
+	 */
+	Thread getWriterThread(){
+		return writerThread;
+	}
+
+	/**
+	 * Waits until every queued message has been handed to the connection, or the time runs out.
+	 * @return true if nothing is left waiting
+	 */
+	public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(true){
+			if(getQueued() == 0) return true;
+			if(closed || System.currentTimeMillis() >= deadline) return false;
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * @return Messages dropped from a lane of this writer because the client could not keep up
+	 */
+	public long getDropped(Lane lane){
+		return lanes[lane.ordinal()].dropped.get();
+	}
+
+	/**
+	 * @return The time messages spent waiting in a lane, over all connections
+	 */
+	public static LatencyHistogram getQueueDelay(Lane lane){
+		return queueDelay[lane.ordinal()];
+	}
+
+	/**
+	 * @return One line summary of the queueing delay in every lane, used for the server status log
+	 */
+	public static String getMetrics(){
+		StringBuilder metrics = new StringBuilder("LANES");
+		for(Lane lane : Lane.values()){
+			metrics.append(" | ").append(lane.name()).append(" wait ").append(queueDelay[lane.ordinal()].getSummary());
+			metrics.append(" dropped=").append(droppedTotal.get(lane.ordinal()));
+		}
+		return metrics.toString();
+	}
+
+	/**
+	 * The messages waiting in one lane. Any thread can add to it, the writer thread takes from it and a full lane drops its oldest message.
+	 */
+	private static class LaneQueue{
+		private final Lane lane;
+		private final int capacity;
+		private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicLong dropped = new AtomicLong();
+
+		LaneQueue(Lane lane, int capacity){
+			this.lane = lane;
+			this.capacity = capacity;
+		}
+
+		void offer(Frame frame){
+			frames.offer(frame);
+			if(size.incrementAndGet() > capacity && poll() != null){ //full, drop the oldest
+				drop();
+			}
+		}
+
+		/**
+		 * Counts a message that was dropped from the lane or never added to it.
+		 */
+		void drop(){
+			dropped.incrementAndGet();
+			droppedTotal.incrementAndGet(lane.ordinal());
+		}
+
+		Frame poll(){
+			Frame frame = frames.poll();
+			if(frame != null) size.decrementAndGet();
+			return frame;
+		}
+	}
+
+	/**
+	 * An encoded message waiting in a lane.
+	 */
+	private static class Frame{
+		private final String encoded;
+		private final long queuedAt;
+
+		Frame(String encoded, long queuedAt){
+			this.encoded = encoded;
+			this.queuedAt = queuedAt;
+		}
+	}
+}
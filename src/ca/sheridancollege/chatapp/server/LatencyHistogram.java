@@ -0,0 +1,92 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies in buckets that double in size, each split into SUB_BUCKETS steps,
+ * so percentiles are accurate to within 25% at any scale without storing every sample.
+ * Recording is lock free and can be done from any thread. It works for any non-negative values, message sizes are recorded with it too.
+ *
+ * @author danielnewton
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	public void record(long nanos){
+		if(nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+	}
+
+	private static int bucketOf(long nanos){
+		if(nanos < SUB_BUCKETS) return (int) nanos;
+		int top = 63 - Long.numberOfLeadingZeros(nanos); //position of the highest bit
+		int sub = (int) (nanos >>> (top - SUB_BITS)) & (SUB_BUCKETS - 1); //the bits just below it
+		return (top - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The largest value that falls in the bucket
+	 */
+	private static long upperBoundOf(int bucket){
+		if(bucket < SUB_BUCKETS) return bucket;
+		int top = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long low = (1L << top) | ((long) sub << (top - SUB_BITS));
+		return low + (1L << (top - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other){
+		for(int i = 0; i < counts.length(); i++){
+			long count = other.counts.get(i);
+			if(count != 0) counts.addAndGet(i, count);
+		}
+	}
+
+	/**
+	 * Forgets everything recorded so far. Values recorded while this runs may be kept or lost.
+	 */
+	public void reset(){
+		for(int i = 0; i < counts.length(); i++){
+			counts.set(i, 0);
+		}
+	}
+
+	public long getCount(){
+		long total = 0;
+		for(int i = 0; i < counts.length(); i++){
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100
+	 * @return The latency in nanoseconds that the given percent of recorded latencies are at or below, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile){
+		long total = getCount();
+		if(total == 0) return 0;
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < counts.length(); i++){
+			seen += counts.get(i);
+			if(seen >= rank && seen > 0) return upperBoundOf(i);
+		}
+		return upperBoundOf(counts.length() - 1);
+	}
+
+	/**
+	 * @return p50, p99 and p99.9 in microseconds, used for the server status log
+	 */
+	public String getSummary(){
+		return String.format("p50=%.1fus p99=%.1fus p99.9=%.1fus n=%d",
+				getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, getCount());
+	}
+}
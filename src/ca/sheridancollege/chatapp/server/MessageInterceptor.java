@@ -0,0 +1,25 @@
+package ca.sheridancollege.chatapp.server;
+
+import ca.sheridancollege.chatapp.common.Message;
+
+/**
+ * MessageInterceptor is the extension point for processing messages on their way through the server.
+ * Interceptors are registered with the MessagePipeline and run in the INTERCEPT stage, after a message has
+ * been decoded and validated and before it is routed. They are called for every context, so an interceptor
+ * should ignore the contexts it is not interested in.
+ *
+ * Interceptors may be called from several threads at once when the INTERCEPT stage has more than one thread,
+ * but messages from the same connection are always seen in the order they were received.
+ *
+ * @author danielnewton
+ *
+ */
+public interface MessageInterceptor {
+
+	/**
+	 * @param connection The connection the message was received on
+	 * @param message The incoming message. Its sender is the name the connection is registered under.
+	 * @return The message to route, which may be the same message, or null to drop it
+	 */
+	Message intercept(ConnectionThread connection, Message message);
+}
@@ -0,0 +1,411 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ca.sheridancollege.chatapp.common.FrameWriter;
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.StreamWriter;
+
+/**
+ * MessagePipeline moves messages through the server in stages:
+ * DECODE -> VALIDATE -> INTERCEPT -> ROUTE for messages received from a client, and
+ * ENCODE -> DELIVER for messages the server sends to a group of clients.
+ * A delivered message is encoded once for each encoding its recipients use (see FrameWriter), not once per recipient,
+ * and written once for all the recipients that share a multiplexed connection (see StreamWriter).
+ * Messages for very many recipients are written in parallel chunks (see ParallelFanOut).
+ *
+ * By default every stage runs on the thread that hands it the message, which is how the server always behaved.
+ * A stage can be given its own threads with setThreads() or the chatapp.pipeline.[stage].threads property
+ * (for example -Dchatapp.pipeline.intercept.threads=2), so heavy work in that stage no longer holds up socket reads.
+ * Messages from one connection always go to the same thread of a stage, so they keep their order.
+ * Stage threads normally sleep until work arrives. With chatapp.pipeline.spin.micros (default 1000 in low latency mode, otherwise 0)
+ * they busy-wait that long for the next message first, which saves the wake up time at the cost of CPU.
+ *
+ * The time from a message being received until it is routed, and until the messages it caused are handed to every recipient's writer,
+ * is recorded in LatencyHistograms and included in getMetrics(). Time spent waiting in the writers is reported by LaneWriter.
+ *
+ * @author danielnewton
+ *
+ */
+public class MessagePipeline {
+
+	public enum Stage{
+		DECODE, VALIDATE, INTERCEPT, ROUTE, ENCODE, DELIVER
+	}
+
+	public static final int MAX_CONTENT_LENGTH = 65536;
+
+	private final AtomicReferenceArray<StageLane> lanes = new AtomicReferenceArray<StageLane>(Stage.values().length);
+	private final List<MessageInterceptor> interceptors = new CopyOnWriteArrayList<MessageInterceptor>();
+	private final AtomicLong rejected = new AtomicLong();
+	private final LatencyHistogram routeLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final ParallelFanOut fanOut = new ParallelFanOut(this);
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chatapp.pipeline.spin.micros", SocketTuning.isLowLatency() ? 1000 : 0));
+
+	public MessagePipeline(){
+		for(Stage stage : Stage.values()){
+			int threads = Integer.getInteger("chatapp.pipeline." + stage.name().toLowerCase() + ".threads", 0);
+			lanes.set(stage.ordinal(), new StageLane(stage, threads));
+		}
+	}
+
+	/**
+	 * Adds an interceptor to the end of the INTERCEPT stage.
+	 */
+	public void addInterceptor(MessageInterceptor interceptor){
+		interceptors.add(interceptor);
+	}
+
+	public void removeInterceptor(MessageInterceptor interceptor){
+		interceptors.remove(interceptor);
+	}
+
+	/**
+	 * Changes the number of threads of a stage. Zero runs the stage on the thread that finished the previous stage.
+	 * Messages already queued on the old threads are still processed.
+	 */
+	public void setThreads(Stage stage, int threads){
+		StageLane old = lanes.getAndSet(stage.ordinal(), new StageLane(stage, threads));
+		old.shutdown();
+	}
+
+	/**
+	 * Entry point for a line read from a client connection.
+	 */
+	public void receive(ConnectionThread connection, String incomingStr){
+		Job job = new Job(Stage.DECODE, connection.getConnectionId());
+		job.receivedNanos = System.nanoTime();
+		job.connection = connection;
+		job.incomingStr = incomingStr;
+		submit(job);
+	}
+
+	/**
+	 * Entry point for a message the server has routed to a group of clients.
+	 * The message is encoded once per encoding and written to every recipient.
+	 */
+	public void deliver(Message message, PrintWriter[] recipients){
+		if(recipients.length == 0) return;
+		String sender = message.getSender();
+		Job job = new Job(Stage.ENCODE, sender == null ? 0 : sender.hashCode());
+		job.message = message;
+		job.recipients = recipients;
+		submit(job);
+	}
+
+	private void submit(Job job){
+		StageLane lane = lanes.get(job.stage.ordinal());
+		job.lane = lane;
+		job.queuedAt = System.nanoTime();
+		lane.depth.incrementAndGet();
+		ExecutorService executor = lane.executorFor(job.key);
+		if(executor == null){
+			job.run();
+		} else {
+			executor.execute(job);
+		}
+	}
+
+	/**
+	 * Does the work of one stage.
+	 * @return true if the job should continue to the next stage
+	 */
+	private boolean process(Job job){
+		switch(job.stage){
+		case DECODE:
+			job.message = job.connection.decode(job.incomingStr);
+			job.incomingStr = null;
+			if(job.message == null){
+				rejected.incrementAndGet();
+				return false;
+			}
+			job.message.setReceivedNanos(job.receivedNanos);
+			return true;
+		case VALIDATE:
+			if(!validate(job.connection, job.message)){
+				rejected.incrementAndGet();
+				return false;
+			}
+			return true;
+		case INTERCEPT:
+			for(MessageInterceptor interceptor : interceptors){
+				job.message = interceptor.intercept(job.connection, job.message);
+				if(job.message == null) return false;
+			}
+			return true;
+		case ROUTE:
+			routeLatency.record(System.nanoTime() - job.message.getReceivedNanos());
+			job.connection.handleMessage(job.message);
+			ChatServer.routed(job.connection, job.message);
+			return false;
+		case ENCODE: //once per encoding used by the recipients
+			job.encoded = new HashMap<String, String>();
+			for(PrintWriter o : job.recipients){
+				String encoding = o instanceof FrameWriter ? ((FrameWriter) o).getEncoding() : FrameWriter.LINE_ENCODING;
+				if(job.encoded.containsKey(encoding)) continue;
+				String encoded = o instanceof FrameWriter ? ((FrameWriter) o).encode(job.message) : job.message.encode();
+				if(encoded != null) job.encoded.put(encoding, encoded);
+			}
+			return !job.encoded.isEmpty();
+		case DELIVER: //written by ParallelFanOut, which keeps each sender's messages in order
+			fanOut.deliver(job.key, job.message, job.encoded, job.recipients);
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the message to recipients[from] to recipients[to - 1].
+	 * @param encoded Encoding name -> encoded message
+	 */
+	void write(Message message, Map<String, String> encoded, PrintWriter[] recipients, int from, int to){
+		Map<PrintWriter, List<StreamWriter>> groups = null; //streams that share a connection get a single copy between them
+		for(int i = from; i < to; i++){
+			PrintWriter o = recipients[i];
+			if(o instanceof StreamWriter){
+				if(groups == null) groups = new HashMap<PrintWriter, List<StreamWriter>>();
+				PrintWriter target = ((StreamWriter) o).getTarget();
+				List<StreamWriter> group = groups.get(target);
+				if(group == null){
+					group = new ArrayList<StreamWriter>();
+					groups.put(target, group);
+				}
+				group.add((StreamWriter) o);
+			} else if(o instanceof FrameWriter){
+				String frame = encoded.get(((FrameWriter) o).getEncoding());
+				if(frame != null) ((FrameWriter) o).writeFrame(message, frame);
+			} else {
+				String line = encoded.get(FrameWriter.LINE_ENCODING);
+				if(line == null) continue;
+				o.println(line);
+				o.flush();
+			}
+		}
+		if(groups != null){
+			for(List<StreamWriter> group : groups.values()){
+				StreamWriter.writeGroup(group, message, encoded.get(group.get(0).getEncoding()));
+			}
+		}
+	}
+
+	/**
+	 * Called once a message has been handed to every recipient's writer.
+	 */
+	void delivered(Message message){
+		if(message.getReceivedNanos() != 0){
+			writeLatency.record(System.nanoTime() - message.getReceivedNanos());
+		}
+	}
+
+	/**
+	 * Drops messages the server can't act on and stamps the sender with the name the connection is registered under.
+	 */
+	private boolean validate(ConnectionThread connection, Message message){
+		if(message.getContext() == null) return false;
+		String content = message.getContent();
+		if(content != null && content.length() > MAX_CONTENT_LENGTH) return false;
+		MessageContext context = message.getContext();
+		if((context == MessageContext.SEND_BROADCAST || context == MessageContext.SEND_ADDRESSED || context == MessageContext.ATTACHMENT_OFFER
+				|| context == MessageContext.TYPING || context == MessageContext.PRESENCE || context == MessageContext.GET_HISTORY
+				|| context == MessageContext.RECEIPT) && connection.getClientName() == null){
+			return false; //chat requires a name
+		}
+		message.setSender(connection.getClientName()); //clients can't pretend to be someone else
+		return true;
+	}
+
+	public int getQueueDepth(Stage stage){
+		return lanes.get(stage.ordinal()).depth.get();
+	}
+
+	public long getProcessed(Stage stage){
+		return lanes.get(stage.ordinal()).processed.get();
+	}
+
+	/**
+	 * @return Average time from a message being handed to the stage until the stage finished with it, in microseconds
+	 */
+	public long getAverageLatencyMicros(Stage stage){
+		StageLane lane = lanes.get(stage.ordinal());
+		long processed = lane.processed.get();
+		return processed == 0 ? 0 : lane.totalNanos.get() / processed / 1000;
+	}
+
+	public long getMaxLatencyMicros(Stage stage){
+		return lanes.get(stage.ordinal()).maxNanos.get() / 1000;
+	}
+
+	/**
+	 * @return Time from receiving a message until the ROUTE stage starts on it
+	 */
+	public LatencyHistogram getRouteLatency(){
+		return routeLatency;
+	}
+
+	/**
+	 * @return Time from receiving a message until the messages it caused have been handed to every recipient's writer
+	 */
+	public LatencyHistogram getWriteLatency(){
+		return writeLatency;
+	}
+
+	/**
+	 * @return Number of messages dropped because they could not be decoded or failed validation
+	 */
+	public long getRejected(){
+		return rejected.get();
+	}
+
+	/**
+	 * @return One line summary of every stage, used for the server status log
+	 */
+	public String getMetrics(){
+		StringBuilder metrics = new StringBuilder("PIPELINE");
+		for(Stage stage : Stage.values()){
+			metrics.append(" | ");
+			metrics.append(stage.name());
+			metrics.append(" queued=").append(getQueueDepth(stage));
+			metrics.append(" done=").append(getProcessed(stage));
+			metrics.append(" avg=").append(getAverageLatencyMicros(stage)).append("us");
+			metrics.append(" max=").append(getMaxLatencyMicros(stage)).append("us");
+		}
+		metrics.append(" | rejected=").append(getRejected());
+		metrics.append(" | receive->route ").append(routeLatency.getSummary());
+		metrics.append(" | receive->write ").append(writeLatency.getSummary());
+		metrics.append(" | ").append(fanOut.getMetrics());
+		return metrics.toString();
+	}
+
+	/**
+	 * A message on its way through the stages.
+	 */
+	private class Job implements Runnable{
+		private Stage stage;
+		private final int key; //jobs with the same key run on the same thread of a stage
+		private StageLane lane;
+		private long queuedAt;
+		private long receivedNanos;
+		private ConnectionThread connection;
+		private String incomingStr;
+		private Message message;
+		private PrintWriter[] recipients;
+		private Map<String, String> encoded; //encoding name -> encoded message
+
+		Job(Stage stage, int key){
+			this.stage = stage;
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			boolean next = false;
+			try{
+				next = process(this);
+			} catch (Exception e){
+				e.printStackTrace();
+			} finally {
+				lane.finished(queuedAt);
+			}
+			if(next){
+				stage = Stage.values()[stage.ordinal() + 1];
+				submit(this);
+			}
+		}
+	}
+
+	/**
+	 * The threads and metrics of one stage.
+	 */
+	private static class StageLane{
+		private final ExecutorService[] executors;
+		private final AtomicInteger depth = new AtomicInteger();
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		StageLane(final Stage stage, int threads){
+			executors = new ExecutorService[Math.max(0, threads)];
+			for(int i = 0; i < executors.length; i++){
+				final String name = "Pipeline-" + stage.name() + "-" + i;
+				ThreadFactory threadFactory = new ThreadFactory(){
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					}
+				};
+				if(SPIN_NANOS > 0){
+					executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new SpinningQueue<Runnable>(SPIN_NANOS), threadFactory);
+				} else {
+					executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+				}
+			}
+		}
+
+		/**
+		 * @return The executor for the key, or null if the stage runs on the caller's thread
+		 */
+		ExecutorService executorFor(int key){
+			if(executors.length == 0) return null;
+			return executors[Math.floorMod(key, executors.length)];
+		}
+
+		void finished(long queuedAt){
+			long nanos = System.nanoTime() - queuedAt;
+			depth.decrementAndGet();
+			processed.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+				max = maxNanos.get();
+			}
+		}
+
+		void shutdown(){
+			for(ExecutorService executor : executors){
+				executor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * A queue whose consumer busy-waits for up to spinNanos before going to sleep.
+	 */
+	private static class SpinningQueue<E> extends LinkedBlockingQueue<E>{
+		private static final long serialVersionUID = 1L;
+		private final long spinNanos;
+
+		SpinningQueue(long spinNanos){
+			this.spinNanos = spinNanos;
+		}
+
+		@Override
+		public E take() throws InterruptedException {
+			long deadline = System.nanoTime() + spinNanos;
+			do{
+				E e = poll();
+				if(e != null) return e;
+			} while(System.nanoTime() < deadline);
+			return super.take();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * NameTrie holds the names of the online clients in a trie so names can be completed from a prefix
+ * and @mentions can be found without comparing the content against every name.
+ *
+ * The trie is copy on write: nodes never change, adding or removing a name copies the nodes on its path and swaps in the new root.
+ * Completing names and finding mentions, which every broadcast does, read whatever root is current and take no lock.
+ * Writers don't lock either, one that loses the race to swap the root does its change again on the new one.
+ *
+ * @author danielnewton
+ *
+ */
+public class NameTrie {
+
+	public static final char MENTION_CHAR = '@';
+
+	private final AtomicReference<Node> root = new AtomicReference<Node>(Node.EMPTY);
+
+	public void add(String name){
+		if(name == null || name.isEmpty()) return;
+		while(true){
+			Node current = root.get();
+			Node updated = add(current, name, 0);
+			if(updated == current || root.compareAndSet(current, updated)) return;
+		}
+	}
+
+	/**
+	 * @return A copy of node with the name added below it, or node itself if it is already there
+	 */
+	private Node add(Node node, String name, int depth){
+		if(depth == name.length()){
+			return name.equals(node.name) ? node : node.withName(name);
+		}
+		char c = name.charAt(depth);
+		Node child = node.child(c);
+		Node updated = add(child == null ? Node.EMPTY : child, name, depth + 1);
+		return updated == child ? node : node.withChild(c, updated);
+	}
+
+	public void remove(String name){
+		if(name == null || name.isEmpty()) return;
+		while(true){
+			Node current = root.get();
+			Node updated = remove(current, name, 0);
+			if(updated == null) updated = Node.EMPTY;
+			if(updated == current || root.compareAndSet(current, updated)) return;
+		}
+	}
+
+	/**
+	 * @return A copy of node without the name, node itself if the name is not there, or null if no names are left below it
+	 */
+	private Node remove(Node node, String name, int depth){
+		Node updated;
+		if(depth == name.length()){
+			if(node.name == null) return node;
+			updated = node.withName(null);
+		} else {
+			char c = name.charAt(depth);
+			Node child = node.child(c);
+			if(child == null) return node;
+			Node removed = remove(child, name, depth + 1);
+			if(removed == child) return node;
+			updated = node.withChild(c, removed);
+		}
+		return updated.count == 0 ? null : updated;
+	}
+
+	/**
+	 * Returns the first k names in alphabetical order that start with prefix.
+	 */
+	public List<String> complete(String prefix, int k){
+		List<String> names = new ArrayList<String>();
+		Node node = root.get();
+		if(prefix != null){
+			for(int i = 0; i < prefix.length() && node != null; i++){
+				node = node.child(prefix.charAt(i));
+			}
+		}
+		if(node != null) collect(node, k, names);
+		return names;
+	}
+
+	private void collect(Node node, int k, List<String> names){
+		if(names.size() >= k) return;
+		if(node.name != null) names.add(node.name);
+		for(Node child : node.children){
+			if(names.size() >= k) return;
+			collect(child, k, names);
+		}
+	}
+
+	/**
+	 * Finds the online names mentioned in content as @name.
+	 * For each @ the trie is walked along the following text and the longest name that ends at a word boundary wins,
+	 * so "@ann" and "@anna" are told apart.
+	 *
+	 * @return The mentioned names in the order they first appear
+	 */
+	public Set<String> findMentions(String content){
+		Set<String> mentions = new LinkedHashSet<String>();
+		if(content == null) return mentions;
+		Node top = root.get(); //the whole message is matched against the same names
+		for(int i = 0; i < content.length(); i++){
+			if(content.charAt(i) != MENTION_CHAR) continue;
+			if(i > 0 && Character.isLetterOrDigit(content.charAt(i - 1))) continue; //part of an email address or similar
+			Node node = top;
+			String match = null;
+			int j = i + 1;
+			while(j < content.length() && (node = node.child(content.charAt(j))) != null){
+				j++;
+				if(node.name != null && (j == content.length() || !Character.isLetterOrDigit(content.charAt(j)))){
+					match = node.name;
+				}
+			}
+			if(match != null) mentions.add(match);
+		}
+		return mentions;
+	}
+
+	public int size(){
+		return root.get().count;
+	}
+
+	/**
+	 * A node that never changes. Its children are kept sorted by character so completions come out in order.
+	 */
+	private static class Node{
+		static final Node EMPTY = new Node(new char[0], new Node[0], null);
+
+		final char[] keys;
+		final Node[] children;
+		final String name; //set if a name ends here
+		final int count; //names ending here and below
+
+		Node(char[] keys, Node[] children, String name){
+			this.keys = keys;
+			this.children = children;
+			this.name = name;
+			int count = name == null ? 0 : 1;
+			for(Node child : children) count += child.count;
+			this.count = count;
+		}
+
+		Node child(char c){
+			int i = Arrays.binarySearch(keys, c);
+			return i < 0 ? null : children[i];
+		}
+
+		Node withName(String name){
+			return new Node(keys, children, name);
+		}
+
+		/**
+		 * @return A copy with the child for c replaced, added if there was none, or removed if child is null
+		 */
+		Node withChild(char c, Node child){
+			int i = Arrays.binarySearch(keys, c);
+			if(i >= 0 && child != null){
+				Node[] copy = children.clone();
+				copy[i] = child;
+				return new Node(keys, copy, name);
+			}
+			if(i >= 0){
+				char[] k = new char[keys.length - 1];
+				Node[] n = new Node[children.length - 1];
+				System.arraycopy(keys, 0, k, 0, i);
+				System.arraycopy(keys, i + 1, k, i, keys.length - i - 1);
+				System.arraycopy(children, 0, n, 0, i);
+				System.arraycopy(children, i + 1, n, i, children.length - i - 1);
+				return new Node(k, n, name);
+			}
+			if(child == null) return this;
+			int at = -i - 1;
+			char[] k = new char[keys.length + 1];
+			Node[] n = new Node[children.length + 1];
+			System.arraycopy(keys, 0, k, 0, at);
+			System.arraycopy(keys, at, k, at + 1, keys.length - at);
+			System.arraycopy(children, 0, n, 0, at);
+			System.arraycopy(children, at, n, at + 1, children.length - at);
+			k[at] = c;
+			n[at] = child;
+			return new Node(k, n, name);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+
+/**
+ * ParallelFanOut writes delivered messages to their recipients for the DELIVER stage of the MessagePipeline.
+ * Messages for up to THRESHOLD recipients are written by the calling thread. Bigger audiences are split into chunks of CHUNK
+ * recipients that are written by a work stealing ForkJoinPool, so a big broadcast finishes sooner the more cores there are
+ * and the thread that delivered it moves on straight away.
+ *
+ * Messages from one sender reach every recipient in the order they were sent. Each sender has a Sequence, and a message is only
+ * started once every chunk of the previous message in its sequence has been written. Senders share SEQUENCES sequences by hash,
+ * so memory doesn't grow with the number of senders.
+ *
+ * Configured with these properties:
+ * chatapp.fanout.threads - threads writing chunks, default the number of cores, 0 writes everything on the calling thread
+ * chatapp.fanout.threshold - the most recipients written by the calling thread, default 2048
+ * chatapp.fanout.chunk - recipients in one chunk, default 1024
+ *
+ * @author danielnewton
+ *
+ */
+class ParallelFanOut {
+
+	private static final int SEQUENCES = 1024;
+
+	private final MessagePipeline pipeline;
+	private final ForkJoinPool pool;
+	private final int THRESHOLD = Integer.getInteger("chatapp.fanout.threshold", 2048);
+	private final int CHUNK = Math.max(1, Integer.getInteger("chatapp.fanout.chunk", 1024));
+	private final Sequence[] sequences = new Sequence[SEQUENCES];
+	private final AtomicLong parallelDeliveries = new AtomicLong();
+	private final AtomicLong chunks = new AtomicLong();
+	private final LatencyHistogram fanOutTime = new LatencyHistogram();
+
+	ParallelFanOut(MessagePipeline pipeline){
+		this.pipeline = pipeline;
+		int threads = Integer.getInteger("chatapp.fanout.threads", Runtime.getRuntime().availableProcessors());
+		if(threads <= 0){
+			pool = null;
+			return;
+		}
+		pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory(){
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				t.setName("FanOut-" + t.getPoolIndex());
+				t.setDaemon(true);
+				return t;
+			}
+		}, null, false);
+		for(int i = 0; i < SEQUENCES; i++){
+			sequences[i] = new Sequence();
+		}
+	}
+
+	/**
+	 * Writes the message to every recipient, now or once the earlier messages of its sequence have been written.
+	 * @param key Identifies the sender, messages with the same key keep their order
+	 * @param encoded Encoding name -> encoded message
+	 */
+	void deliver(int key, Message message, Map<String, String> encoded, PrintWriter[] recipients){
+		Delivery delivery = new Delivery(message, encoded, recipients);
+		if(pool == null){
+			write(delivery, 0, recipients.length);
+			pipeline.delivered(message);
+			return;
+		}
+		Sequence sequence = sequences[Math.floorMod(key, SEQUENCES)];
+		synchronized(sequence){
+			if(sequence.busy){ //wait for the messages before it
+				sequence.waiting.add(delivery);
+				return;
+			}
+			sequence.busy = true;
+		}
+		run(sequence, delivery);
+	}
+
+	/**
+	 * Writes deliveries of the sequence until it is empty or a delivery has been handed to the pool.
+	 * The last chunk of that delivery carries on with the sequence.
+	 */
+	private void run(Sequence sequence, Delivery delivery){
+		while(delivery != null){
+			if(delivery.recipients.length > THRESHOLD){
+				delivery.sequence = sequence;
+				delivery.started = System.nanoTime();
+				delivery.pending.set((delivery.recipients.length + CHUNK - 1) / CHUNK);
+				parallelDeliveries.incrementAndGet();
+				pool.execute(new Chunk(delivery, 0, delivery.recipients.length));
+				return;
+			}
+			write(delivery, 0, delivery.recipients.length);
+			pipeline.delivered(delivery.message);
+			delivery = next(sequence);
+		}
+	}
+
+	/**
+	 * @return The next delivery of the sequence, or null after marking the sequence idle
+	 */
+	private Delivery next(Sequence sequence){
+		synchronized(sequence){
+			Delivery delivery = sequence.waiting.poll();
+			if(delivery == null) sequence.busy = false;
+			return delivery;
+		}
+	}
+
+	private void write(Delivery delivery, int from, int to){
+		try{
+			pipeline.write(delivery.message, delivery.encoded, delivery.recipients, from, to);
+		}catch(Exception e){ //one bad recipient must not stop the sequence
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return One line summary of the parallel deliveries, used in the pipeline metrics
+	 */
+	String getMetrics(){
+		if(pool == null) return "fanout off";
+		return "fanout parallel=" + parallelDeliveries.get() + " chunks=" + chunks.get() + " steals=" + pool.getStealCount()
+				+ " time " + fanOutTime.getSummary();
+	}
+
+	/**
+	 * The deliveries of the senders that share one sequence.
+	 */
+	private static class Sequence{
+		private final ArrayDeque<Delivery> waiting = new ArrayDeque<Delivery>();
+		private boolean busy = false; //a delivery of this sequence is being written
+	}
+
+	/**
+	 * A message waiting to be written or being written.
+	 */
+	private static class Delivery{
+		private final Message message;
+		private final Map<String, String> encoded;
+		private final PrintWriter[] recipients;
+		private final AtomicInteger pending = new AtomicInteger(); //chunks not written yet
+		private Sequence sequence;
+		private long started;
+
+		Delivery(Message message, Map<String, String> encoded, PrintWriter[] recipients){
+			this.message = message;
+			this.encoded = encoded;
+			this.recipients = recipients;
+		}
+	}
+
+	/**
+	 * Writes the first chunk of its range and forks the rest, idle pool threads steal the forked chunks.
+	 */
+	private class Chunk extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		private final Delivery delivery;
+		private final int from;
+		private final int to;
+
+		Chunk(Delivery delivery, int from, int to){
+			this.delivery = delivery;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > CHUNK){
+				int middle = from + ((to - from) / CHUNK / 2) * CHUNK; //split on a chunk boundary so pending counts match
+				if(middle == from) middle += CHUNK;
+				new Chunk(delivery, middle, to).fork();
+				new Chunk(delivery, from, middle).compute();
+				return;
+			}
+			write(delivery, from, to);
+			chunks.incrementAndGet();
+			if(delivery.pending.decrementAndGet() == 0){ //the last chunk finishes the delivery
+				fanOutTime.record(System.nanoTime() - delivery.started);
+				pipeline.delivered(delivery.message);
+				run(delivery.sequence, next(delivery.sequence));
+			}
+		}
+	}
+}
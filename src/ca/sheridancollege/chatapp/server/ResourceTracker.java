@@ -0,0 +1,156 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResourceTracker accounts for what every connection holds: its socket, its threads, the messages waiting in its writer
+ * and its entry in the ChatServer registry. Once a connection closes, everything it held should be released within LEAK_GRACE.
+ * checkLeaks() looks at the connections that closed since the last check and logs any resource that outlived its connection.
+ * Closed connections are only remembered until they have been checked, so the tracker doesn't grow with churn.
+ *
+ * @author danielnewton
+ *
+ */
+public class ResourceTracker {
+
+	private static final long LEAK_GRACE = Long.getLong("chatapp.leak.grace", 5000L);
+	private static final ConcurrentHashMap<Integer, ConnectionResources> open = new ConcurrentHashMap<Integer, ConnectionResources>();
+	private static final ConcurrentHashMap<Integer, ConnectionResources> closed = new ConcurrentHashMap<Integer, ConnectionResources>();
+	private static final AtomicLong opened = new AtomicLong();
+	private static final AtomicLong leaks = new AtomicLong();
+
+	private ResourceTracker(){
+	}
+
+	/**
+	 * Starts accounting for a new connection.
+	 */
+	static ConnectionResources open(int connectionId){
+		ConnectionResources resources = new ConnectionResources(connectionId);
+		open.put(connectionId, resources);
+		opened.incrementAndGet();
+		return resources;
+	}
+
+	/**
+	 * Checks the connections that have been closed for longer than LEAK_GRACE and logs the resources they still hold.
+	 * @return The number of leaking connections found by this check
+	 */
+	public static int checkLeaks(){
+		long now = System.currentTimeMillis();
+		int found = 0;
+		Iterator<ConnectionResources> i = closed.values().iterator();
+		while(i.hasNext()){
+			ConnectionResources resources = i.next();
+			if(now - resources.closedAt < LEAK_GRACE) continue;
+			i.remove();
+			String leak = resources.findLeak();
+			if(leak != null){
+				found++;
+				leaks.incrementAndGet();
+				ChatServer.log("LEAK connection " + resources.connectionId + " closed " + (now - resources.closedAt) + "ms ago: " + leak);
+			}
+		}
+		return found;
+	}
+
+	public static int getOpenConnections(){
+		return open.size();
+	}
+
+	/**
+	 * @return Connections closed but not yet checked for leaks
+	 */
+	public static int getClosingConnections(){
+		return closed.size();
+	}
+
+	public static long getLeaks(){
+		return leaks.get();
+	}
+
+	/**
+	 * @return Open file descriptors of the process, or -1 where the operating system doesn't report them
+	 */
+	public static long getOpenFileDescriptors(){
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.UnixOperatingSystemMXBean){
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return One line summary of connection and process resources, used for the server status log
+	 */
+	public static String getStats(){
+		Runtime runtime = Runtime.getRuntime();
+		return "RESOURCES connections=" + open.size() + " closing=" + closed.size() + " opened=" + opened.get() + " leaks=" + leaks.get()
+				+ " threads=" + ManagementFactory.getThreadMXBean().getThreadCount() + " fds=" + getOpenFileDescriptors()
+				+ " heap=" + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + "MB";
+	}
+
+	/**
+	 * The resources held by one connection.
+	 */
+	static class ConnectionResources{
+		private final int connectionId;
+		private volatile long closedAt = 0;
+		private volatile Socket socket = null;
+		private volatile PrintWriter out = null;
+		private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+
+		private ConnectionResources(int connectionId){
+			this.connectionId = connectionId;
+		}
+
+		void setSocket(Socket socket){
+			this.socket = socket;
+		}
+
+		/**
+		 * @param out The writer the connection is registered with
+		 */
+		void setOut(PrintWriter out){
+			this.out = out;
+		}
+
+		void addThread(Thread thread){
+			threads.add(thread);
+		}
+
+		/**
+		 * Marks the connection closed. Its resources are checked once LEAK_GRACE has passed.
+		 */
+		void close(){
+			if(closedAt != 0) return;
+			closedAt = System.currentTimeMillis();
+			open.remove(connectionId);
+			closed.put(connectionId, this);
+		}
+
+		/**
+		 * @return What the connection still holds, or null if everything was released
+		 */
+		private String findLeak(){
+			StringBuilder leak = new StringBuilder();
+			if(socket != null && !socket.isClosed()) leak.append(" socket still open;");
+			for(Thread thread : threads){
+				if(thread.isAlive()) leak.append(" thread ").append(thread.getName()).append(" still running;");
+			}
+			if(out instanceof LaneWriter && ((LaneWriter) out).getQueued() > 0){
+				leak.append(" ").append(((LaneWriter) out).getQueued()).append(" messages still queued;");
+			}
+			if(out != null && ChatServer.isRegistered(out)) leak.append(" still in the registry;");
+			return leak.length() == 0 ? null : leak.toString().trim();
+		}
+	}
+}
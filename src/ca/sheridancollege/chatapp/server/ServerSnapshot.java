@@ -0,0 +1,124 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ca.sheridancollege.chatapp.server.SessionStore.Session;
+import ca.sheridancollege.chatapp.server.search.IndexedMessage;
+
+/**
+ * ServerSnapshot is the state the server saves to disk so a restart does not lose the sessions and the chat history.
+ *
+ * The file is a gzipped stream of: magic, version, creation time, the sessions (token, name, last seen)
+ * and the history (sender, content, timestamp), each list prefixed by its length.
+ * It is written to a temporary file and moved over the old snapshot, so a crash while writing never leaves a broken snapshot behind.
+ *
+ * @author danielnewton
+ *
+ */
+class ServerSnapshot {
+
+	private static final int MAGIC = 0x43534e50; //"CSNP"
+	private static final int VERSION = 1;
+	private static final int MAX_STRING_BYTES = 4 * MessagePipeline.MAX_CONTENT_LENGTH; //UTF-8 uses at most 4 bytes a character
+
+	private final long createdAt;
+	private final List<Session> sessions;
+	private final List<IndexedMessage> history;
+
+	ServerSnapshot(long createdAt, List<Session> sessions, List<IndexedMessage> history) {
+		this.createdAt = createdAt;
+		this.sessions = sessions;
+		this.history = history;
+	}
+
+	long getCreatedAt(){
+		return createdAt;
+	}
+
+	List<Session> getSessions(){
+		return sessions;
+	}
+
+	/**
+	 * @return Broadcasts, oldest first
+	 */
+	List<IndexedMessage> getHistory(){
+		return history;
+	}
+
+	void write(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp), 65536)))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(createdAt);
+			out.writeInt(sessions.size());
+			for(Session s : sessions){
+				writeString(out, s.token);
+				writeString(out, s.name);
+				out.writeLong(s.lastSeen);
+			}
+			out.writeInt(history.size());
+			for(IndexedMessage m : history){
+				writeString(out, m.getSender());
+				writeString(out, m.getContent());
+				out.writeLong(m.getTimestamp());
+			}
+		}
+		try{
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e){
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	static ServerSnapshot read(Path file) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 65536)))){
+			if(in.readInt() != MAGIC) throw new IOException(file + " is not a server snapshot");
+			int version = in.readInt();
+			if(version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+			long createdAt = in.readLong();
+			int sessionCount = in.readInt();
+			List<Session> sessions = new ArrayList<Session>(sessionCount);
+			for(int i = 0; i < sessionCount; i++){
+				sessions.add(new Session(readString(in), readString(in), in.readLong()));
+			}
+			int historyCount = in.readInt();
+			List<IndexedMessage> history = new ArrayList<IndexedMessage>(historyCount);
+			for(int i = 0; i < historyCount; i++){
+				history.add(new IndexedMessage(readString(in), readString(in), in.readLong()));
+			}
+			return new ServerSnapshot(createdAt, sessions, history);
+		}
+	}
+
+	/**
+	 * writeUTF is limited to 64KB, message content can be longer once encoded.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0 || length > MAX_STRING_BYTES) throw new IOException("Corrupt snapshot");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
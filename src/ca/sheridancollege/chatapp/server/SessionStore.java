@@ -0,0 +1,136 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SessionStore gives every named client a session token, so the client can get its name back after the server restarts.
+ * Sessions restored from a snapshot wait for their client to come back for a grace period. Until then nobody else can take their name.
+ * SessionStore is thread safe without a lock of its own, so clients on different shards don't wait for each other here either.
+ * ClientRegistry changes it while holding the lock of the client's shard, so each name's changes stay in order.
+ *
+ * @author danielnewton
+ *
+ */
+class SessionStore {
+
+	private final ConcurrentHashMap<String, Session> live = new ConcurrentHashMap<String, Session>(); //name -> session of online clients
+	private final ConcurrentHashMap<String, Session> restored = new ConcurrentHashMap<String, Session>(); //token -> session waiting to be resumed
+	private final ConcurrentHashMap<String, Session> reserved = new ConcurrentHashMap<String, Session>(); //name -> session waiting to be resumed
+	private volatile long restoredUntil = 0;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Starts a session for a client that has just picked a name.
+	 * @return The session token
+	 */
+	String open(String name){
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), name, System.currentTimeMillis());
+		live.put(name, session);
+		return session.token;
+	}
+
+	/**
+	 * @return The token of an online client, or null
+	 */
+	String getToken(String name){
+		Session session = live.get(name);
+		return session == null ? null : session.token;
+	}
+
+	void rename(String oldName, String newName){
+		Session session = live.remove(oldName);
+		if(session == null) return;
+		session.name = newName;
+		live.put(newName, session);
+	}
+
+	void close(String name){
+		live.remove(name);
+	}
+
+	/**
+	 * Takes back a session that was restored from a snapshot.
+	 * @return The session, or null if the token is unknown or the grace period is over
+	 */
+	Session resume(String token){
+		expire();
+		if(token == null) return null;
+		Session session = restored.remove(token); //only one client can take it
+		if(session == null) return null;
+		reserved.remove(session.name);
+		live.put(session.name, session);
+		return session;
+	}
+
+	/**
+	 * @return The name of the restored session with the token, or null if the token is unknown or the grace period is over
+	 */
+	String getReservedName(String token){
+		expire();
+		if(token == null) return null;
+		Session session = restored.get(token);
+		return session == null ? null : session.name;
+	}
+
+	/**
+	 * @return true if the name belongs to a restored session that has not been resumed yet
+	 */
+	boolean isReserved(String name){
+		expire();
+		return reserved.containsKey(name);
+	}
+
+	/**
+	 * @return Copies of the online sessions as of now, and of the restored sessions still waiting to be resumed
+	 */
+	List<Session> getSessions(){
+		expire();
+		long now = System.currentTimeMillis();
+		List<Session> sessions = new ArrayList<Session>(live.size() + restored.size());
+		for(Session s : live.values()){
+			sessions.add(new Session(s.token, s.name, now));
+		}
+		sessions.addAll(restored.values());
+		return sessions;
+	}
+
+	/**
+	 * Holds the sessions of a snapshot for their clients to resume. Called before any client connects.
+	 * @param graceMillis How long the sessions wait to be resumed
+	 */
+	void restore(List<Session> sessions, long graceMillis){
+		restoredUntil = System.currentTimeMillis() + graceMillis;
+		for(Session s : sessions){
+			restored.put(s.token, s);
+			reserved.put(s.name, s);
+		}
+	}
+
+	private void expire(){
+		if(!restored.isEmpty() && System.currentTimeMillis() > restoredUntil){
+			restored.clear();
+			reserved.clear();
+		}
+	}
+
+	/**
+	 * A client's name and the token that proves it is theirs.
+	 */
+	static class Session{
+		final String token;
+		volatile String name;
+		final long lastSeen; //when the client was last known to be connected
+
+		Session(String token, String name, long lastSeen){
+			this.token = token;
+			this.name = name;
+			this.lastSeen = lastSeen;
+		}
+	}
+}
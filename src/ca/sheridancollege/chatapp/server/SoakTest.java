@@ -0,0 +1,238 @@
+package ca.sheridancollege.chatapp.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+
+/**
+ * SoakTest starts a server in this JVM and churns connections against it: each cycle connects, picks a name, broadcasts
+ * a message and disconnects, cleanly with CONNECTION_CLOSE or by dropping the socket. Half of the cycles do each.
+ * After a warm up the thread count, open file descriptors and heap are measured, then again once every cycle has run and
+ * the closed connections have been checked by the ResourceTracker. It passes if they stayed flat and no leak was found.
+ *
+ * Usage: SoakTest [cycles] [concurrency], default 2000 cycles on 16 threads. Exits with 0 on PASS and 1 on FAIL.
+ * Run it without TLS and with nothing else using port 60000.
+ *
+ * @author danielnewton
+ *
+ */
+public class SoakTest {
+
+	private static final String HOST = "localhost";
+	private static final int PORT = 60000;
+	private static final int THREAD_SLACK = 10;
+	private static final int FD_SLACK = 20;
+	private static final long HEAP_SLACK = 32 * 1024 * 1024; //chat history is kept, so the heap grows a little with the messages
+	private static final long SETTLE_TIMEOUT = 60000;
+
+	private final int concurrency;
+	private final AtomicInteger nextClient = new AtomicInteger();
+	private final AtomicLong failures = new AtomicLong();
+
+	private SoakTest(int concurrency){
+		this.concurrency = concurrency;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		if(TlsTransport.isEnabled()){
+			System.out.println("SoakTest talks to the server in plain text, run it without chatapp.tls");
+			System.exit(1);
+		}
+		if(System.getProperty("chatapp.leak.grace") == null) System.setProperty("chatapp.leak.grace", "1000");
+
+		Thread server = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				ChatServer.main(new String[0]);
+			}
+		}, "SoakServer");
+		server.setDaemon(true);
+		server.start();
+
+		SoakTest soak = new SoakTest(concurrency);
+		Socket anchor = soak.connectAnchor(); //the server closes itself when nobody is connected
+		soak.churn(Math.max(100, cycles / 10));
+		soak.settle();
+		Usage baseline = Usage.measure();
+		System.out.println("Baseline: " + baseline);
+
+		long start = System.currentTimeMillis();
+		soak.churn(cycles);
+		long elapsed = System.currentTimeMillis() - start;
+		boolean settled = soak.settle();
+		Usage after = Usage.measure();
+		System.out.println("After " + cycles + " cycles in " + elapsed + "ms: " + after);
+		System.out.println(ResourceTracker.getStats());
+		anchor.close();
+
+		boolean pass = settled;
+		if(!settled) System.out.println("FAIL: " + ResourceTracker.getOpenConnections() + " connections never closed");
+		if(soak.failures.get() > 0){
+			System.out.println("FAIL: " + soak.failures.get() + " cycles failed");
+			pass = false;
+		}
+		if(ResourceTracker.getLeaks() > 0){
+			System.out.println("FAIL: " + ResourceTracker.getLeaks() + " connections leaked resources, see the log");
+			pass = false;
+		}
+		if(after.threads > baseline.threads + THREAD_SLACK){
+			System.out.println("FAIL: threads grew from " + baseline.threads + " to " + after.threads);
+			pass = false;
+		}
+		if(baseline.fds >= 0 && after.fds > baseline.fds + FD_SLACK){
+			System.out.println("FAIL: file descriptors grew from " + baseline.fds + " to " + after.fds);
+			pass = false;
+		}
+		if(after.heap > baseline.heap + HEAP_SLACK){
+			System.out.println("FAIL: heap grew from " + baseline.heap / (1024 * 1024) + "MB to " + after.heap / (1024 * 1024) + "MB");
+			pass = false;
+		}
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	/**
+	 * Connects a client that stays for the whole test, waiting for the server to start listening.
+	 */
+	private Socket connectAnchor() throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(true){
+			try{
+				final Socket socket = new Socket();
+				socket.connect(new InetSocketAddress(HOST, PORT), 1000);
+				final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				PrintWriter out = new PrintWriter(socket.getOutputStream());
+				send(out, MessageContext.CONNECTION_OPEN, null);
+				send(out, MessageContext.CLIENT_NAME, "soak-anchor");
+				Thread drain = new Thread(new Runnable(){ //read everything so the server never has to drop messages for it
+					@Override
+					public void run() {
+						try{
+							while(in.readLine() != null);
+						}catch(IOException e){
+							//the test is over
+						}
+					}
+				}, "SoakAnchor");
+				drain.setDaemon(true);
+				drain.start();
+				return socket;
+			}catch(IOException e){
+				if(System.currentTimeMillis() > deadline) throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Runs connect and disconnect cycles on concurrency threads.
+	 */
+	private void churn(final int cycles) throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(cycles);
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		for(int i = 0; i < concurrency; i++){
+			workers.execute(new Runnable(){
+				@Override
+				public void run() {
+					while(remaining.getAndDecrement() > 0){
+						try{
+							cycle(nextClient.incrementAndGet());
+						}catch(IOException e){
+							failures.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(1, TimeUnit.HOURS);
+	}
+
+	/**
+	 * One client's whole life.
+	 */
+	private void cycle(int client) throws IOException {
+		String name = "soak-" + client;
+		try(Socket socket = new Socket()){
+			socket.connect(new InetSocketAddress(HOST, PORT), 5000);
+			socket.setSoTimeout(10000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			PrintWriter out = new PrintWriter(socket.getOutputStream());
+			send(out, MessageContext.CONNECTION_OPEN, null);
+			send(out, MessageContext.CLIENT_NAME, name);
+			send(out, MessageContext.SEND_BROADCAST, "soak message from " + name);
+			//wait for the name to be accepted, so the connection went all the way into the registry
+			while(true){
+				String line = in.readLine();
+				if(line == null) throw new IOException(name + " was disconnected before it got its name");
+				Message message = Message.createFromString(line);
+				if(message != null && message.getContext() == MessageContext.CLIENT_NAME) break;
+			}
+			if(client % 2 == 0){
+				send(out, MessageContext.CONNECTION_CLOSE, null);
+				while(in.readLine() != null); //the server closes the socket
+			}
+		} //odd clients just drop the socket
+	}
+
+	private static void send(PrintWriter out, MessageContext context, String content){
+		Message message = new Message(context, out);
+		message.setContent(content);
+		message.send();
+	}
+
+	/**
+	 * Waits until only the anchor is open and every closed connection has been checked for leaks, then collects garbage.
+	 * @return false if connections were still open when the time ran out
+	 */
+	private boolean settle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+		while(ResourceTracker.getOpenConnections() > 1 || ResourceTracker.getClosingConnections() > 0){
+			if(System.currentTimeMillis() > deadline) return false;
+			ResourceTracker.checkLeaks();
+			Thread.sleep(200);
+		}
+		for(int i = 0; i < 3; i++){
+			System.gc();
+			Thread.sleep(200);
+		}
+		return true;
+	}
+
+	/**
+	 * Process resources at one moment.
+	 */
+	private static class Usage{
+		private int threads;
+		private long fds;
+		private long heap;
+
+		static Usage measure(){
+			Usage usage = new Usage();
+			usage.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			usage.fds = ResourceTracker.getOpenFileDescriptors();
+			usage.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			return usage;
+		}
+
+		@Override
+		public String toString(){
+			return "threads=" + threads + " fds=" + fds + " heap=" + heap / (1024 * 1024) + "MB";
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ca.sheridancollege.chatapp.server.analytics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CountMinSketch estimates how often each key has been seen in a fixed amount of memory, however many keys there are.
+ * Each key is counted in one cell of every row, and its estimate is the smallest of those cells.
+ * Estimates are never too low, and too high by at most 2/WIDTH of the total count with 98% confidence.
+ * Adding is lock free.
+ *
+ * @author danielnewton
+ *
+ */
+class CountMinSketch {
+
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1024; //power of two
+	private final AtomicLongArray cells = new AtomicLongArray(DEPTH * WIDTH);
+
+	void add(String key, long count){
+		long hash = Hash64.of(key);
+		for(int row = 0; row < DEPTH; row++){
+			cells.addAndGet(cellOf(hash, row), count);
+		}
+	}
+
+	long estimate(String key){
+		long hash = Hash64.of(key);
+		long estimate = Long.MAX_VALUE;
+		for(int row = 0; row < DEPTH; row++){
+			estimate = Math.min(estimate, cells.get(cellOf(hash, row)));
+		}
+		return estimate;
+	}
+
+	void reset(){
+		for(int i = 0; i < cells.length(); i++){
+			cells.set(i, 0);
+		}
+	}
+
+	/**
+	 * Each row uses a different combination of the two halves of the hash, which is as good as independent hash functions.
+	 */
+	private static int cellOf(long hash, int row){
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		return row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+	}
+}
@@ -0,0 +1,30 @@
+package ca.sheridancollege.chatapp.server.analytics;
+
+/**
+ * Hash64 gives strings a well mixed 64 bit hash for the sketches and for RecentIds. String.hashCode() has too few bits and similar names get similar hashes.
+ *
+ * @author danielnewton
+ *
+ */
+public class Hash64 {
+
+	private Hash64(){
+	}
+
+	/**
+	 * FNV-1a over the characters, then the MurmurHash3 finalizer to spread the bits.
+	 */
+	public static long of(String key){
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); i++){
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,62 @@
+package ca.sheridancollege.chatapp.server.analytics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog estimates how many different keys have been seen, within about 1.6%, using REGISTERS small counters.
+ * Each key picks a register with the top bits of its hash, which keeps the longest run of leading zeros seen in the rest.
+ * Sketches are combined by taking the largest value of each register, which is how a window of them is counted.
+ * Adding is lock free.
+ *
+ * @author danielnewton
+ *
+ */
+class HyperLogLog {
+
+	private static final int PRECISION = 12;
+	static final int REGISTERS = 1 << PRECISION;
+	private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+	void add(String key){
+		long hash = Hash64.of(key);
+		int register = (int) (hash >>> (64 - PRECISION));
+		int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		while(true){
+			int current = registers.get(register);
+			if(current >= rank || registers.compareAndSet(register, current, rank)) return;
+		}
+	}
+
+	/**
+	 * Combines this sketch into the registers of another.
+	 */
+	void mergeInto(int[] merged){
+		for(int i = 0; i < REGISTERS; i++){
+			merged[i] = Math.max(merged[i], registers.get(i));
+		}
+	}
+
+	void reset(){
+		for(int i = 0; i < REGISTERS; i++){
+			registers.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return The estimated number of different keys counted in the registers
+	 */
+	static long estimate(int[] merged){
+		double sum = 0;
+		int zeros = 0;
+		for(int value : merged){
+			sum += 1.0 / (1L << value);
+			if(value == 0) zeros++;
+		}
+		double m = REGISTERS;
+		double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+		if(estimate <= 2.5 * m && zeros > 0){ //few keys, counting the empty registers is more accurate
+			estimate = m * Math.log(m / zeros);
+		}
+		return Math.round(estimate);
+	}
+}
@@ -0,0 +1,295 @@
+package ca.sheridancollege.chatapp.server.analytics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.server.ConnectionThread;
+import ca.sheridancollege.chatapp.server.LatencyHistogram;
+import ca.sheridancollege.chatapp.server.MessageInterceptor;
+
+/**
+ * UsageAnalytics keeps live statistics about chat over a sliding window: the message rate, the top talkers,
+ * how many different users are active and how big messages are. It sees every message in the INTERCEPT stage and passes it on unchanged.
+ *
+ * Nothing is stored per message or per user. The window is split into BUCKETS buckets that each hold a CountMinSketch
+ * of messages per user, a HyperLogLog of active users and a histogram of message sizes. The oldest bucket is cleared and reused
+ * as the window moves, so the memory used is the same however busy the server is. Every number is an estimate.
+ *
+ * Configured with these properties:
+ * chatapp.analytics - false turns analytics off
+ * chatapp.analytics.window - length of the window in milliseconds, default 60000
+ *
+ * @author danielnewton
+ *
+ */
+public class UsageAnalytics implements MessageInterceptor {
+
+	private static final int BUCKETS = 6;
+	private static final int TOP_TALKERS = 10;
+	private static final int CANDIDATES = 4 * TOP_TALKERS; //top talker candidates kept per bucket
+
+	private final long windowMillis;
+	private final long bucketMillis;
+	private final Bucket[] buckets = new Bucket[BUCKETS];
+
+	public UsageAnalytics(long windowMillis) {
+		this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+		this.windowMillis = bucketMillis * BUCKETS;
+		for(int i = 0; i < BUCKETS; i++){
+			buckets[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * @return Analytics configured from the chatapp.analytics properties, or null if turned off
+	 */
+	public static UsageAnalytics fromProperties(){
+		if(!Boolean.parseBoolean(System.getProperty("chatapp.analytics", "true"))) return null;
+		return new UsageAnalytics(Long.getLong("chatapp.analytics.window", 60000L));
+	}
+
+	@Override
+	public Message intercept(ConnectionThread connection, Message message) {
+		MessageContext context = message.getContext();
+		if(context == MessageContext.SEND_BROADCAST || context == MessageContext.SEND_ADDRESSED){
+			String content = message.getContent();
+			record(message.getSender(), content == null ? 0 : content.length());
+		}
+		return message;
+	}
+
+	/**
+	 * Counts one chat message.
+	 * @param size Length of the content in characters
+	 */
+	public void record(String sender, int size){
+		if(sender == null) return;
+		Bucket bucket = currentBucket(System.currentTimeMillis());
+		bucket.messages.incrementAndGet();
+		bucket.characters.addAndGet(size);
+		bucket.perUser.add(sender, 1);
+		bucket.users.add(sender);
+		bucket.sizes.record(size);
+		bucket.offerCandidate(sender);
+	}
+
+	/**
+	 * @return The bucket for the time, cleared first if it last held an older part of the window
+	 */
+	private Bucket currentBucket(long now){
+		long epoch = now / bucketMillis;
+		Bucket bucket = buckets[(int) (epoch % BUCKETS)];
+		if(bucket.epoch != epoch){
+			synchronized(bucket){
+				if(bucket.epoch != epoch){
+					bucket.reset();
+					bucket.epoch = epoch;
+				}
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return The buckets that are part of the window right now
+	 */
+	private List<Bucket> window(){
+		long epoch = System.currentTimeMillis() / bucketMillis;
+		List<Bucket> window = new ArrayList<Bucket>(BUCKETS);
+		for(Bucket bucket : buckets){
+			if(bucket.epoch > epoch - BUCKETS && bucket.epoch <= epoch) window.add(bucket);
+		}
+		return window;
+	}
+
+	/**
+	 * @return The snapshot of the window, all estimates
+	 */
+	public Stats getStats(){
+		List<Bucket> window = window();
+		Stats stats = new Stats();
+		stats.windowMillis = windowMillis;
+		int[] registers = new int[HyperLogLog.REGISTERS];
+		Set<String> candidates = new HashSet<String>();
+		for(Bucket bucket : window){
+			stats.messages += bucket.messages.get();
+			stats.characters += bucket.characters.get();
+			stats.sizes.add(bucket.sizes);
+			bucket.users.mergeInto(registers);
+			synchronized(bucket.candidates){
+				candidates.addAll(bucket.candidates.keySet());
+			}
+		}
+		stats.activeUsers = stats.messages == 0 ? 0 : HyperLogLog.estimate(registers);
+		for(String name : candidates){
+			long count = 0;
+			for(Bucket bucket : window){
+				count += bucket.perUser.estimate(name); //each bucket's estimate is an upper bound, so their sum is too
+			}
+			stats.topTalkers.add(new Talker(name, count));
+		}
+		Collections.sort(stats.topTalkers, new Comparator<Talker>(){
+			@Override
+			public int compare(Talker a, Talker b) {
+				return Long.compare(b.messages, a.messages);
+			}
+		});
+		if(stats.topTalkers.size() > TOP_TALKERS) stats.topTalkers.subList(TOP_TALKERS, stats.topTalkers.size()).clear();
+		return stats;
+	}
+
+	/**
+	 * @return The full report sent for a STATS request and shown by the admin endpoint
+	 */
+	public String getReport(){
+		Stats stats = getStats();
+		double seconds = stats.windowMillis / 1000.0;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Last %.0fs: %d messages (%.2f/s), %d characters, about %d active users",
+				seconds, stats.messages, stats.messages / seconds, stats.characters, stats.activeUsers));
+		report.append(String.format("%nMessage size: p50=%d p90=%d p99=%d characters",
+				stats.sizes.getPercentile(50), stats.sizes.getPercentile(90), stats.sizes.getPercentile(99)));
+		report.append(String.format("%nTop talkers:"));
+		if(stats.topTalkers.isEmpty()) report.append(String.format("%n  nobody"));
+		for(Talker talker : stats.topTalkers){
+			report.append(String.format("%n  %s %d (%.2f/s)", talker.name, talker.messages, talker.messages / seconds));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	public String getSummary(){
+		Stats stats = getStats();
+		StringBuilder summary = new StringBuilder("ANALYTICS");
+		summary.append(" messages=").append(stats.messages);
+		summary.append(" users~").append(stats.activeUsers);
+		summary.append(" size p50=").append(stats.sizes.getPercentile(50)).append(" p99=").append(stats.sizes.getPercentile(99));
+		if(!stats.topTalkers.isEmpty()){
+			summary.append(" top=").append(stats.topTalkers.get(0).name).append("(").append(stats.topTalkers.get(0).messages).append(")");
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * The estimates for the current window.
+	 */
+	public static class Stats{
+		private long windowMillis;
+		private long messages;
+		private long characters;
+		private long activeUsers;
+		private final LatencyHistogram sizes = new LatencyHistogram();
+		private final List<Talker> topTalkers = new ArrayList<Talker>();
+
+		public long getWindowMillis(){
+			return windowMillis;
+		}
+
+		public long getMessages(){
+			return messages;
+		}
+
+		public long getCharacters(){
+			return characters;
+		}
+
+		public long getActiveUsers(){
+			return activeUsers;
+		}
+
+		/**
+		 * @return Message sizes in characters
+		 */
+		public LatencyHistogram getSizes(){
+			return sizes;
+		}
+
+		/**
+		 * @return The users who sent the most messages, most first
+		 */
+		public List<Talker> getTopTalkers(){
+			return topTalkers;
+		}
+	}
+
+	/**
+	 * A user and about how many messages they sent in the window.
+	 */
+	public static class Talker{
+		private final String name;
+		private final long messages;
+
+		Talker(String name, long messages){
+			this.name = name;
+			this.messages = messages;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getMessages(){
+			return messages;
+		}
+	}
+
+	/**
+	 * The sketches for one part of the window.
+	 */
+	private static class Bucket{
+		private volatile long epoch = -1; //which bucketMillis long part of time this bucket holds
+		private final AtomicLong messages = new AtomicLong();
+		private final AtomicLong characters = new AtomicLong();
+		private final CountMinSketch perUser = new CountMinSketch();
+		private final HyperLogLog users = new HyperLogLog();
+		private final LatencyHistogram sizes = new LatencyHistogram();
+		private final Map<String, Long> candidates = new HashMap<String, Long>(); //the heaviest senders seen, by estimate
+
+		/**
+		 * Keeps the sender as a top talker candidate if it is one of the CANDIDATES heaviest senders of this bucket.
+		 */
+		void offerCandidate(String sender){
+			long estimate = perUser.estimate(sender);
+			synchronized(candidates){
+				if(candidates.containsKey(sender) || candidates.size() < CANDIDATES){
+					candidates.put(sender, estimate);
+					return;
+				}
+				String lightest = null;
+				long lightestCount = Long.MAX_VALUE;
+				for(Map.Entry<String, Long> candidate : candidates.entrySet()){
+					if(candidate.getValue() < lightestCount){
+						lightest = candidate.getKey();
+						lightestCount = candidate.getValue();
+					}
+				}
+				if(estimate > lightestCount){
+					candidates.remove(lightest);
+					candidates.put(sender, estimate);
+				}
+			}
+		}
+
+		void reset(){
+			messages.set(0);
+			characters.set(0);
+			perUser.reset();
+			users.reset();
+			sizes.reset();
+			synchronized(candidates){
+				candidates.clear();
+			}
+		}
+	}
+}
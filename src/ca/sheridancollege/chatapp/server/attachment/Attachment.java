@@ -0,0 +1,97 @@
+package ca.sheridancollege.chatapp.server.attachment;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Attachment is a file offered by a client. It is spooled to disk as it is uploaded and can be downloaded once it is complete.
+ * The id is only given to the recipients, and only the client that offered the file gets the upload token.
+ *
+ * @author danielnewton
+ *
+ */
+public class Attachment {
+
+	private final String id;
+	private final String uploadToken;
+	private final String sender;
+	private final String addressee; //null for everyone
+	private final String fileName;
+	private final long size;
+	private final Path file;
+	private final long createdAt;
+	private boolean uploading = false;
+	private volatile boolean complete = false;
+
+	Attachment(String id, String uploadToken, String sender, String addressee, String fileName, long size, Path file) {
+		this.id = id;
+		this.uploadToken = uploadToken;
+		this.sender = sender;
+		this.addressee = addressee;
+		this.fileName = fileName;
+		this.size = size;
+		this.file = file;
+		this.createdAt = System.currentTimeMillis();
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	public String getUploadToken(){
+		return uploadToken;
+	}
+
+	public String getSender(){
+		return sender;
+	}
+
+	public String getAddressee(){
+		return addressee;
+	}
+
+	public String getFileName(){
+		return fileName;
+	}
+
+	public long getSize(){
+		return size;
+	}
+
+	Path getFile(){
+		return file;
+	}
+
+	long getCreatedAt(){
+		return createdAt;
+	}
+
+	boolean isComplete(){
+		return complete;
+	}
+
+	void setComplete(){
+		complete = true;
+	}
+
+	/**
+	 * Compares in constant time, so the token can't be guessed a character at a time.
+	 */
+	boolean isUploadToken(String token){
+		return token != null && MessageDigest.isEqual(uploadToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return false if the file is complete or another connection is uploading it
+	 */
+	synchronized boolean beginUpload(){
+		if(uploading || complete) return false;
+		uploading = true;
+		return true;
+	}
+
+	synchronized void endUpload(){
+		uploading = false;
+	}
+}
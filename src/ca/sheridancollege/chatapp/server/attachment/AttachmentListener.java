@@ -0,0 +1,73 @@
+package ca.sheridancollege.chatapp.server.attachment;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+
+import ca.sheridancollege.chatapp.common.AttachmentProtocol;
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.server.ChatServer;
+
+/**
+ * AttachmentListener accepts the connections that files are uploaded and downloaded over, see AttachmentProtocol.
+ * Each connection is handled by an AttachmentTransfer. At most MAX_TRANSFERS run at once, the rest are told to try again later.
+ * The port is set with -Dchatapp.attachments.port=[port] (default 60001), a negative port turns attachments off.
+ *
+ * @author danielnewton
+ *
+ */
+public class AttachmentListener extends Thread {
+
+	private final int MAX_TRANSFERS = Integer.getInteger("chatapp.attachments.transfers", 64);
+	private final int port;
+	private final AttachmentStore store;
+	private final Semaphore transfers = new Semaphore(MAX_TRANSFERS);
+
+	public AttachmentListener(int port, AttachmentStore store) {
+		super("AttachmentListener");
+		this.port = port;
+		this.store = store;
+		setDaemon(true);
+	}
+
+	/**
+	 * @return A listener for the configured port, or null if attachments are turned off
+	 */
+	public static AttachmentListener fromProperties(AttachmentStore store){
+		int port = Integer.getInteger("chatapp.attachments.port", 60001);
+		return port < 0 ? null : new AttachmentListener(port, store);
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public AttachmentStore getStore(){
+		return store;
+	}
+
+	public void run() {
+		try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+			SocketTuning.apply(serverChannel.socket());
+			serverChannel.bind(new InetSocketAddress(port));
+			ChatServer.log("Attachments listening on port " + port);
+			while(true){
+				SocketChannel channel = serverChannel.accept();
+				if(!transfers.tryAcquire()){
+					try{
+						AttachmentProtocol.writeLine(channel.socket().getOutputStream(), AttachmentProtocol.ERROR + " The server is busy, try again later");
+					} catch (IOException e){
+						//the client will find out when the connection closes
+					}
+					channel.close();
+					continue;
+				}
+				new AttachmentTransfer(channel, store, transfers).start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
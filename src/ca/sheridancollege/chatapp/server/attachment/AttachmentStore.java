@@ -0,0 +1,98 @@
+package ca.sheridancollege.chatapp.server.attachment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.sheridancollege.chatapp.common.AttachmentProtocol;
+
+/**
+ * AttachmentStore keeps track of offered files and the spool folder they are uploaded to.
+ * Files are deleted once they are older than TTL, whether or not everyone has downloaded them.
+ * -	chatapp.attachments.dir - The spool folder, a new temporary folder when not set
+ * -	chatapp.attachments.max - Largest file in bytes, default 100MB
+ * -	chatapp.attachments.ttl - How long files are kept in milliseconds, default one hour
+ * -	chatapp.attachments.quota - Most bytes of files one client can have in the spool, default 500MB
+ * -	chatapp.attachments.total - Most bytes of files in the spool, default 2GB
+ *
+ * @author danielnewton
+ *
+ */
+public class AttachmentStore {
+
+	public static final long MAX_SIZE = Long.getLong("chatapp.attachments.max", 100L * 1024 * 1024);
+	private static final long TTL = Long.getLong("chatapp.attachments.ttl", 3600000L);
+	private static final long QUOTA = Long.getLong("chatapp.attachments.quota", 500L * 1024 * 1024);
+	private static final long TOTAL = Long.getLong("chatapp.attachments.total", 2048L * 1024 * 1024);
+
+	private final Path spool;
+	private final ConcurrentHashMap<String, Attachment> attachments = new ConcurrentHashMap<String, Attachment>();
+	private final SecureRandom random = new SecureRandom();
+
+	public AttachmentStore(Path spool) throws IOException {
+		this.spool = Files.createDirectories(spool);
+	}
+
+	public static AttachmentStore fromProperties() throws IOException {
+		String dir = System.getProperty("chatapp.attachments.dir");
+		return new AttachmentStore(dir == null ? Files.createTempDirectory("chatapp-attachments") : Paths.get(dir));
+	}
+
+	/**
+	 * Makes room for a file that a client is about to upload.
+	 * Files are counted at the size offered, so room is kept for uploads that haven't finished.
+	 * @param addressee The only client the file is for, or null for everyone
+	 * @return The attachment, or null if the file is too big, or would take the sender past its quota or the spool past its total
+	 */
+	public synchronized Attachment offer(String sender, String addressee, String fileName, long size){
+		expire();
+		if(size < 0 || size > MAX_SIZE) return null;
+		long total = size;
+		long bySender = size;
+		for(Attachment a : attachments.values()){
+			total += a.getSize();
+			if(sender != null && sender.equals(a.getSender())) bySender += a.getSize();
+		}
+		if(bySender > QUOTA || total > TOTAL) return null;
+		String id = newToken();
+		Attachment attachment = new Attachment(id, newToken(), sender, addressee, AttachmentProtocol.cleanFileName(fileName), size, spool.resolve(id));
+		attachments.put(id, attachment);
+		return attachment;
+	}
+
+	/**
+	 * @return The attachment, or null if there is no such attachment or it has expired
+	 */
+	public Attachment get(String id){
+		return id == null ? null : attachments.get(id);
+	}
+
+	/**
+	 * Deletes the files that are older than TTL. Downloads that are still running keep reading the file they opened.
+	 */
+	public void expire(){
+		long oldest = System.currentTimeMillis() - TTL;
+		Iterator<Attachment> i = attachments.values().iterator();
+		while(i.hasNext()){
+			Attachment attachment = i.next();
+			if(attachment.getCreatedAt() >= oldest) continue;
+			i.remove();
+			try{
+				Files.deleteIfExists(attachment.getFile());
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private String newToken(){
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
@@ -0,0 +1,155 @@
+package ca.sheridancollege.chatapp.server.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+import ca.sheridancollege.chatapp.common.AttachmentProtocol;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+import ca.sheridancollege.chatapp.server.ChatServer;
+
+/**
+ * AttachmentTransfer handles one upload or download on the attachment port.
+ * Uploads are written to the spool file a chunk at a time as they arrive. Downloads of a plain connection are sent with
+ * FileChannel.transferTo, so the file goes from the page cache to the socket without being copied through the server.
+ * With TLS the file has to be encrypted, so it is read and written a chunk at a time instead.
+ *
+ * @author danielnewton
+ *
+ */
+class AttachmentTransfer extends Thread {
+
+	private static final int TIMEOUT = 30000;
+	private static final long TRANSFER_CHUNK = 1024 * 1024; //largest transferTo call, so a download reports progress as it goes
+
+	private final SocketChannel channel;
+	private final AttachmentStore store;
+	private final Semaphore transfers;
+	private InputStream in;
+	private OutputStream out;
+
+	AttachmentTransfer(SocketChannel channel, AttachmentStore store, Semaphore transfers) {
+		super("AttachmentTransfer");
+		this.channel = channel;
+		this.store = store;
+		this.transfers = transfers;
+		setDaemon(true);
+	}
+
+	public void run() {
+		try(SocketChannel channel = this.channel){
+			Socket socket = channel.socket();
+			socket.setSoTimeout(TIMEOUT);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			boolean tls = TlsTransport.isEnabled();
+			if(tls){ //encrypt the transfer like the chat connection
+				TlsSocketStreams streams = new TlsSocketStreams(socket, TlsTransport.createServerEngine());
+				streams.handshake();
+				in = streams.getInputStream();
+				out = streams.getOutputStream();
+			}
+			String[] request = AttachmentProtocol.readLine(in).split(" ");
+			if(request.length == 3 && request[0].equals(AttachmentProtocol.PUT)){
+				upload(request[1], request[2]);
+			} else if(request.length == 3 && request[0].equals(AttachmentProtocol.GET)){
+				download(request[1], request[2], tls);
+			} else {
+				error("Unknown request");
+			}
+		} catch (Exception e) {
+			//the client resumes the transfer if it still wants the file
+		} finally {
+			transfers.release();
+		}
+	}
+
+	/**
+	 * Receives the part of the file the spool does not have yet, and shares the file once it is complete.
+	 */
+	private void upload(String id, String token) throws IOException {
+		Attachment attachment = store.get(id);
+		if(attachment == null || !attachment.isUploadToken(token)){
+			error("Unknown attachment");
+			return;
+		}
+		if(!attachment.beginUpload()){
+			error("The attachment is already uploaded or being uploaded");
+			return;
+		}
+		long size = attachment.getSize();
+		try(FileChannel file = FileChannel.open(attachment.getFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+			long position = Math.min(file.size(), size); //what an earlier, interrupted upload already wrote
+			AttachmentProtocol.writeLine(out, AttachmentProtocol.OFFSET + " " + position);
+			byte[] chunk = new byte[AttachmentProtocol.CHUNK_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			while(position < size){
+				int count = in.read(chunk, 0, (int) Math.min(chunk.length, size - position));
+				if(count < 0) return; //the client went away, it can resume from here
+				buffer.clear();
+				buffer.limit(count);
+				while(buffer.hasRemaining()){
+					position += file.write(buffer, position);
+				}
+			}
+			file.force(false);
+			attachment.setComplete();
+		} finally {
+			attachment.endUpload();
+		}
+		AttachmentProtocol.writeLine(out, AttachmentProtocol.DONE);
+		ChatServer.shareAttachment(attachment);
+	}
+
+	/**
+	 * Sends the file from the offset the client asked for.
+	 */
+	private void download(String id, String offsetStr, boolean tls) throws IOException {
+		Attachment attachment = store.get(id);
+		if(attachment == null || !attachment.isComplete()){
+			error("Unknown attachment");
+			return;
+		}
+		long size = attachment.getSize();
+		long position;
+		try{
+			position = Long.parseLong(offsetStr);
+		} catch (NumberFormatException e){
+			position = -1;
+		}
+		if(position < 0 || position > size){
+			error("Bad offset");
+			return;
+		}
+		AttachmentProtocol.writeLine(out, AttachmentProtocol.SIZE + " " + size);
+		try(FileChannel file = FileChannel.open(attachment.getFile(), StandardOpenOption.READ)){
+			if(!tls){
+				while(position < size){
+					position += file.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), channel);
+				}
+				return;
+			}
+			byte[] chunk = new byte[AttachmentProtocol.CHUNK_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			while(position < size){
+				buffer.clear();
+				int count = file.read(buffer, position);
+				if(count < 0) throw new IOException("The spooled file is shorter than expected");
+				out.write(chunk, 0, count);
+				position += count;
+			}
+			out.flush();
+		}
+	}
+
+	private void error(String reason) throws IOException {
+		AttachmentProtocol.writeLine(out, AttachmentProtocol.ERROR + " " + reason);
+	}
+}
@@ -0,0 +1,123 @@
+package ca.sheridancollege.chatapp.server.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture.Transport;
+
+/**
+ * CaptureReader reads the records of a file written by TrafficCapture one at a time, so captures of any size can be replayed.
+ * After next() returns true the fields of the record are available from the getters.
+ *
+ * @author danielnewton
+ *
+ */
+class CaptureReader implements Closeable {
+
+	private final DataInputStream in;
+	private final long startedAt;
+	private long micros = 0; //time of the current record since the capture started
+	private int type;
+	private int connectionId;
+	private Transport transport;
+	private String line;
+
+	CaptureReader(Path file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536));
+		byte[] magic = new byte[TrafficCapture.MAGIC.length];
+		in.readFully(magic);
+		if(!Arrays.equals(magic, TrafficCapture.MAGIC)){
+			in.close();
+			throw new IOException(file + " is not a traffic capture");
+		}
+		startedAt = in.readLong();
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return false at the end of the capture
+	 */
+	boolean next() throws IOException {
+		int b = in.read();
+		if(b < 0) return false;
+		type = b;
+		micros += readVarint();
+		connectionId = (int) readVarint();
+		transport = null;
+		line = null;
+		switch(type){
+		case TrafficCapture.OPEN:
+			transport = Transport.values()[in.readUnsignedByte()];
+			break;
+		case TrafficCapture.FRAME:
+			byte[] bytes = new byte[(int) readVarint()];
+			in.readFully(bytes);
+			line = new String(bytes, StandardCharsets.UTF_8);
+			break;
+		case TrafficCapture.CLOSE:
+			break;
+		default:
+			throw new IOException("Unknown record type " + type);
+		}
+		return true;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7){
+			int b = in.read();
+			if(b < 0) throw new EOFException();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Bad varint");
+	}
+
+	/**
+	 * @return When the capture started, in milliseconds since the epoch
+	 */
+	long getStartedAt(){
+		return startedAt;
+	}
+
+	/**
+	 * @return Microseconds from the start of the capture to the current record
+	 */
+	long getMicros(){
+		return micros;
+	}
+
+	int getType(){
+		return type;
+	}
+
+	int getConnectionId(){
+		return connectionId;
+	}
+
+	/**
+	 * @return The transport of an OPEN record
+	 */
+	Transport getTransport(){
+		return transport;
+	}
+
+	/**
+	 * @return The line of a FRAME record
+	 */
+	String getLine(){
+		return line;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,195 @@
+package ca.sheridancollege.chatapp.server.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TrafficCapture records what clients send to the server, so an incident can be replayed later with TrafficReplayer.
+ * Connection threads hand it each line as they read it. The line is put on a queue and written to the file by a capture thread,
+ * so a slow disk never holds up a connection. When the queue is full the record is dropped and counted instead.
+ *
+ * The file starts with MAGIC and the time the capture started in milliseconds, then holds one record per event:
+ * -	the record type: OPEN, FRAME or CLOSE
+ * -	microseconds since the previous record, as a varint
+ * -	the connection id, as a varint
+ * -	OPEN: the Transport of the connection, FRAME: the length of the line in UTF-8 bytes as a varint and then the bytes
+ *
+ * Captures hold everything clients sent, chat included, so they must be kept as private as the chat itself.
+ *
+ * Configured with these properties:
+ * chatapp.capture.file - turns capturing on and is the file to write, it is replaced if it exists
+ * chatapp.capture.max - largest capture in bytes, capturing stops when it is reached, default 1073741824 (1GB)
+ *
+ * @author danielnewton
+ *
+ */
+public class TrafficCapture {
+
+	/**
+	 * How the connection talks to the server, so it can be replayed to the right port.
+	 */
+	public enum Transport{
+		CHAT, MULTIPLEX, WEBSOCKET
+	}
+
+	static final byte[] MAGIC = "CHATCAP1".getBytes(StandardCharsets.US_ASCII);
+	static final int OPEN = 1;
+	static final int FRAME = 2;
+	static final int CLOSE = 3;
+	private static final int QUEUE_SIZE = 65536;
+
+	private final DataOutputStream out;
+	private final long maxBytes;
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	private final Thread writer;
+	private final AtomicLong captured = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private long lastNanos = System.nanoTime(); //only used by the capture thread
+	private volatile boolean closed = false;
+
+	public TrafficCapture(Path file, long maxBytes) throws IOException {
+		this.maxBytes = maxBytes;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536));
+		out.write(MAGIC);
+		out.writeLong(System.currentTimeMillis());
+		writer = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "TrafficCapture");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return A capture started from the chatapp.capture properties, or null if capturing is off
+	 */
+	public static TrafficCapture fromProperties() throws IOException {
+		String file = System.getProperty("chatapp.capture.file");
+		if(file == null) return null;
+		return new TrafficCapture(Paths.get(file), Long.getLong("chatapp.capture.max", 1L << 30));
+	}
+
+	public void open(int connectionId, Transport transport){
+		offer(new Record(OPEN, connectionId, transport, null));
+	}
+
+	/**
+	 * Records a line received from a connection.
+	 */
+	public void frame(int connectionId, String line){
+		offer(new Record(FRAME, connectionId, null, line));
+	}
+
+	public void closeConnection(int connectionId){
+		offer(new Record(CLOSE, connectionId, null, null));
+	}
+
+	private void offer(Record record){
+		if(closed || !queue.offer(record)) dropped.incrementAndGet();
+	}
+
+	/**
+	 * Writes records as they arrive, flushing whenever the queue runs empty.
+	 */
+	private void writeLoop(){
+		try{
+			while(true){
+				Record record = queue.poll();
+				if(record == null){
+					out.flush();
+					if(closed) return;
+					record = queue.poll(100, TimeUnit.MILLISECONDS);
+					if(record == null) continue;
+				}
+				if(out.size() >= maxBytes){ //full, stop capturing
+					closed = true;
+					dropped.incrementAndGet();
+					continue;
+				}
+				write(record);
+				captured.incrementAndGet();
+			}
+		} catch (IOException | InterruptedException e){
+			e.printStackTrace();
+			closed = true;
+		} finally {
+			try{
+				out.close();
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		long micros = Math.max(0, (record.nanos - lastNanos) / 1000); //threads can queue records slightly out of order
+		lastNanos = Math.max(lastNanos, record.nanos);
+		out.writeByte(record.type);
+		writeVarint(out, micros);
+		writeVarint(out, record.connectionId);
+		if(record.type == OPEN){
+			out.writeByte(record.transport.ordinal());
+		} else if(record.type == FRAME){
+			byte[] bytes = record.line.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static void writeVarint(OutputStream out, long value) throws IOException {
+		while((value & ~0x7FL) != 0){
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Stops capturing and waits briefly for the queued records to be written.
+	 */
+	public void close(){
+		closed = true;
+		try{
+			writer.join(2000);
+		} catch (InterruptedException e){
+			//exit now
+		}
+	}
+
+	/**
+	 * @return Records captured and dropped, used for the server status log
+	 */
+	public String getStats(){
+		return "CAPTURE records=" + captured.get() + " dropped=" + dropped.get() + (closed ? " stopped" : "");
+	}
+
+	/**
+	 * One event waiting to be written.
+	 */
+	private static class Record{
+		private final int type;
+		private final int connectionId;
+		private final Transport transport;
+		private final String line;
+		private final long nanos = System.nanoTime();
+
+		Record(int type, int connectionId, Transport transport, String line){
+			this.type = type;
+			this.connectionId = connectionId;
+			this.transport = transport;
+			this.line = line;
+		}
+	}
+}
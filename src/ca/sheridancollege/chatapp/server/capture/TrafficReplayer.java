@@ -0,0 +1,280 @@
+package ca.sheridancollege.chatapp.server.capture;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ca.sheridancollege.chatapp.common.SocketTuning;
+import ca.sheridancollege.chatapp.common.TlsSocketStreams;
+import ca.sheridancollege.chatapp.common.TlsTransport;
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture.Transport;
+
+/**
+ * TrafficReplayer drives a server with the traffic of a capture written by TrafficCapture. Every captured connection is opened
+ * as a real socket to the port for its transport, and sends its lines at the times they were captured, divided by the speed.
+ * Whatever the server sends back is read and thrown away.
+ *
+ * Usage: TrafficReplayer [capture file] [speed]
+ * The speed is 1 for real time (the default), a number like 10 for ten times faster, or max to send everything as fast as possible.
+ * The server is found with these properties, the same ones the server uses:
+ * chatapp.replay.host - default localhost
+ * chatapp.multiplex.port and chatapp.websocket.port - needed if the capture has connections of those transports, they are skipped otherwise
+ * chatapp.tls - replays over TLS, like the clients
+ *
+ * @author danielnewton
+ *
+ */
+public class TrafficReplayer {
+
+	private static final int PORT = 60000;
+	private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private final String host = System.getProperty("chatapp.replay.host", "localhost");
+	private final Integer multiplexPort = Integer.getInteger("chatapp.multiplex.port");
+	private final Integer webSocketPort = Integer.getInteger("chatapp.websocket.port");
+	private final double speed; //0 for as fast as possible
+	private final Map<Integer, Replayed> connections = new HashMap<Integer, Replayed>(); //captured connection id -> replayed connection
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private long frames = 0;
+	private long skipped = 0;
+	private long failed = 0;
+	private long opened = 0;
+	private long maxLagMicros = 0;
+
+	private TrafficReplayer(double speed){
+		this.speed = speed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			System.out.println("Usage: TrafficReplayer [capture file] [speed|max]");
+			return;
+		}
+		double speed = 1;
+		if(args.length > 1) speed = args[1].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[1]);
+		new TrafficReplayer(speed).replay(args[0]);
+	}
+
+	/**
+	 * Replays the whole capture, then closes the connections still open at the end of it.
+	 */
+	private void replay(String file) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		long lastReport = start;
+		try(CaptureReader reader = new CaptureReader(Paths.get(file))){
+			System.out.println("Replaying the capture started " + new java.util.Date(reader.getStartedAt())
+					+ (speed == 0 ? " as fast as possible" : " at " + speed + "x"));
+			while(true){
+				try{
+					if(!reader.next()) break;
+				} catch (EOFException e){
+					System.out.println("The capture ends with a partial record");
+					break;
+				}
+				if(speed > 0){ //wait until the record is due
+					long due = start + (long) (reader.getMicros() * 1000 / speed);
+					long wait = due - System.nanoTime();
+					if(wait > 0){
+						LockSupport.parkNanos(wait);
+					} else {
+						maxLagMicros = Math.max(maxLagMicros, -wait / 1000);
+					}
+				}
+				play(reader);
+				if(System.nanoTime() - lastReport > REPORT_INTERVAL){
+					lastReport = System.nanoTime();
+					System.out.println(progress(start));
+				}
+			}
+		}
+		for(Replayed connection : connections.values()){
+			connection.close();
+		}
+		System.out.println(progress(start));
+	}
+
+	private void play(CaptureReader reader){
+		int id = reader.getConnectionId();
+		Replayed connection = connections.get(id);
+		switch(reader.getType()){
+		case TrafficCapture.OPEN:
+			if(connection != null) connection.close(); //connection ids are only reused by a restarted server
+			connections.put(id, open(id, reader.getTransport()));
+			break;
+		case TrafficCapture.FRAME:
+			if(connection == null){ //the capture started after the connection opened
+				connection = open(id, Transport.CHAT);
+				connections.put(id, connection);
+			}
+			if(connection.failed){
+				skipped++;
+				return;
+			}
+			try{
+				connection.send(reader.getLine());
+				frames++;
+			} catch (IOException e){
+				connection.failed = true;
+				failed++;
+				skipped++;
+			}
+			break;
+		case TrafficCapture.CLOSE:
+			if(connection != null) connection.close();
+			connections.remove(id);
+			break;
+		}
+	}
+
+	/**
+	 * Connects a captured connection. Connections that can't be made are marked failed and their lines skipped.
+	 */
+	private Replayed open(int id, Transport transport){
+		Replayed connection = new Replayed(transport);
+		Integer port = transport == Transport.CHAT ? Integer.valueOf(PORT) : transport == Transport.MULTIPLEX ? multiplexPort : webSocketPort;
+		if(port == null){
+			connection.failed = true;
+			return connection;
+		}
+		try{
+			connection.connect(id, port);
+			opened++;
+		} catch (IOException | NoSuchAlgorithmException e){
+			System.out.println("Could not open connection " + id + ": " + e.getMessage());
+			connection.failed = true;
+			failed++;
+		}
+		return connection;
+	}
+
+	private String progress(long start){
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return String.format("%.1fs: %d connections opened, %d open, %d lines sent (%.0f/s), %d skipped, %d failed, %d bytes received, max lag %dms",
+				seconds, opened, connections.size(), frames, frames / Math.max(seconds, 0.001), skipped, failed, bytesReceived.get(), maxLagMicros / 1000);
+	}
+
+	/**
+	 * A connection being replayed.
+	 */
+	private class Replayed{
+		private final Transport transport;
+		private Socket socket;
+		private OutputStream out;
+		private boolean failed = false;
+
+		Replayed(Transport transport){
+			this.transport = transport;
+		}
+
+		void connect(int id, int port) throws IOException, NoSuchAlgorithmException {
+			socket = new Socket();
+			SocketTuning.apply(socket);
+			socket.connect(new InetSocketAddress(host, port));
+			InputStream in = socket.getInputStream();
+			out = socket.getOutputStream();
+			if(TlsTransport.isEnabled()){
+				TlsSocketStreams tls = new TlsSocketStreams(socket, TlsTransport.createClientEngine(host, port));
+				tls.handshake();
+				in = tls.getInputStream();
+				out = tls.getOutputStream();
+			}
+			in = new BufferedInputStream(in);
+			if(transport == Transport.WEBSOCKET) upgrade(in);
+			final InputStream drained = in;
+			Thread drain = new Thread(null, new Runnable(){ //the server's replies are only counted
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try{
+						int read;
+						while((read = drained.read(buffer)) >= 0){
+							bytesReceived.addAndGet(read);
+						}
+					} catch (IOException e){
+						//closed
+					}
+				}
+			}, "Replay-" + id, 64 * 1024);
+			drain.setDaemon(true);
+			drain.start();
+		}
+
+		/**
+		 * Does the WebSocket opening handshake.
+		 */
+		private void upgrade(InputStream in) throws IOException {
+			byte[] key = new byte[16];
+			ThreadLocalRandom.current().nextBytes(key);
+			String request = "GET / HTTP/1.1\r\nHost: " + host + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+					+ "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(key) + "\r\nSec-WebSocket-Version: 13\r\n\r\n";
+			out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			while(response.size() < 4 || !response.toString("ISO-8859-1").endsWith("\r\n\r\n")){
+				int b = in.read();
+				if(b < 0) throw new IOException("The server closed the connection during the WebSocket handshake");
+				response.write(b);
+			}
+			if(!response.toString("ISO-8859-1").startsWith("HTTP/1.1 101")) throw new IOException("WebSocket upgrade refused");
+		}
+
+		void send(String line) throws IOException {
+			if(transport == Transport.WEBSOCKET){
+				out.write(textFrame(line.getBytes(StandardCharsets.UTF_8)));
+			} else {
+				out.write((line + "\n").getBytes(StandardCharsets.UTF_8)); //one write, so Nagle doesn't hold back the newline
+			}
+			out.flush();
+		}
+
+		/**
+		 * @return A masked WebSocket text frame, as clients must send
+		 */
+		private byte[] textFrame(byte[] payload){
+			ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+			frame.write(0x81); //final fragment, text
+			if(payload.length < 126){
+				frame.write(0x80 | payload.length);
+			} else if(payload.length < 65536){
+				frame.write(0x80 | 126);
+				frame.write(payload.length >>> 8);
+				frame.write(payload.length);
+			} else {
+				frame.write(0x80 | 127);
+				for(int shift = 56; shift >= 0; shift -= 8){
+					frame.write((int) ((long) payload.length >>> shift));
+				}
+			}
+			byte[] mask = new byte[4];
+			ThreadLocalRandom.current().nextBytes(mask);
+			frame.write(mask, 0, 4);
+			for(int i = 0; i < payload.length; i++){
+				frame.write(payload[i] ^ mask[i & 3]);
+			}
+			return frame.toByteArray();
+		}
+
+		void close(){
+			try{
+				if(socket != null) socket.close();
+			} catch (IOException e){
+				//already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package ca.sheridancollege.chatapp.server.dedupe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.server.ConnectionThread;
+import ca.sheridancollege.chatapp.server.MessageInterceptor;
+import ca.sheridancollege.chatapp.server.analytics.Hash64;
+
+/**
+ * DuplicateFilter makes sending a message with an id idempotent, so clients can send it again whenever they are not sure it arrived.
+ * The first time an id is seen from a sender the message is passed on, every time after that it is dropped.
+ * Either way the sender is sent an ACK with the id, which tells it to stop sending the message: a copy is ACKed at once, the first
+ * message only once it has been routed, so one that a later interceptor drops is not ACKed and the client sends it again.
+ * Copies sent after that are ACKed without being routed, so a message the content filter refused stays refused.
+ * Ids are remembered per sender for the window in RecentIds. Messages without an id are passed on unchanged.
+ *
+ * An ACK means the server has taken the message and handed it to the recipients online at the time. Past that delivery is at most once:
+ * a recipient whose CHAT lane is full drops its oldest messages (see LaneWriter) and they are not sent again.
+ *
+ * It runs first in the INTERCEPT stage, so a message sent twice is filtered and counted once.
+ *
+ * Configured with these properties:
+ * chatapp.dedupe - false turns deduplication off
+ * chatapp.dedupe.window - how long ids are remembered in milliseconds, default 120000
+ * chatapp.dedupe.max - most ids remembered at once, default 262144
+ *
+ * @author danielnewton
+ *
+ */
+public class DuplicateFilter implements MessageInterceptor {
+
+	private final RecentIds recent;
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+
+	public DuplicateFilter(long windowMillis, int maxIds) {
+		recent = new RecentIds(windowMillis, maxIds);
+	}
+
+	/**
+	 * @return A filter configured from the chatapp.dedupe properties, or null if turned off
+	 */
+	public static DuplicateFilter fromProperties(){
+		if(!Boolean.parseBoolean(System.getProperty("chatapp.dedupe", "true"))) return null;
+		return new DuplicateFilter(Long.getLong("chatapp.dedupe.window", 120000L), Integer.getInteger("chatapp.dedupe.max", 262144));
+	}
+
+	@Override
+	public Message intercept(ConnectionThread connection, Message message) {
+		String id = message.getId();
+		if(id == null || message.getSender() == null) return message;
+		boolean first = recent.add(Hash64.of(message.getSender() + '\n' + id)); //the same id from two senders is two messages
+		if(!first){
+			duplicates.incrementAndGet();
+			acknowledge(connection, id);
+			return null;
+		}
+		accepted.incrementAndGet();
+		return message;
+	}
+
+	/**
+	 * ACKs a message that has been through the ROUTE stage. Every message with an id that gets there was passed on by intercept().
+	 */
+	public void routed(ConnectionThread connection, Message message){
+		if(message.getId() == null || message.getSender() == null) return;
+		acknowledge(connection, message.getId());
+	}
+
+	private void acknowledge(ConnectionThread connection, String id){
+		Message ack = new Message(MessageContext.ACK, null);
+		ack.setContent(id);
+		connection.sendToClient(ack);
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	public String getStats(){
+		return "DEDUPE accepted=" + accepted.get() + " duplicates=" + duplicates.get() + " remembered=" + recent.size();
+	}
+}
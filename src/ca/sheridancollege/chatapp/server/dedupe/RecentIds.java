@@ -0,0 +1,113 @@
+package ca.sheridancollege.chatapp.server.dedupe;
+
+import java.util.Arrays;
+
+/**
+ * RecentIds remembers the message ids seen over a sliding window, in a fixed amount of memory.
+ * The window is split into BUCKETS buckets. Each is an open addressing table of 64 bit id hashes that is cleared
+ * and reused when the window moves past it, so an id is remembered for between 3/4 of the window and the whole window.
+ * A bucket that fills up before its time moves the window on early, so under a flood the window gets shorter rather than the memory bigger.
+ *
+ * Only hashes are kept. Two different ids with the same 64 bit hash would be taken for one, which is too unlikely to matter.
+ *
+ * @author danielnewton
+ *
+ */
+class RecentIds {
+
+	private static final int BUCKETS = 4;
+	private static final double MAX_LOAD = 0.5; //fraction of a table that is filled before its bucket is full
+
+	private final long bucketMillis;
+	private final int bucketCapacity;
+	private final long[][] tables = new long[BUCKETS][];
+	private final int[] sizes = new int[BUCKETS];
+	private int current = 0;
+	private long currentStarted;
+
+	/**
+	 * @param windowMillis How long ids are remembered
+	 * @param maxIds Most ids remembered at once, the tables take 16 bytes per id
+	 */
+	RecentIds(long windowMillis, int maxIds){
+		bucketMillis = Math.max(1, windowMillis / BUCKETS);
+		bucketCapacity = Math.max(1, maxIds / BUCKETS);
+		int tableSize = Integer.highestOneBit((int) Math.ceil(bucketCapacity / MAX_LOAD) - 1) << 1;
+		for(int i = 0; i < BUCKETS; i++){
+			tables[i] = new long[tableSize];
+		}
+		currentStarted = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the id if it was not seen in the window.
+	 * @param hash The 64 bit hash of the id
+	 * @return true if the id is new, false if it was seen before
+	 */
+	synchronized boolean add(long hash){
+		if(hash == 0) hash = 1; //0 marks an empty slot
+		long now = System.currentTimeMillis();
+		advance(now);
+		for(int i = 0; i < BUCKETS; i++){
+			if(contains(tables[i], hash)) return false;
+		}
+		if(sizes[current] >= bucketCapacity){ //full early
+			rotate();
+			currentStarted = now;
+		}
+		insert(tables[current], hash);
+		sizes[current]++;
+		return true;
+	}
+
+	/**
+	 * Moves the window on to the current time, clearing the buckets it leaves behind.
+	 */
+	private void advance(long now){
+		long steps = (now - currentStarted) / bucketMillis;
+		if(steps <= 0) return;
+		for(long i = 0; i < Math.min(steps, BUCKETS); i++){
+			rotate();
+		}
+		currentStarted += steps * bucketMillis;
+	}
+
+	/**
+	 * Makes the oldest bucket the current one, empty.
+	 */
+	private void rotate(){
+		current = (current + 1) % BUCKETS;
+		if(sizes[current] > 0){
+			Arrays.fill(tables[current], 0L);
+			sizes[current] = 0;
+		}
+	}
+
+	private static boolean contains(long[] table, long hash){
+		int mask = table.length - 1;
+		for(int slot = (int) hash & mask; ; slot = (slot + 1) & mask){
+			if(table[slot] == hash) return true;
+			if(table[slot] == 0) return false;
+		}
+	}
+
+	private static void insert(long[] table, long hash){
+		int mask = table.length - 1;
+		int slot = (int) hash & mask;
+		while(table[slot] != 0){
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = hash;
+	}
+
+	/**
+	 * @return Ids remembered at the moment
+	 */
+	synchronized int size(){
+		int size = 0;
+		for(int s : sizes){
+			size += s;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,309 @@
+package ca.sheridancollege.chatapp.server.dm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.sheridancollege.chatapp.server.MessagePipeline;
+import ca.sheridancollege.chatapp.server.search.IndexedMessage;
+
+/**
+ * Conversation is the direct messages between two clients, kept in a folder of append-only segment files.
+ * Messages are numbered from 0 in the order they were sent. A segment is named after the number of its first message and is
+ * rolled once it is bigger than the segment size. Next to each segment is a sparse index holding the file offset of every
+ * INDEX_INTERVAL-th message, so finding a message is a binary search over the segments, a binary search over the index
+ * and a read of at most INDEX_INTERVAL records.
+ *
+ * Record: int length of the rest, long number, long timestamp, sender, content. Index entry: long number, long offset.
+ * A record cut short by a crash is truncated when the conversation is opened again.
+ *
+ * @author danielnewton
+ *
+ */
+class Conversation {
+
+	static final int INDEX_INTERVAL = 32;
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int MAX_STRING_BYTES = 4 * MessagePipeline.MAX_CONTENT_LENGTH; //UTF-8 uses at most 4 bytes a character
+	private static final int MAX_RECORD_BYTES = 16 + 2 * (4 + MAX_STRING_BYTES);
+
+	private final Path dir;
+	private final long segmentBytes;
+	private final List<SegmentFile> segments = new ArrayList<SegmentFile>(); //oldest first
+	private long nextNumber = 0;
+	private FileOutputStream log = null; //appends to the newest segment, null until the first append and after close()
+	private FileOutputStream index = null;
+	private boolean evicted = false;
+
+	/**
+	 * Opens the conversation in dir, creating it if it doesn't exist yet.
+	 * @param segmentBytes Size a segment is rolled at
+	 */
+	Conversation(Path dir, long segmentBytes) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.segmentBytes = segmentBytes;
+		List<Path> logs = new ArrayList<Path>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)){
+			for(Path file : files){
+				logs.add(file);
+			}
+		}
+		Collections.sort(logs); //the names are zero padded, so this sorts them by first message
+		for(Path file : logs){
+			String name = file.getFileName().toString();
+			segments.add(SegmentFile.load(dir, Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()))));
+		}
+		if(!segments.isEmpty()) nextNumber = segments.get(segments.size() - 1).recover();
+	}
+
+	/**
+	 * @return The number the next message will get, which is also how many messages have been sent
+	 */
+	synchronized long size(){
+		return nextNumber;
+	}
+
+	/**
+	 * @return The number of the oldest message still kept
+	 */
+	synchronized long first(){
+		return segments.isEmpty() ? 0 : segments.get(0).base;
+	}
+
+	/**
+	 * Appends a message. The record is written with a single write, so readers never see half of it.
+	 * @return The number of the message
+	 */
+	synchronized long append(IndexedMessage message) throws IOException {
+		if(evicted) throw new ClosedChannelException();
+		SegmentFile segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if(segment == null || segment.length >= segmentBytes){
+			closeFiles();
+			segment = new SegmentFile(dir, nextNumber);
+			segments.add(segment);
+		}
+		if(log == null){
+			log = new FileOutputStream(segment.log.toFile(), true);
+			index = new FileOutputStream(segment.index.toFile(), true);
+		}
+		byte[] record = encode(nextNumber, message);
+		if((nextNumber - segment.base) % INDEX_INTERVAL == 0){
+			ByteArrayOutputStream entry = new ByteArrayOutputStream(16);
+			DataOutputStream out = new DataOutputStream(entry);
+			out.writeLong(nextNumber);
+			out.writeLong(segment.length);
+			index.write(entry.toByteArray()); //before the record, an entry past the end of the segment is dropped when it is loaded
+			segment.addEntry(nextNumber, segment.length);
+		}
+		log.write(record);
+		segment.length += record.length;
+		return nextNumber++;
+	}
+
+	/**
+	 * Reads the messages numbered from (inclusive) to to (exclusive), oldest first.
+	 */
+	synchronized List<IndexedMessage> read(long from, long to) throws IOException {
+		if(evicted) throw new ClosedChannelException();
+		from = Math.max(from, first());
+		to = Math.min(to, nextNumber);
+		List<IndexedMessage> messages = new ArrayList<IndexedMessage>((int) Math.max(0, to - from));
+		if(from >= to) return messages;
+		int s = findSegment(from);
+		long offset = segments.get(s).offsetBefore(from);
+		for(; s < segments.size() && messages.size() < to - from; s++){
+			SegmentFile segment = segments.get(s);
+			try(RandomAccessFile file = new RandomAccessFile(segment.log.toFile(), "r")){
+				file.seek(offset);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+				long position = offset;
+				while(position < segment.length && messages.size() < to - from){
+					int length = in.readInt();
+					long number = in.readLong();
+					if(number < from){
+						in.skipBytes(length - 8);
+					} else {
+						long timestamp = in.readLong();
+						String sender = readString(in);
+						messages.add(new IndexedMessage(sender, readString(in), timestamp));
+					}
+					position += 4 + length;
+				}
+			}
+			offset = 0;
+		}
+		return messages;
+	}
+
+	/**
+	 * @return The index of the newest segment whose first message is at or before number
+	 */
+	private int findSegment(long number){
+		int low = 0;
+		int high = segments.size() - 1;
+		while(low < high){
+			int mid = (low + high + 1) >>> 1;
+			if(segments.get(mid).base <= number){
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Closes the conversation for good, it has to be opened again to be used. Appending to or reading from it afterwards throws
+	 * ClosedChannelException, so an old copy can never write to the files behind the back of a newer one.
+	 */
+	synchronized void evict(){
+		evicted = true;
+		closeFiles();
+	}
+
+	/**
+	 * Closes the open files. They are opened again if another message is appended.
+	 */
+	private void closeFiles(){
+		try{
+			if(log != null) log.close();
+			if(index != null) index.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+		log = null;
+		index = null;
+	}
+
+	private static byte[] encode(long number, IndexedMessage message) throws IOException {
+		byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+		byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(28 + sender.length + content.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(24 + sender.length + content.length);
+		out.writeLong(number);
+		out.writeLong(message.getTimestamp());
+		out.writeInt(sender.length);
+		out.write(sender);
+		out.writeInt(content.length);
+		out.write(content);
+		return bytes.toByteArray();
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0 || length > MAX_STRING_BYTES) throw new IOException("Corrupt conversation segment");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * One segment file and its sparse index, which is kept in memory.
+	 */
+	private static class SegmentFile {
+
+		private final long base;
+		private final Path log;
+		private final Path index;
+		private long length = 0;
+		private long[] numbers = new long[8];
+		private long[] offsets = new long[8];
+		private int entries = 0;
+
+		SegmentFile(Path dir, long base) {
+			this.base = base;
+			String name = String.format("%020d", base);
+			this.log = dir.resolve(name + LOG_SUFFIX);
+			this.index = dir.resolve(name + INDEX_SUFFIX);
+		}
+
+		static SegmentFile load(Path dir, long base) throws IOException {
+			SegmentFile segment = new SegmentFile(dir, base);
+			segment.length = Files.size(segment.log);
+			if(Files.exists(segment.index)){
+				try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.index)))){
+					while(true){
+						long number = in.readLong();
+						long offset = in.readLong();
+						if(offset >= segment.length) break; //written just before a crash, the record never made it
+						segment.addEntry(number, offset);
+					}
+				} catch (EOFException e){
+					//end of the index, a half written entry is ignored
+				}
+			}
+			return segment;
+		}
+
+		void addEntry(long number, long offset){
+			if(entries == numbers.length){
+				numbers = Arrays.copyOf(numbers, entries * 2);
+				offsets = Arrays.copyOf(offsets, entries * 2);
+			}
+			numbers[entries] = number;
+			offsets[entries] = offset;
+			entries++;
+		}
+
+		/**
+		 * @return The offset of the newest indexed message at or before number
+		 */
+		long offsetBefore(long number){
+			int i = Arrays.binarySearch(numbers, 0, entries, number);
+			if(i < 0) i = -i - 2; //the entry before the insertion point
+			return i < 0 ? 0 : offsets[i];
+		}
+
+		/**
+		 * Reads the records after the last index entry, cuts off a record that was only partly written and rewrites
+		 * the index without the entries that were dropped.
+		 * @return The number the next message will get
+		 */
+		long recover() throws IOException {
+			long position = entries == 0 ? 0 : offsets[entries - 1];
+			long next = entries == 0 ? base : numbers[entries - 1];
+			try(RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")){
+				file.seek(position);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+				while(position < length){
+					if(length - position < 12) break;
+					int recordLength = in.readInt();
+					if(recordLength < 24 || recordLength > MAX_RECORD_BYTES || position + 4 + recordLength > length) break;
+					next = in.readLong() + 1;
+					in.skipBytes(recordLength - 8);
+					position += 4 + recordLength;
+				}
+				if(position < length){
+					file.getChannel().truncate(position);
+					length = position;
+				}
+			}
+			while(entries > 0 && offsets[entries - 1] >= length){
+				entries--; //its record was the one cut off
+			}
+			try(FileChannel channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+				channel.truncate(entries * 16L);
+			}
+			return next;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package ca.sheridancollege.chatapp.server.dm;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.server.analytics.Hash64;
+import ca.sheridancollege.chatapp.server.search.IndexedMessage;
+
+/**
+ * ConversationStore keeps the direct messages sent between each pair of clients, see Conversation for how they are stored.
+ * It doesn't matter which of the two asks, both see the same conversation.
+ *
+ * History is read a page at a time, newest page first. A page asks for the messages before a cursor and comes back with the cursor
+ * of the page before it, so reading back through a long conversation never holds more than one page. Only the most recently used
+ * conversations are kept open, and the most recently read pages are cached. Messages are only ever appended, so a page that was
+ * read once never changes and the cache never has to be cleared.
+ *
+ * Configured with these properties:
+ * -	chatapp.dm - false turns the store off, direct messages are then not kept at all
+ * -	chatapp.dm.dir - The folder conversations are kept in, a new temporary folder when not set
+ * -	chatapp.dm.segment - Size a segment file is rolled at in bytes, default 4MB
+ * -	chatapp.dm.open - Most conversations kept open at once, default 256
+ * -	chatapp.dm.cache - Most characters of message content cached at once, default 4194304
+ *
+ * @author danielnewton
+ *
+ */
+public class ConversationStore {
+
+	public static final int PAGE_SIZE = 20;
+
+	private final Path root;
+	private final long segmentBytes;
+	private final LinkedHashMap<String, Conversation> open;
+	private final LinkedHashMap<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true); //least recently read first
+	private final long maxCached;
+	private long cached = 0; //characters in the cached pages, pages are bounded by size because messages can be long
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong pagesRead = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public ConversationStore(Path root, long segmentBytes, final int maxOpen, long maxCached) throws IOException {
+		this.root = Files.createDirectories(root);
+		this.segmentBytes = Math.max(1, segmentBytes);
+		open = new LinkedHashMap<String, Conversation>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+				if(size() <= Math.max(1, maxOpen)) return false;
+				eldest.getValue().evict();
+				return true;
+			}
+		};
+		this.maxCached = maxCached;
+	}
+
+	/**
+	 * @return A store configured from the chatapp.dm properties, or null if turned off
+	 * @throws IOException If the folder can't be created
+	 */
+	public static ConversationStore fromProperties() throws IOException {
+		if(!Boolean.parseBoolean(System.getProperty("chatapp.dm", "true"))) return null;
+		String dir = System.getProperty("chatapp.dm.dir");
+		return new ConversationStore(dir == null ? Files.createTempDirectory("chatapp-dm") : Paths.get(dir),
+				Long.getLong("chatapp.dm.segment", 4L * 1024 * 1024), Integer.getInteger("chatapp.dm.open", 256), Long.getLong("chatapp.dm.cache", 4L * 1024 * 1024));
+	}
+
+	/**
+	 * Keeps a direct message. A message that can't be written is counted and dropped, chat carries on.
+	 */
+	public void append(String sender, String addressee, String content){
+		IndexedMessage message = new IndexedMessage(sender, content, System.currentTimeMillis());
+		try{
+			while(true){
+				try{
+					conversation(sender, addressee, true).append(message);
+					break;
+				} catch (ClosedChannelException e){
+					//evicted after it was looked up, look it up again
+				}
+			}
+			appended.incrementAndGet();
+		} catch (IOException e){
+			if(failures.getAndIncrement() == 0) e.printStackTrace(); //the rest are most likely the same problem
+		}
+	}
+
+	/**
+	 * Reads a page of the conversation between two clients.
+	 * @param before The cursor of the page, the messages before it are returned. Negative for the newest page
+	 * @return The page, empty if they have never sent each other anything
+	 * @throws IOException If the conversation can't be read
+	 */
+	public Page page(String name, String other, long before) throws IOException {
+		while(true){
+			try{
+				Conversation conversation = conversation(name, other, false);
+				if(conversation == null) return new Page(new ArrayList<IndexedMessage>(), -1);
+				return page(conversation, keyOf(name, other), before);
+			} catch (ClosedChannelException e){
+				//evicted after it was looked up, look it up again
+			}
+		}
+	}
+
+	private Page page(Conversation conversation, String conversationKey, long before) throws IOException {
+		long end = before < 0 ? conversation.size() : Math.min(before, conversation.size());
+		String key = conversationKey + '\n' + end;
+		pagesRead.incrementAndGet();
+		synchronized(pages){
+			Page page = pages.get(key);
+			if(page != null){
+				cacheHits.incrementAndGet();
+				return page;
+			}
+		}
+		long start = Math.max(conversation.first(), end - PAGE_SIZE);
+		Page page = new Page(conversation.read(start, end), start > conversation.first() ? start : -1);
+		synchronized(pages){
+			if(pages.put(key, page) == null) cached += page.characters;
+			Iterator<Page> i = pages.values().iterator();
+			while(cached > maxCached && i.hasNext()){
+				cached -= i.next().characters;
+				i.remove();
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @param create False to leave conversations that haven't started alone, so asking for them doesn't create folders
+	 * @return The conversation, opened if it is not open already, or null if it hasn't started and create is false
+	 */
+	private Conversation conversation(String name, String other, boolean create) throws IOException {
+		String key = keyOf(name, other);
+		synchronized(open){
+			Conversation conversation = open.get(key);
+			if(conversation == null){
+				Path dir = root.resolve(String.format("%016x", Hash64.of(key)));
+				if(!create && !Files.isDirectory(dir)) return null;
+				conversation = new Conversation(dir, segmentBytes);
+				open.put(key, conversation);
+			}
+			return conversation;
+		}
+	}
+
+	/**
+	 * @return The two names in the same order whichever of them asks
+	 */
+	private static String keyOf(String name, String other){
+		return name.compareTo(other) <= 0 ? name + '\n' + other : other + '\n' + name;
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	public String getStats(){
+		int conversations;
+		synchronized(open){
+			conversations = open.size();
+		}
+		int cachedPages;
+		long cachedCharacters;
+		synchronized(pages){
+			cachedPages = pages.size();
+			cachedCharacters = cached;
+		}
+		return "DM appended=" + appended.get() + " failures=" + failures.get() + " open=" + conversations + " pages=" + pagesRead.get()
+				+ " cache_hits=" + cacheHits.get() + " cached=" + cachedPages + " (" + cachedCharacters + " chars)";
+	}
+
+	/**
+	 * Page is up to PAGE_SIZE messages of a conversation, oldest first.
+	 */
+	public static class Page {
+
+		private final List<IndexedMessage> messages;
+		private final long older;
+		private final long characters;
+
+		Page(List<IndexedMessage> messages, long older) {
+			this.messages = Collections.unmodifiableList(messages);
+			this.older = older;
+			long characters = 0;
+			for(IndexedMessage m : messages){
+				characters += m.getSender().length() + m.getContent().length();
+			}
+			this.characters = characters;
+		}
+
+		public List<IndexedMessage> getMessages(){
+			return messages;
+		}
+
+		/**
+		 * @return The cursor of the page before this one, or -1 if this is the oldest page
+		 */
+		public long getOlder(){
+			return older;
+		}
+	}
+}
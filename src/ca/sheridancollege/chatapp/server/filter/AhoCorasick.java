@@ -0,0 +1,162 @@
+package ca.sheridancollege.chatapp.server.filter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * AhoCorasick is a precompiled automaton that finds every occurrence of a set of patterns in a single pass over the text,
+ * no matter how many patterns there are. Matching is case insensitive.
+ *
+ * The automaton is immutable once built so it can be shared between threads and swapped out as a whole.
+ *
+ * @author danielnewton
+ *
+ */
+public class AhoCorasick {
+
+	/**
+	 * Receives the matches found by find().
+	 */
+	public interface MatchHandler{
+		/**
+		 * @param start Index of the first char of the match
+		 * @param end Index after the last char of the match
+		 * @return false to stop searching
+		 */
+		boolean onMatch(int start, int end);
+	}
+
+	private static final char[] NO_KEYS = new char[0];
+	private static final int[] NO_NODES = new int[0];
+
+	//node 0 is the root. Children of a node are kept in a sorted char array so lookups are a binary search.
+	private final char[][] keys;
+	private final int[][] children;
+	private final int[] fail; //longest proper suffix of this node that is also in the trie
+	private final int[] length; //length of the pattern that ends at this node, 0 if none
+	private final int[] outputLink; //next node on the fail chain that ends a pattern, -1 if none
+	private final int patterns;
+
+	public AhoCorasick(Collection<String> patternList){
+		//build the trie with growable per-node lists first
+		List<StringBuilder> nodeKeys = new ArrayList<StringBuilder>();
+		List<List<Integer>> nodeChildren = new ArrayList<List<Integer>>();
+		List<Integer> nodeLength = new ArrayList<Integer>();
+		nodeKeys.add(new StringBuilder());
+		nodeChildren.add(new ArrayList<Integer>());
+		nodeLength.add(0);
+		int count = 0;
+		for(String pattern : patternList){
+			if(pattern == null || pattern.isEmpty()) continue;
+			int node = 0;
+			for(int i = 0; i < pattern.length(); i++){
+				char c = fold(pattern.charAt(i));
+				int k = nodeKeys.get(node).indexOf(String.valueOf(c));
+				if(k < 0){
+					nodeKeys.get(node).append(c);
+					nodeChildren.get(node).add(nodeKeys.size());
+					nodeKeys.add(new StringBuilder());
+					nodeChildren.add(new ArrayList<Integer>());
+					nodeLength.add(0);
+					node = nodeKeys.size() - 1;
+				} else {
+					node = nodeChildren.get(node).get(k);
+				}
+			}
+			if(nodeLength.get(node) == 0) count++;
+			nodeLength.set(node, pattern.length());
+		}
+		patterns = count;
+
+		int size = nodeKeys.size();
+		keys = new char[size][];
+		children = new int[size][];
+		length = new int[size];
+		fail = new int[size];
+		outputLink = new int[size];
+		for(int n = 0; n < size; n++){
+			length[n] = nodeLength.get(n);
+			char[] k = nodeKeys.get(n).toString().toCharArray();
+			Integer[] order = new Integer[k.length];
+			for(int i = 0; i < order.length; i++) order[i] = i;
+			final char[] unsorted = k;
+			Arrays.sort(order, new Comparator<Integer>(){
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Character.compare(unsorted[a], unsorted[b]);
+				}
+			});
+			keys[n] = k.length == 0 ? NO_KEYS : new char[k.length];
+			children[n] = k.length == 0 ? NO_NODES : new int[k.length];
+			for(int i = 0; i < order.length; i++){
+				keys[n][i] = k[order[i]];
+				children[n][i] = nodeChildren.get(n).get(order[i]);
+			}
+		}
+
+		//breadth first so a node's fail target is always finished before the node
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		outputLink[0] = -1;
+		for(int child : children[0]){
+			fail[child] = 0;
+			outputLink[child] = -1;
+			queue.add(child);
+		}
+		while(!queue.isEmpty()){
+			int node = queue.poll();
+			for(int i = 0; i < keys[node].length; i++){
+				char c = keys[node][i];
+				int child = children[node][i];
+				int f = fail[node];
+				while(f != 0 && next(f, c) < 0) f = fail[f];
+				int target = next(f, c);
+				fail[child] = target < 0 || target == child ? 0 : target;
+				outputLink[child] = length[fail[child]] > 0 ? fail[child] : outputLink[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Calls handler for every occurrence of every pattern in text, in order of where the matches end.
+	 */
+	public void find(CharSequence text, MatchHandler handler){
+		int node = 0;
+		for(int i = 0; i < text.length(); i++){
+			char c = fold(text.charAt(i));
+			int child = next(node, c);
+			while(child < 0 && node != 0){
+				node = fail[node];
+				child = next(node, c);
+			}
+			node = child < 0 ? 0 : child;
+			for(int out = length[node] > 0 ? node : outputLink[node]; out > 0; out = outputLink[out]){
+				if(!handler.onMatch(i + 1 - length[out], i + 1)) return;
+			}
+		}
+	}
+
+	private int next(int node, char c){
+		int i = Arrays.binarySearch(keys[node], c);
+		return i < 0 ? -1 : children[node][i];
+	}
+
+	/**
+	 * Folds case the same way for patterns and text, one char at a time so match positions line up with the original text.
+	 */
+	static char fold(char c){
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * @return Number of distinct patterns in the automaton
+	 */
+	public int size(){
+		return patterns;
+	}
+}
@@ -0,0 +1,193 @@
+package ca.sheridancollege.chatapp.server.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.server.ChatServer;
+import ca.sheridancollege.chatapp.server.ConnectionThread;
+import ca.sheridancollege.chatapp.server.MessageInterceptor;
+
+/**
+ * ContentFilter moderates the content of broadcast and addressed messages against a list of banned terms.
+ * All terms are checked in one pass over the content by an AhoCorasick automaton.
+ *
+ * The term list can be replaced at any time with reload(). The new automaton is built on the calling thread
+ * and swapped in whole, so messages being filtered at the same time keep using the old one.
+ * When the terms come from a file, the file is checked for changes every few seconds and reloaded automatically.
+ *
+ * Configured with these properties:
+ * chatapp.filter.file - file with one term per line, lines starting with # are ignored. The filter is off if this is not set.
+ * chatapp.filter.action - MASK (default), REJECT or FLAG
+ * chatapp.filter.wholewords - true (default) to only match terms that are not part of a bigger word
+ *
+ * @author danielnewton
+ *
+ */
+public class ContentFilter implements MessageInterceptor {
+
+	public enum Action{
+		MASK, //replace the matched terms with '*'
+		REJECT, //drop the message and tell the sender
+		FLAG //deliver the message unchanged and log it
+	}
+
+	public static final char MASK_CHAR = '*';
+	private final int WATCH_INTERVAL = 5000;
+
+	private volatile AhoCorasick automaton = new AhoCorasick(new ArrayList<String>());
+	private volatile Action action;
+	private final boolean wholeWords;
+	private final AtomicLong masked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong flagged = new AtomicLong();
+
+	public ContentFilter(Action action, boolean wholeWords) {
+		this.action = action;
+		this.wholeWords = wholeWords;
+	}
+
+	/**
+	 * Creates a filter from the chatapp.filter properties and starts watching the term file.
+	 * @return The filter, or null if no term file is configured
+	 */
+	public static ContentFilter fromProperties(){
+		String file = System.getProperty("chatapp.filter.file");
+		if(file == null) return null;
+		Action action = Action.valueOf(System.getProperty("chatapp.filter.action", Action.MASK.name()).toUpperCase());
+		boolean wholeWords = Boolean.parseBoolean(System.getProperty("chatapp.filter.wholewords", "true"));
+		ContentFilter filter = new ContentFilter(action, wholeWords);
+		filter.watch(new File(file));
+		return filter;
+	}
+
+	/**
+	 * Replaces the banned terms. Traffic keeps flowing through the old terms until the new ones are ready.
+	 */
+	public void reload(Collection<String> terms){
+		automaton = new AhoCorasick(terms);
+	}
+
+	/**
+	 * Loads the terms from file now and then reloads them whenever the file changes.
+	 */
+	public void watch(final File file){
+		final long loaded = load(file);
+		Thread watcher = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				long lastModified = loaded;
+				try{
+					while(true){
+						Thread.sleep(WATCH_INTERVAL);
+						if(file.lastModified() != lastModified){
+							lastModified = load(file);
+						}
+					}
+				} catch (InterruptedException e){
+					//server is shutting down
+				}
+			}
+		}, "ContentFilterWatcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * @return The modification time of the file that was loaded
+	 */
+	private long load(File file){
+		long modified = file.lastModified();
+		try{
+			List<String> terms = new ArrayList<String>();
+			for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) continue;
+				terms.add(line);
+			}
+			reload(terms);
+			ChatServer.log("Content filter loaded " + automaton.size() + " terms from " + file.getPath());
+		} catch (IOException e){
+			ChatServer.log("Content filter could not read " + file.getPath() + ", keeping the previous terms");
+		}
+		return modified;
+	}
+
+	@Override
+	public Message intercept(ConnectionThread connection, Message message) {
+		if(message.getContext() != MessageContext.SEND_BROADCAST && message.getContext() != MessageContext.SEND_ADDRESSED) return message;
+		String content = message.getContent();
+		if(content == null || content.isEmpty()) return message;
+
+		final char[] chars = content.toCharArray(); //left as sent, so every match is checked against the original words
+		final boolean[] found = new boolean[1];
+		final boolean[] masks = new boolean[chars.length];
+		final Action current = action;
+		automaton.find(content, new AhoCorasick.MatchHandler(){
+			@Override
+			public boolean onMatch(int start, int end) {
+				if(wholeWords && !isWholeWord(chars, start, end)) return true;
+				found[0] = true;
+				if(current != Action.MASK) return false; //one match is enough to reject or flag
+				Arrays.fill(masks, start, end, true);
+				return true;
+			}
+		});
+		if(!found[0]) return message;
+
+		switch(current){
+		case MASK:
+			masked.incrementAndGet();
+			for(int i = 0; i < chars.length; i++){ //all the matches are masked at once when they are known
+				if(masks[i] && !Character.isWhitespace(chars[i])) chars[i] = MASK_CHAR;
+			}
+			message.setContent(new String(chars));
+			return message;
+		case REJECT:
+			rejected.incrementAndGet();
+			Message notice = new Message(MessageContext.SEND_ADDRESSED, null);
+			notice.setSender(Message.SYSTEM_NAME);
+			notice.setContent("Your message was not delivered because it contains blocked content.");
+			connection.sendToClient(notice);
+			return null;
+		default:
+			flagged.incrementAndGet();
+			ChatServer.log("FLAGGED message from " + message.getSender() + ": " + content);
+			return message;
+		}
+	}
+
+	private boolean isWholeWord(char[] chars, int start, int end){
+		boolean before = start == 0 || !Character.isLetterOrDigit(chars[start - 1]);
+		boolean after = end == chars.length || !Character.isLetterOrDigit(chars[end]);
+		return before && after;
+	}
+
+	public void setAction(Action action){
+		this.action = action;
+	}
+
+	public Action getAction(){
+		return action;
+	}
+
+	public long getMasked(){
+		return masked.get();
+	}
+
+	public long getRejected(){
+		return rejected.get();
+	}
+
+	public long getFlagged(){
+		return flagged.get();
+	}
+}
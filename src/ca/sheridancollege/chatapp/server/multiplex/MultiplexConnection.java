@@ -0,0 +1,100 @@
+package ca.sheridancollege.chatapp.server.multiplex;
+
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.sheridancollege.chatapp.common.StreamWriter;
+import ca.sheridancollege.chatapp.server.ChatServer;
+import ca.sheridancollege.chatapp.server.ConnectionThread;
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture;
+
+/**
+ * MultiplexConnection is one socket that carries many clients, for gateways and bots that act for lots of users.
+ * Lines tagged with a stream id (see StreamWriter) belong to that stream's client, which picks a name, chats
+ * and is registered and delivered to exactly like a client with a socket of its own.
+ * A stream is opened by the first line tagged with its id and closed by its CONNECTION_CLOSE, or when the socket closes.
+ *
+ * Untagged lines are for the connection itself. The heartbeats, the reader, the writer thread and the timeout belong to the socket,
+ * so a thousand clients on one connection cost about as much as one.
+ *
+ * @author danielnewton
+ *
+ */
+public class MultiplexConnection extends ConnectionThread {
+
+	private final int MAX_STREAMS = Integer.getInteger("chatapp.multiplex.streams", 10000);
+	private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	private boolean closed = false; //guarded by streams
+
+	public MultiplexConnection(Socket socket) {
+		super(socket);
+	}
+
+	@Override
+	protected boolean needsName() {
+		return false;
+	}
+
+	@Override
+	protected TrafficCapture.Transport getTransport() {
+		return TrafficCapture.Transport.MULTIPLEX;
+	}
+
+	@Override
+	protected void receive(String incomingStr) {
+		int id = StreamWriter.streamIdOf(incomingStr);
+		if(id == 0){ //for the connection itself
+			super.receive(incomingStr);
+			return;
+		}
+		if(id < 0) return; //ignore lines with a broken tag
+		Stream stream = streams.get(id);
+		if(stream == null){
+			synchronized(streams){ //with close(), so a stream is never opened after the others were closed
+				if(closed || streams.size() >= MAX_STREAMS) return;
+				stream = new Stream(id);
+				streams.put(id, stream);
+			}
+		}
+		ChatServer.getPipeline().receive(stream, StreamWriter.payloadOf(incomingStr));
+	}
+
+	/**
+	 * @return The number of clients this connection carries
+	 */
+	public int getStreamCount(){
+		return streams.size();
+	}
+
+	/**
+	 * Closes every stream, then the socket.
+	 */
+	@Override
+	public void close() {
+		synchronized(streams){
+			closed = true; //no stream is opened after this, so all of them are closed below
+		}
+		for(Stream stream : streams.values()){
+			stream.close();
+		}
+		super.close();
+	}
+
+	/**
+	 * One client carried by the connection.
+	 */
+	private class Stream extends ConnectionThread {
+		private final int id;
+
+		Stream(int id){
+			super(new StreamWriter(MultiplexConnection.this.getWriter(), id));
+			this.id = id;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			streams.remove(id, this);
+		}
+	}
+}
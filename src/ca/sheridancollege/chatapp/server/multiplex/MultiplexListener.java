@@ -0,0 +1,33 @@
+package ca.sheridancollege.chatapp.server.multiplex;
+
+import java.net.Socket;
+
+import ca.sheridancollege.chatapp.server.Acceptor;
+
+/**
+ * MultiplexListener accepts connections that carry many clients each, see MultiplexConnection.
+ * It is turned on with -Dchatapp.multiplex.port=[port].
+ * A gateway that is turned away gets SERVER_BUSY as an untagged line, for the connection itself.
+ *
+ * @author danielnewton
+ *
+ */
+public class MultiplexListener extends Acceptor {
+
+	public MultiplexListener(int port) {
+		super("Multiplexed connections", port);
+	}
+
+	/**
+	 * @return A listener for the configured port, or null if multiplexing is not turned on
+	 */
+	public static MultiplexListener fromProperties(){
+		Integer port = Integer.getInteger("chatapp.multiplex.port");
+		return port == null ? null : new MultiplexListener(port);
+	}
+
+	@Override
+	protected void connect(Socket socket) {
+		new MultiplexConnection(socket).start();
+	}
+}
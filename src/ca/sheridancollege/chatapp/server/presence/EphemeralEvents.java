@@ -0,0 +1,137 @@
+package ca.sheridancollege.chatapp.server.presence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.server.ChatServer;
+
+/**
+ * EphemeralEvents sends typing indicators and presence changes. Only the latest value of each matters, so they are not sent
+ * the moment they arrive: each is held for up to the window, keyed by sender, kind and addressee, and a newer event for the same key
+ * replaces it. Every window the held events are sent, oldest key first, at most chatapp.ephemeral.max of them so they can only ever
+ * add a bounded amount of traffic. Events that don't fit wait for the next window, still being replaced by newer ones.
+ *
+ * They are never searched, snapshotted or replayed, and clients that are behind drop them first, see LaneWriter.
+ *
+ * Configured with these properties:
+ * chatapp.ephemeral.window - how long events are held and coalesced in milliseconds, default 250
+ * chatapp.ephemeral.max - most events sent in one window, default 1000
+ *
+ * @author danielnewton
+ *
+ */
+public class EphemeralEvents {
+
+	public static final String TYPING = "1";
+	public static final String NOT_TYPING = "0";
+	public static final String[] STATUSES = {"online", "away", "busy"};
+
+	private final long windowMillis;
+	private final int maxPerWindow;
+	private final ConcurrentHashMap<String, Message> pending = new ConcurrentHashMap<String, Message>(); //key -> latest event
+	private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<String>(); //keys in the order they were first held
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+
+	public EphemeralEvents(long windowMillis, int maxPerWindow) {
+		this.windowMillis = Math.max(1, windowMillis);
+		this.maxPerWindow = Math.max(1, maxPerWindow);
+		Thread flusher = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "EphemeralEvents");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return Events configured from the chatapp.ephemeral properties
+	 */
+	public static EphemeralEvents fromProperties(){
+		return new EphemeralEvents(Long.getLong("chatapp.ephemeral.window", 250L), Integer.getInteger("chatapp.ephemeral.max", 1000));
+	}
+
+	/**
+	 * Holds a TYPING or PRESENCE event from a client until the end of the window. Events the server doesn't understand are ignored.
+	 * @param sender The name of the client
+	 * @param incoming The event as the client sent it
+	 */
+	public void publish(String sender, Message incoming){
+		Message event = new Message(incoming.getContext(), null);
+		event.setSender(sender);
+		if(incoming.getContext() == MessageContext.TYPING){
+			event.setAddressee(incoming.getAddressee()); //null for everyone
+			event.setContent(TYPING.equals(incoming.getContent()) ? TYPING : NOT_TYPING);
+		} else if(incoming.getContext() == MessageContext.PRESENCE){
+			String status = incoming.getContent() == null ? null : incoming.getContent().trim().toLowerCase();
+			if(!isStatus(status)) return;
+			event.setContent(status);
+		} else {
+			return;
+		}
+		received.incrementAndGet();
+		String key = keyOf(sender, event.getContext(), event.getAddressee());
+		if(pending.put(key, event) == null){
+			order.offer(key);
+		} else {
+			coalesced.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forgets a typing event that is still held, because the chat message it announced has been sent.
+	 */
+	public void chatSent(String sender, String addressee){
+		pending.remove(keyOf(sender, MessageContext.TYPING, addressee));
+	}
+
+	private static String keyOf(String sender, MessageContext context, String addressee){
+		return sender + '\n' + context.name() + '\n' + (addressee == null ? "" : addressee);
+	}
+
+	public static boolean isStatus(String status){
+		for(String s : STATUSES){
+			if(s.equals(status)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the held events once every window until the server stops.
+	 */
+	private void flushLoop(){
+		try{
+			while(true){
+				Thread.sleep(windowMillis);
+				int count = 0;
+				String key;
+				while(count < maxPerWindow && (key = order.poll()) != null){
+					Message event = pending.remove(key);
+					if(event == null) continue; //cancelled by chatSent
+					if(!ChatServer.isOnline(event.getSender())) continue; //left during the window
+					ChatServer.sendMessage(event);
+					sent.incrementAndGet();
+					count++;
+				}
+				if(count == maxPerWindow && !order.isEmpty()) overflows.incrementAndGet();
+			}
+		} catch (InterruptedException e){
+			//server is shutting down
+		}
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	public String getStats(){
+		return "EPHEMERAL received=" + received.get() + " coalesced=" + coalesced.get() + " sent=" + sent.get()
+				+ " held=" + pending.size() + " overflows=" + overflows.get();
+	}
+}
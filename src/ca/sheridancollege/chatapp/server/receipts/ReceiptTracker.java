@@ -0,0 +1,396 @@
+package ca.sheridancollege.chatapp.server.receipts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+import ca.sheridancollege.chatapp.server.ChatServer;
+
+/**
+ * ReceiptTracker tells senders how many of the recipients of their messages have received and read them.
+ *
+ * Every chat message the server delivers is given a sequence number in its conversation, the broadcast chat or a direct conversation
+ * between two clients. The numbers of a conversation have no gaps. Only the numbering holds the conversation's lock, the message is then
+ * delivered like any other, in order with the rest of its sender's messages, so messages of two senders can reach a recipient in either order.
+ * A conversation that is started again carries on past every number given so far, so its numbers never go back.
+ *
+ * Recipients don't acknowledge messages one by one: each client remembers how far it has received and read each conversation without a gap,
+ * and sends the changed ones in a single RECEIPT every interval. Each line of a RECEIPT is a watermark, "everything up to here",
+ * so a receipt covers any number of messages and a lost or late one is made up for by the next. The server keeps the highest watermark
+ * of every recipient in every conversation. A message that never arrived, dropped because the client could not keep up, leaves a gap in the numbers.
+ * Once a gap has stayed open long enough that the message can't just be late, the client reports it in a "missed" line before its watermark
+ * passes it, and the messages in it are not counted for that client.
+ *
+ * Only the newest chatapp.receipts.tracked messages of each conversation keep counts. When a watermark moves the messages it passes
+ * are counted once, so a receipt costs the number of messages it newly covers. Every window each sender whose messages were counted
+ * is sent one RECEIPT with a line per changed message: the message id, the number of recipients, how many have received it and how many
+ * have read it. Counts are totals, not changes, so an update that is dropped is corrected by the next.
+ *
+ * A client joins the broadcast conversation at the sequence it logged in at, so it never counts messages sent before it was there.
+ *
+ * Configured with these properties:
+ * chatapp.receipts - false turns receipts off, messages are then sent without sequence numbers
+ * chatapp.receipts.window - how often senders are sent their counts in milliseconds, default 1000
+ * chatapp.receipts.tracked - newest messages of each conversation that are counted, default 256
+ *
+ * @author danielnewton
+ *
+ */
+public class ReceiptTracker {
+
+	private static final String BROADCAST_KEY = "\n"; //can't be a name or a pair of names
+	private static final String MISSED = "missed ";
+	private static final int MAX_LINES = 1024; //most watermarks read from one RECEIPT
+	private static final int MAX_MISSED = 64; //gaps remembered for one client in one conversation
+
+	private final long windowMillis;
+	private final int maxTracked;
+	private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<String, Conversation>();
+	private final ConcurrentHashMap<String, Set<String>> memberOf = new ConcurrentHashMap<String, Set<String>>(); //name -> keys of its conversations
+	private final ConcurrentLinkedQueue<Tracked> changed = new ConcurrentLinkedQueue<Tracked>();
+	private final AtomicLong sequenced = new AtomicLong(); //numbers given in every conversation, a new conversation starts past it
+	private final AtomicLong receipts = new AtomicLong();
+	private final AtomicLong watermarks = new AtomicLong();
+	private final AtomicLong counted = new AtomicLong();
+	private final AtomicLong missed = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+
+	public ReceiptTracker(long windowMillis, int maxTracked) {
+		this.windowMillis = Math.max(1, windowMillis);
+		this.maxTracked = Math.max(1, maxTracked);
+		Thread flusher = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "Receipts");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return A tracker configured from the chatapp.receipts properties, or null if turned off
+	 */
+	public static ReceiptTracker fromProperties(){
+		if(!Boolean.parseBoolean(System.getProperty("chatapp.receipts", "true"))) return null;
+		return new ReceiptTracker(Long.getLong("chatapp.receipts.window", 1000L), Integer.getInteger("chatapp.receipts.tracked", 256));
+	}
+
+	/**
+	 * Gives a chat message that is about to be delivered its sequence number and starts counting its receipts under the id its sender gave it.
+	 * @param others How many of the recipients are not the sender. Messages without an id are numbered but not counted
+	 */
+	public void sent(Message message, int others){
+		String sender = message.getSender();
+		String addressee = message.getContext() == MessageContext.SEND_BROADCAST ? null : message.getAddressee();
+		String key = addressee == null ? BROADCAST_KEY : keyOf(sender, addressee);
+		while(true){
+			Conversation conversation = conversation(key);
+			synchronized(conversation){ //held only to number it, never while it is delivered
+				if(conversations.get(key) != conversation) continue; //both ends left after it was looked up, look it up again
+				message.setSequence(sent(conversation, key, sender, addressee, message.getId(), others));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called holding the conversation's lock.
+	 */
+	private long sent(Conversation conversation, String key, String sender, String addressee, String id, int recipients){
+		long number = ++conversation.last;
+		if(addressee != null){ //both ends of a direct conversation start from its first message
+			join(conversation, key, sender, number - 1);
+			join(conversation, key, addressee, number - 1);
+		}
+		if(id != null && recipients > 0){
+			conversation.tracked.add(new Tracked(number, sender, id, recipients));
+			if(conversation.tracked.size() > maxTracked) conversation.tracked.remove(0);
+		}
+		sequenced.incrementAndGet();
+		return number;
+	}
+
+	/**
+	 * Starts the broadcast watermarks of a client that has just got its name. Broadcasts before now were not sent to it.
+	 */
+	public void joined(String name){
+		Conversation conversation = conversation(BROADCAST_KEY);
+		synchronized(conversation){
+			join(conversation, BROADCAST_KEY, name, conversation.last);
+		}
+	}
+
+	/**
+	 * Forgets the watermarks of a client that has left or changed its name. Counts it already added stay.
+	 */
+	public void left(String name){
+		Set<String> keys = memberOf.remove(name);
+		if(keys == null) return;
+		for(String key : keys){
+			Conversation conversation = conversations.get(key);
+			if(conversation == null) continue;
+			synchronized(conversation){
+				conversation.members.remove(name);
+				if(conversation.members.isEmpty() && !BROADCAST_KEY.equals(key)) conversations.remove(key, conversation); //started again if they talk again
+			}
+		}
+	}
+
+	/**
+	 * Merges the watermarks in a RECEIPT from a client. Each line is "[received] [read] [conversation]", the conversation being
+	 * the name of the other client, or empty for the broadcast chat, or "missed [first] [last] [conversation]" for a gap in what
+	 * the client received, sent before the watermark that passes it. Lines that can't be read, or are for conversations the client is not in, are ignored.
+	 */
+	public void receipt(String name, String content){
+		if(name == null || content == null) return;
+		receipts.incrementAndGet();
+		String[] lines = content.split("\n", MAX_LINES + 1);
+		for(int i = 0; i < lines.length && i < MAX_LINES; i++){
+			boolean gap = lines[i].startsWith(MISSED);
+			String[] parts = (gap ? lines[i].substring(MISSED.length()) : lines[i]).split(" ", 3);
+			if(parts.length < 3) continue;
+			try{
+				String key = parts[2].isEmpty() ? BROADCAST_KEY : keyOf(name, parts[2]);
+				if(gap){
+					missed(name, key, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+				} else {
+					merge(name, key, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+				}
+			} catch (NumberFormatException e){
+				//skip the line
+			}
+		}
+	}
+
+	private void merge(String name, String key, long received, long read){
+		Conversation conversation = conversations.get(key);
+		if(conversation == null) return;
+		synchronized(conversation){
+			Member member = conversation.members.get(name);
+			if(member == null) return;
+			read = Math.min(read, conversation.last); //nothing past the newest message can have arrived
+			received = Math.min(Math.max(received, read), conversation.last); //read implies received
+			watermarks.incrementAndGet();
+			if(received > member.received){
+				count(conversation, name, member, member.received, received, false);
+				member.received = received;
+			}
+			if(read > member.read){
+				count(conversation, name, member, member.read, read, true);
+				member.read = read;
+			}
+			member.forgetPassed();
+		}
+	}
+
+	/**
+	 * Remembers that a client never got the messages from first to last, so its watermarks don't count them.
+	 * Only the part of the gap its received watermark has not passed yet matters.
+	 */
+	private void missed(String name, String key, long first, long last){
+		Conversation conversation = conversations.get(key);
+		if(conversation == null) return;
+		synchronized(conversation){
+			Member member = conversation.members.get(name);
+			if(member == null) return;
+			first = Math.max(first, member.received + 1);
+			last = Math.min(last, conversation.last);
+			if(first > last) return;
+			if(member.missed == null) member.missed = new ArrayList<long[]>();
+			member.missed.add(new long[]{ first, last });
+			if(member.missed.size() > MAX_MISSED) member.missed.remove(0); //its messages may then be counted, but the list can't grow
+			missed.addAndGet(last - first + 1);
+		}
+	}
+
+	/**
+	 * Counts a recipient for the tracked messages after from, up to and including to. Called holding the conversation's lock.
+	 */
+	private void count(Conversation conversation, String name, Member member, long from, long to, boolean read){
+		List<Tracked> tracked = conversation.tracked;
+		for(int i = firstAfter(tracked, from); i < tracked.size(); i++){
+			Tracked t = tracked.get(i);
+			if(t.sequence > to) break;
+			if(t.sender.equals(name)) continue; //the sender receives its own broadcasts
+			if(member.isMissed(t.sequence)) continue; //never arrived
+			if(read){
+				t.read = Math.min(t.read + 1, t.recipients);
+			} else {
+				t.received = Math.min(t.received + 1, t.recipients);
+			}
+			counted.incrementAndGet();
+			if(!t.changed){
+				t.changed = true;
+				changed.offer(t);
+			}
+		}
+	}
+
+	/**
+	 * @return The index of the first tracked message with a sequence after from, the messages are in sequence order
+	 */
+	private static int firstAfter(List<Tracked> tracked, long from){
+		int low = 0;
+		int high = tracked.size();
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(tracked.get(mid).sequence <= from){
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private Conversation conversation(String key){
+		Conversation conversation = conversations.get(key);
+		if(conversation == null){
+			Conversation created = new Conversation(sequenced.get()); //past any number an earlier conversation between them gave
+			conversation = conversations.putIfAbsent(key, created);
+			if(conversation == null) conversation = created;
+		}
+		return conversation;
+	}
+
+	/**
+	 * Starts a client's watermarks in a conversation at the sequence given, unless it has them already. Called holding the conversation's lock.
+	 */
+	private void join(Conversation conversation, String key, String name, long from){
+		if(conversation.members.containsKey(name)) return;
+		conversation.members.put(name, new Member(from));
+		Set<String> keys = memberOf.get(name);
+		if(keys == null){
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			keys = memberOf.putIfAbsent(name, created);
+			if(keys == null) keys = created;
+		}
+		keys.add(key);
+	}
+
+	/**
+	 * @return The two names in the same order whichever of them asks
+	 */
+	private static String keyOf(String name, String other){
+		return name.compareTo(other) <= 0 ? name + '\n' + other : other + '\n' + name;
+	}
+
+	/**
+	 * Sends the senders their changed counts once every window until the server stops.
+	 */
+	private void flushLoop(){
+		try{
+			while(true){
+				Thread.sleep(windowMillis);
+				Map<String, StringBuilder> bySender = new LinkedHashMap<String, StringBuilder>();
+				Tracked t;
+				while((t = changed.poll()) != null){
+					t.changed = false; //cleared before the counts are read, so a count added after this queues it again
+					StringBuilder lines = bySender.get(t.sender);
+					if(lines == null){
+						lines = new StringBuilder();
+						bySender.put(t.sender, lines);
+					} else {
+						lines.append('\n');
+					}
+					lines.append(t.id).append(' ').append(t.recipients).append(' ').append(t.received).append(' ').append(t.read);
+				}
+				for(Map.Entry<String, StringBuilder> entry : bySender.entrySet()){
+					if(!ChatServer.isOnline(entry.getKey())) continue; //left or renamed, nobody to tell
+					Message update = new Message(MessageContext.RECEIPT, null);
+					update.setSender(Message.SYSTEM_NAME);
+					update.setAddressee(entry.getKey());
+					update.setContent(entry.getValue().toString());
+					ChatServer.sendMessage(update);
+					updates.incrementAndGet();
+				}
+			}
+		} catch (InterruptedException e){
+			//server is shutting down
+		}
+	}
+
+	/**
+	 * @return One line summary used for the server status log
+	 */
+	public String getStats(){
+		return "RECEIPTS messages=" + sequenced.get() + " receipts=" + receipts.get() + " watermarks=" + watermarks.get()
+				+ " counted=" + counted.get() + " missed=" + missed.get() + " updates=" + updates.get() + " conversations=" + conversations.size();
+	}
+
+	/**
+	 * The newest messages of a conversation and the watermarks of its members. Only used while holding its lock.
+	 */
+	private static class Conversation{
+		long last; //sequence of the newest message
+		final HashMap<String, Member> members = new HashMap<String, Member>();
+		final ArrayList<Tracked> tracked = new ArrayList<Tracked>(); //oldest first
+
+		Conversation(long start){
+			last = start;
+		}
+	}
+
+	/**
+	 * The watermarks of one client in a conversation, and the gaps it reported that the watermarks have not both passed yet.
+	 */
+	private static class Member{
+		long received;
+		long read;
+		ArrayList<long[]> missed = null; //first and last sequence of each gap, oldest first
+
+		Member(long from){
+			received = from;
+			read = from;
+		}
+
+		boolean isMissed(long sequence){
+			if(missed == null) return false;
+			for(long[] gap : missed){
+				if(sequence >= gap[0] && sequence <= gap[1]) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Forgets the gaps both watermarks have passed, nothing in them is counted again.
+		 */
+		void forgetPassed(){
+			if(missed == null) return;
+			for(int i = missed.size() - 1; i >= 0; i--){
+				if(missed.get(i)[1] <= read) missed.remove(i);
+			}
+			if(missed.isEmpty()) missed = null;
+		}
+	}
+
+	/**
+	 * A message whose receipts are counted. The counts are changed holding the conversation's lock and read by the flusher without it.
+	 */
+	private static class Tracked{
+		final long sequence;
+		final String sender;
+		final String id;
+		final int recipients;
+		volatile int received = 0;
+		volatile int read = 0;
+		volatile boolean changed = false; //queued to be sent to the sender
+
+		Tracked(long sequence, String sender, String id, int recipients){
+			this.sequence = sequence;
+			this.sender = sender;
+			this.id = id;
+			this.recipients = recipients;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package ca.sheridancollege.chatapp.server.search;
+
+/**
+ * IndexedMessage is a single chat message as it is stored in the SearchIndex.
+ *
+ * @author danielnewton
+ *
+ */
+public class IndexedMessage {
+
+	private final String sender;
+	private final String content;
+	private final long timestamp;
+
+	public IndexedMessage(String sender, String content, long timestamp) {
+		this.sender = sender;
+		this.content = content;
+		this.timestamp = timestamp;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	/**
+	 * @return The time the message was delivered in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+}
@@ -0,0 +1,303 @@
+package ca.sheridancollege.chatapp.server.search;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SearchIndex is an incrementally built inverted index over the broadcast chat history.
+ *
+ * Messages are handed to submit() on the delivery path and indexed by a background thread, so indexing never delays delivery.
+ * Each batch the indexer picks up becomes an immutable Segment and small segments are merged into bigger ones as they accumulate.
+ * Queries read a snapshot of the segments without locking, walk them newest first and stop as soon as they have K matches.
+ *
+ * Every segment has a size class, how many times MERGE_FACTOR goes into its size. After a segment is added, the newest segments of
+ * its class or smaller are merged into one as soon as there are MERGE_FACTOR of them, and again with the class of the merged segment,
+ * so smaller segments left behind a bigger one are picked up by the next merge and the number of segments only grows with the log
+ * of the history. Only the newest chatapp.search.max messages are kept: segments never grow past an eighth of that, and the oldest
+ * segments are dropped once there are more.
+ *
+ * Query syntax: words must all appear in the message, "from:name" restricts the sender,
+ * "after:yyyy-MM-dd" and "before:yyyy-MM-dd" restrict the delivery date.
+ *
+ * @author danielnewton
+ *
+ */
+public class SearchIndex {
+
+	public static final int DEFAULT_RESULTS = 10;
+	public static final int MAX_RESULTS = 50;
+	private final int QUEUE_CAPACITY = 65536;
+	private final int MAX_BATCH = 4096;
+	private final int MERGE_FACTOR = 8; //this many segments of the same size class or smaller are merged into one
+	private final int maxMessages; //oldest segments are dropped past this
+	private final int maxSegment; //segments are never merged past this size, so dropping one never loses much history
+
+	private final BlockingQueue<IndexedMessage> pending = new ArrayBlockingQueue<IndexedMessage>(QUEUE_CAPACITY);
+	private volatile Segment[] segments = new Segment[0]; //oldest first
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread indexer = null;
+	private int nextDoc = 0; //only used by the indexer thread
+	private long lastTimestamp = 0; //only used by the indexer thread
+
+	public SearchIndex(int maxMessages) {
+		this.maxMessages = Math.max(1, maxMessages);
+		this.maxSegment = Math.max(1, this.maxMessages / MERGE_FACTOR);
+	}
+
+	/**
+	 * @return An index configured with chatapp.search.max, the most messages kept, default 500000
+	 */
+	public static SearchIndex fromProperties(){
+		return new SearchIndex(Integer.getInteger("chatapp.search.max", 500000));
+	}
+
+	/**
+	 * Starts the background indexing thread. Calling this more than once has no effect.
+	 */
+	public synchronized void start(){
+		if(indexer != null) return;
+		indexer = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				List<IndexedMessage> batch = new ArrayList<IndexedMessage>();
+				try{
+					while(true){
+						batch.add(pending.take());
+						pending.drainTo(batch, MAX_BATCH - 1);
+						index(batch);
+						batch.clear();
+					}
+				} catch (InterruptedException e){
+					//server is shutting down
+				}
+			}
+		}, "SearchIndexer");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	/**
+	 * Indexes messages saved before a restart. Must be called before start().
+	 * @param history Messages oldest first
+	 */
+	public synchronized void restore(List<IndexedMessage> history){
+		if(indexer != null) throw new IllegalStateException("The indexer is already running");
+		for(int i = 0; i < history.size(); i += MAX_BATCH){
+			index(new ArrayList<IndexedMessage>(history.subList(i, Math.min(history.size(), i + MAX_BATCH))));
+		}
+	}
+
+	/**
+	 * Returns the newest messages delivered after a time, without holding up indexing or searches.
+	 * @param after Only messages with a later timestamp are returned
+	 * @param max Most messages to return
+	 * @return The messages oldest first
+	 */
+	public List<IndexedMessage> recent(long after, int max){
+		return recent(after, Long.MAX_VALUE, max);
+	}
+
+	/**
+	 * Returns the newest messages delivered after one time and up to another, without holding up indexing or searches.
+	 * @param after Only messages with a later timestamp are returned
+	 * @param until Only messages with this timestamp or an earlier one are returned
+	 * @param max Most messages to return
+	 * @return The messages oldest first
+	 */
+	public List<IndexedMessage> recent(long after, long until, int max){
+		List<IndexedMessage> results = new ArrayList<IndexedMessage>();
+		Segment[] snapshot = segments;
+		for(int s = snapshot.length - 1; s >= 0 && results.size() < max; s--){
+			Segment segment = snapshot[s];
+			int lo = segment.firstAtOrAfter(after == Long.MAX_VALUE ? after : after + 1);
+			int hi = until == Long.MAX_VALUE ? segment.size() : segment.firstAtOrAfter(until + 1);
+			for(int doc = hi - 1; doc >= lo && results.size() < max; doc--){
+				results.add(segment.document(doc));
+			}
+		}
+		Collections.reverse(results);
+		return results;
+	}
+
+	/**
+	 * Queues a delivered message to be indexed. This never blocks; if the indexer has fallen too far behind the message is not indexed.
+	 * @param timestamp When the message was sent, taken before its recipients were looked up
+	 */
+	public void submit(String sender, String content, long timestamp){
+		if(!pending.offer(new IndexedMessage(sender, content, timestamp))){
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns up to k of the most recent messages that match the query, newest first.
+	 */
+	public List<IndexedMessage> search(String query, int k){
+		List<IndexedMessage> results = new ArrayList<IndexedMessage>();
+		k = Math.min(Math.max(k, 1), MAX_RESULTS);
+		if(query == null) return results;
+
+		List<String> terms = new ArrayList<String>();
+		long after = Long.MIN_VALUE;
+		long before = Long.MAX_VALUE;
+		for(String token : query.trim().split("\\s+")){
+			String lower = token.toLowerCase(Locale.ROOT);
+			if(lower.startsWith(Segment.SENDER_PREFIX) && lower.length() > Segment.SENDER_PREFIX.length()){
+				terms.add(lower);
+			} else if(lower.startsWith("after:")){
+				after = parseDate(lower.substring("after:".length()), after);
+			} else if(lower.startsWith("before:")){
+				before = parseDate(lower.substring("before:".length()), before);
+			} else {
+				terms.addAll(Segment.tokenize(token));
+			}
+		}
+		if(terms.isEmpty() && after == Long.MIN_VALUE && before == Long.MAX_VALUE) return results; //nothing to search for
+
+		Segment[] snapshot = segments;
+		for(int s = snapshot.length - 1; s >= 0 && results.size() < k; s--){
+			collect(snapshot[s], terms, after, before, k, results);
+		}
+		return results;
+	}
+
+	/**
+	 * Adds the newest matches in one segment to results until there are k results.
+	 */
+	private void collect(Segment segment, List<String> terms, long after, long before, int k, List<IndexedMessage> results){
+		int lo = segment.firstAtOrAfter(after);
+		int hi = segment.firstAtOrAfter(before);
+		if(lo >= hi) return;
+
+		if(terms.isEmpty()){ //only a date range was given
+			for(int doc = hi - 1; doc >= lo && results.size() < k; doc--){
+				results.add(segment.document(doc));
+			}
+			return;
+		}
+
+		int[][] lists = new int[terms.size()][];
+		for(int i = 0; i < lists.length; i++){
+			lists[i] = segment.postings(terms.get(i));
+			if(lists[i] == null) return; //a required term is missing from this segment
+		}
+		Arrays.sort(lists, new Comparator<int[]>(){
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a.length, b.length);
+			}
+		});
+
+		//walk the shortest list backwards and probe the others
+		int[] shortest = lists[0];
+		int start = Arrays.binarySearch(shortest, hi);
+		start = start < 0 ? -start - 2 : start - 1;
+		for(int i = start; i >= 0 && results.size() < k; i--){
+			int doc = shortest[i];
+			if(doc < lo) break;
+			boolean match = true;
+			for(int j = 1; j < lists.length && match; j++){
+				match = Arrays.binarySearch(lists[j], doc) >= 0;
+			}
+			if(match) results.add(segment.document(doc));
+		}
+	}
+
+	/**
+	 * Turns a batch into a segment, publishes it, merges the newest segments if needed and drops the oldest past maxMessages.
+	 * Only called by the indexer thread, restore() and SegmentMergeTest.
+	 */
+	void index(List<IndexedMessage> batch){
+		for(int i = 0; i < batch.size(); i++){ //timestamps must never go backwards or the date search breaks
+			IndexedMessage m = batch.get(i);
+			if(m.getTimestamp() < lastTimestamp){
+				batch.set(i, new IndexedMessage(m.getSender(), m.getContent(), lastTimestamp));
+			} else {
+				lastTimestamp = m.getTimestamp();
+			}
+		}
+		Segment segment = Segment.build(nextDoc, batch);
+		nextDoc += batch.size();
+
+		Segment[] current = Arrays.copyOf(segments, segments.length + 1);
+		current[current.length - 1] = segment;
+		int level = sizeClass(segment.size());
+		while(true){
+			int tail = mergeableTail(current, level);
+			if(current.length - tail < MERGE_FACTOR) break;
+			Segment merged = Segment.merge(Arrays.copyOfRange(current, tail, current.length));
+			current = Arrays.copyOf(current, tail + 1);
+			current[tail] = merged;
+			level = sizeClass(merged.size()); //the merged segment may complete a run of the next class
+		}
+		int total = 0;
+		for(Segment s : current) total += s.size();
+		int oldest = 0;
+		while(total > maxMessages && oldest < current.length - 1){
+			total -= current[oldest++].size();
+		}
+		segments = oldest == 0 ? current : Arrays.copyOfRange(current, oldest, current.length);
+	}
+
+	/**
+	 * @return The index of the oldest segment in the newest run of segments of the size class or smaller that fit in one maxSegment
+	 */
+	private int mergeableTail(Segment[] current, int level){
+		int tail = current.length;
+		int size = 0;
+		while(tail > 0 && sizeClass(current[tail - 1].size()) <= level && size + current[tail - 1].size() <= maxSegment){
+			tail--;
+			size += current[tail].size();
+		}
+		return tail;
+	}
+
+	private int sizeClass(int size){
+		int level = 0;
+		while(size >= MERGE_FACTOR){
+			size /= MERGE_FACTOR;
+			level++;
+		}
+		return level;
+	}
+
+	private long parseDate(String date, long defaultValue){
+		try{
+			return new SimpleDateFormat("yyyy-MM-dd").parse(date).getTime();
+		} catch (ParseException e){
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return Number of segments the searchable messages are in
+	 */
+	public int getSegmentCount(){
+		return segments.length;
+	}
+
+	/**
+	 * @return Number of messages that are searchable
+	 */
+	public int size(){
+		int size = 0;
+		for(Segment s : segments) size += s.size();
+		return size;
+	}
+
+	/**
+	 * @return Number of messages that were not indexed because the indexer was behind
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+}
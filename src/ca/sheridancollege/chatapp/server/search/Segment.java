@@ -0,0 +1,183 @@
+package ca.sheridancollege.chatapp.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Segment is an immutable slice of the SearchIndex covering a contiguous range of documents.
+ * Documents are numbered in the order they were delivered, so doc ids and timestamps are both ascending.
+ * Every term maps to an ascending list of offsets into the segment.
+ *
+ * @author danielnewton
+ *
+ */
+class Segment {
+
+	static final String SENDER_PREFIX = "from:";
+
+	private final int baseDoc;
+	private final String[] senders;
+	private final String[] contents;
+	private final long[] timestamps;
+	private final String[] terms; //sorted, so lookups are a binary search
+	private final int[][] postings;
+
+	private Segment(int baseDoc, String[] senders, String[] contents, long[] timestamps, Map<String, IntList> index) {
+		this.baseDoc = baseDoc;
+		this.senders = senders;
+		this.contents = contents;
+		this.timestamps = timestamps;
+		this.terms = index.keySet().toArray(new String[0]);
+		Arrays.sort(terms);
+		this.postings = new int[terms.length][];
+		for(int i = 0; i < terms.length; i++){
+			postings[i] = index.get(terms[i]).toArray();
+		}
+	}
+
+	/**
+	 * Builds a segment out of a batch of newly delivered messages.
+	 * @param baseDoc The doc id of the first message in the batch
+	 */
+	static Segment build(int baseDoc, List<IndexedMessage> batch){
+		int size = batch.size();
+		String[] senders = new String[size];
+		String[] contents = new String[size];
+		long[] timestamps = new long[size];
+		Map<String, IntList> index = new HashMap<String, IntList>();
+		for(int doc = 0; doc < size; doc++){
+			IndexedMessage m = batch.get(doc);
+			senders[doc] = m.getSender();
+			contents[doc] = m.getContent();
+			timestamps[doc] = m.getTimestamp();
+			for(String term : documentTerms(m.getSender(), m.getContent())){
+				IntList list = index.get(term);
+				if(list == null){
+					list = new IntList();
+					index.put(term, list);
+				}
+				list.add(doc);
+			}
+		}
+		return new Segment(baseDoc, senders, contents, timestamps, index);
+	}
+
+	/**
+	 * Merges adjacent segments into one. The segments must be given oldest first.
+	 */
+	static Segment merge(Segment[] parts){
+		int size = 0;
+		for(Segment s : parts) size += s.size();
+		String[] senders = new String[size];
+		String[] contents = new String[size];
+		long[] timestamps = new long[size];
+		Map<String, IntList> index = new HashMap<String, IntList>();
+		int offset = 0;
+		for(Segment s : parts){
+			System.arraycopy(s.senders, 0, senders, offset, s.size());
+			System.arraycopy(s.contents, 0, contents, offset, s.size());
+			System.arraycopy(s.timestamps, 0, timestamps, offset, s.size());
+			for(int t = 0; t < s.terms.length; t++){
+				IntList list = index.get(s.terms[t]);
+				if(list == null){
+					list = new IntList();
+					index.put(s.terms[t], list);
+				}
+				for(int doc : s.postings[t]){
+					list.add(doc + offset); //parts are contiguous so the merged list stays ascending
+				}
+			}
+			offset += s.size();
+		}
+		return new Segment(parts[0].baseDoc, senders, contents, timestamps, index);
+	}
+
+	int size(){
+		return timestamps.length;
+	}
+
+	int getBaseDoc(){
+		return baseDoc;
+	}
+
+	/**
+	 * @return The postings of the term, or null if the term does not occur in this segment.
+	 */
+	int[] postings(String term){
+		int i = Arrays.binarySearch(terms, term);
+		return i < 0 ? null : postings[i];
+	}
+
+	/**
+	 * @return The first local doc whose timestamp is at or after time
+	 */
+	int firstAtOrAfter(long time){
+		int lo = 0, hi = timestamps.length;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(timestamps[mid] < time) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	IndexedMessage document(int doc){
+		return new IndexedMessage(senders[doc], contents[doc], timestamps[doc]);
+	}
+
+	/**
+	 * Returns the distinct terms of a message. The sender is indexed as a single "from:" term.
+	 */
+	static Set<String> documentTerms(String sender, String content){
+		Set<String> terms = new LinkedHashSet<String>();
+		if(sender != null) terms.add(SENDER_PREFIX + sender.toLowerCase(Locale.ROOT));
+		tokenize(content, terms);
+		return terms;
+	}
+
+	/**
+	 * Splits text into lower case words made of letters and digits.
+	 */
+	static void tokenize(String text, Set<String> terms){
+		if(text == null) return;
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++){
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(wordChar && start < 0){
+				start = i;
+			} else if(!wordChar && start >= 0){
+				terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+	}
+
+	static List<String> tokenize(String text){
+		Set<String> terms = new LinkedHashSet<String>();
+		tokenize(text, terms);
+		return new ArrayList<String>(terms);
+	}
+
+	/**
+	 * Growable list of ints used while building postings.
+	 */
+	private static class IntList {
+		private int[] values = new int[4];
+		private int size = 0;
+
+		void add(int value){
+			if(size == values.length) values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int[] toArray(){
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package ca.sheridancollege.chatapp.server.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SegmentMergeTest indexes batches of random sizes, the way the indexer sees them under changing load, and checks that
+ * the number of segments stays logarithmic in the number of messages and that no more than the cap are kept.
+ * Run with the number of batches and the cap, by default 100000 and 100000.
+ *
+ * @author danielnewton
+ *
+ */
+public class SegmentMergeTest {
+
+	public static void main(String[] args) {
+		int batches = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int max = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		boolean pass = true;
+		pass &= run("small", batches, max, 1, 16);
+		pass &= run("mixed", batches, max, 1, 256);
+		pass &= run("single", batches, max, 1, 1);
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	/**
+	 * Indexes batches of between smallest and largest messages.
+	 * @return false if the index grew too many segments, kept too many messages or lost the newest ones
+	 */
+	private static boolean run(String name, int batches, int max, int smallest, int largest){
+		SearchIndex index = new SearchIndex(max);
+		Random random = new Random(batches);
+		long messages = 0;
+		int most = 0;
+		long start = System.currentTimeMillis();
+		for(int b = 0; b < batches; b++){
+			int size = smallest + random.nextInt(largest - smallest + 1);
+			List<IndexedMessage> batch = new ArrayList<IndexedMessage>(size);
+			for(int i = 0; i < size; i++){
+				batch.add(new IndexedMessage("soak", "message " + messages++, start));
+			}
+			index.index(batch);
+			most = Math.max(most, index.getSegmentCount());
+		}
+		//every size class up to the cap holds fewer than MERGE_FACTOR segments, the cap about MERGE_FACTOR full ones,
+		//and a run that stopped short of a full segment as many again. Without merging there would be one per batch
+		int classes = 1;
+		for(long n = Math.min(messages, max); n >= 8; n /= 8) classes++;
+		int bound = 8 * (classes + 2);
+		List<IndexedMessage> newest = index.recent(Long.MIN_VALUE, 1);
+		boolean kept = !newest.isEmpty() && newest.get(0).getContent().equals("message " + (messages - 1));
+		boolean pass = most <= bound && index.size() <= max && kept;
+		System.out.println(name + ": " + messages + " messages in " + batches + " batches, " + index.getSegmentCount() + " segments (most " + most
+				+ ", bound " + bound + "), " + index.size() + " kept, " + (System.currentTimeMillis() - start) + "ms" + (pass ? "" : " FAIL"));
+		return pass;
+	}
+}
@@ -0,0 +1,170 @@
+package ca.sheridancollege.chatapp.server.websocket;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.common.Message.MessageContext;
+
+/**
+ * JsonMessageCodec converts Messages to and from the JSON text that browsers send over the WebSocket gateway.
+ * A message is a flat object of strings, for example:
+ * {"context":"SEND_BROADCAST","sender":"alice","content":"hello"}
+ * Fields that are not set are left out. Unknown fields are ignored.
+ *
+ * @author danielnewton
+ *
+ */
+public class JsonMessageCodec {
+
+	private JsonMessageCodec(){
+	}
+
+	public static String encode(Message message){
+		if(message.getContext() == null) return null;
+		StringBuilder json = new StringBuilder("{");
+		appendField(json, "context", message.getContext().name());
+		appendField(json, "sender", message.getSender());
+		appendField(json, "addressee", message.getAddressee());
+		appendField(json, "content", message.getContent());
+		appendField(json, "id", message.getId());
+		appendField(json, "sequence", message.getSequence() == 0 ? null : Long.toString(message.getSequence()));
+		json.append('}');
+		return json.toString();
+	}
+
+	private static void appendField(StringBuilder json, String name, String value){
+		if(value == null) return;
+		if(json.length() > 1) json.append(',');
+		appendString(json, name);
+		json.append(':');
+		appendString(json, value);
+	}
+
+	private static void appendString(StringBuilder json, String value){
+		json.append('"');
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+			case '"': json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if(c < 0x20 || c == 0x2028 || c == 0x2029){
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * @return The decoded Message, or null if the text is not a valid message
+	 */
+	public static Message decode(String text){
+		if(text == null) return null;
+		try{
+			Parser parser = new Parser(text);
+			Message message = new Message(null, null);
+			parser.skipWhitespace();
+			parser.expect('{');
+			parser.skipWhitespace();
+			if(parser.peek() == '}'){
+				return null; //no context
+			}
+			while(true){
+				parser.skipWhitespace();
+				String name = parser.readString();
+				parser.skipWhitespace();
+				parser.expect(':');
+				parser.skipWhitespace();
+				String value = parser.readValue();
+				switch(name){
+				case "context": message.setContext(value == null ? null : MessageContext.valueOf(value)); break;
+				case "addressee": message.setAddressee(value); break;
+				case "content": message.setContent(value); break;
+				case "id": message.setId(value); break;
+				default: //the sender and sequence are set by the server, other fields are ignored
+				}
+				parser.skipWhitespace();
+				if(parser.peek() == ','){
+					parser.expect(',');
+					continue;
+				}
+				parser.expect('}');
+				break;
+			}
+			return message.getContext() == null ? null : message;
+		} catch (IllegalArgumentException e){ //covers bad syntax and unknown contexts
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the small subset of JSON the codec needs: objects whose values are strings, numbers, booleans or null.
+	 */
+	private static class Parser{
+		private final String text;
+		private int pos = 0;
+
+		Parser(String text){
+			this.text = text;
+		}
+
+		char peek(){
+			if(pos >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+			return text.charAt(pos);
+		}
+
+		void expect(char c){
+			if(peek() != c) throw new IllegalArgumentException("Expected " + c + " at " + pos);
+			pos++;
+		}
+
+		void skipWhitespace(){
+			while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+		}
+
+		/**
+		 * @return The value as a String, or null for null
+		 */
+		String readValue(){
+			if(peek() == '"') return readString();
+			int start = pos;
+			while(pos < text.length() && ",}".indexOf(text.charAt(pos)) < 0 && !Character.isWhitespace(text.charAt(pos))) pos++;
+			String literal = text.substring(start, pos);
+			if(literal.isEmpty()) throw new IllegalArgumentException("Missing value at " + start);
+			return literal.equals("null") ? null : literal;
+		}
+
+		String readString(){
+			expect('"');
+			StringBuilder value = new StringBuilder();
+			while(true){
+				char c = peek();
+				pos++;
+				if(c == '"') return value.toString();
+				if(c != '\\'){
+					value.append(c);
+					continue;
+				}
+				char escaped = peek();
+				pos++;
+				switch(escaped){
+				case 'n': value.append('\n'); break;
+				case 'r': value.append('\r'); break;
+				case 't': value.append('\t'); break;
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'u':
+					if(pos + 4 > text.length()) throw new IllegalArgumentException("Bad unicode escape");
+					value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default: value.append(escaped); //covers \" \\ and \/
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package ca.sheridancollege.chatapp.server.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+import ca.sheridancollege.chatapp.common.Message;
+import ca.sheridancollege.chatapp.server.ConnectionThread;
+import ca.sheridancollege.chatapp.server.capture.TrafficCapture;
+
+/**
+ * WebSocketConnection is a ConnectionThread for a browser connected through the WebSocket gateway.
+ * After the HTTP upgrade, every text frame is one JSON message (see JsonMessageCodec) and the rest of the connection,
+ * from the name handshake to heartbeats, routing and delivery, is shared with ChatClient connections.
+ * Browsers must answer CONNECTION_CHECK messages like ChatClient does or they will time out.
+ *
+ * @author danielnewton
+ *
+ */
+public class WebSocketConnection extends ConnectionThread {
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private final int MAX_REQUEST_SIZE = 8192;
+
+	public WebSocketConnection(java.net.Socket socket) {
+		super(socket);
+	}
+
+	@Override
+	protected void openStreams(InputStream socketIn, OutputStream socketOut) throws IOException {
+		InputStream in = new BufferedInputStream(socketIn);
+		String key = readUpgradeRequest(in);
+		if(key == null){
+			socketOut.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			socketOut.flush();
+			throw new IOException("Not a WebSocket upgrade request");
+		}
+		String response = "HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+		socketOut.write(response.getBytes(StandardCharsets.ISO_8859_1));
+		socketOut.flush();
+
+		WebSocketWriter writer = new WebSocketWriter(socketOut);
+		setStreams(new BufferedReader(new WebSocketReader(in, writer)), writer);
+	}
+
+	@Override
+	protected Message decode(String incomingStr) {
+		return JsonMessageCodec.decode(incomingStr);
+	}
+
+	@Override
+	protected TrafficCapture.Transport getTransport() {
+		return TrafficCapture.Transport.WEBSOCKET;
+	}
+
+	/**
+	 * Reads the HTTP request headers.
+	 * @return The Sec-WebSocket-Key, or null if this is not a WebSocket upgrade
+	 */
+	private String readUpgradeRequest(InputStream in) throws IOException {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		int matched = 0; //how much of \r\n\r\n has been seen
+		while(matched < 4){
+			int b = in.read();
+			if(b < 0 || request.size() > MAX_REQUEST_SIZE) return null;
+			request.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+		}
+		String key = null;
+		boolean upgrade = false;
+		for(String line : new String(request.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n")){
+			int colon = line.indexOf(':');
+			if(colon < 0) continue;
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			if(name.equals("upgrade") && value.equalsIgnoreCase("websocket")) upgrade = true;
+			if(name.equals("sec-websocket-key")) key = value;
+		}
+		return upgrade ? key : null;
+	}
+
+	private String acceptKey(String key) throws IOException {
+		try{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e){
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ca.sheridancollege.chatapp.server.websocket;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import ca.sheridancollege.chatapp.common.TlsTransport;
+import ca.sheridancollege.chatapp.server.Acceptor;
+
+/**
+ * WebSocketListener accepts browser connections for the WebSocket gateway.
+ * Each connection becomes a WebSocketConnection, which is registered and routed exactly like a ChatClient connection.
+ * The gateway is turned on with -Dchatapp.websocket.port=[port].
+ *
+ * @author danielnewton
+ *
+ */
+public class WebSocketListener extends Acceptor {
+
+	public WebSocketListener(int port) {
+		super("WebSocket gateway", port);
+	}
+
+	/**
+	 * @return A listener for the configured port, or null if the gateway is not turned on
+	 */
+	public static WebSocketListener fromProperties(){
+		Integer port = Integer.getInteger("chatapp.websocket.port");
+		return port == null ? null : new WebSocketListener(port);
+	}
+
+	@Override
+	protected void connect(Socket socket) {
+		new WebSocketConnection(socket).start();
+	}
+
+	/**
+	 * Browsers are turned away before the upgrade, so they get an HTTP answer.
+	 */
+	@Override
+	protected byte[] busyResponse(long retryAfter) {
+		if(TlsTransport.isEnabled()) return null;
+		String response = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + ((retryAfter + 999) / 1000)
+				+ "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
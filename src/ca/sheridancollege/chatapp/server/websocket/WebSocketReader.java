@@ -0,0 +1,125 @@
+package ca.sheridancollege.chatapp.server.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * WebSocketReader turns the frames a browser sends into lines, one line per text message,
+ * so a WebSocketConnection can read it with the same BufferedReader loop as any other connection.
+ * Pings are answered here and a close frame ends the stream.
+ *
+ * @author danielnewton
+ *
+ */
+public class WebSocketReader extends Reader {
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_BINARY = 0x2;
+	private final int MAX_MESSAGE_SIZE = 256 * 1024;
+
+	private final DataInputStream in;
+	private final WebSocketWriter writer;
+	private String pending = ""; //the current message, followed by a newline
+	private int pendingPos = 0;
+	private boolean closed = false;
+
+	public WebSocketReader(InputStream in, WebSocketWriter writer) {
+		this.in = new DataInputStream(in);
+		this.writer = writer;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		while(pendingPos >= pending.length()){
+			if(closed) return -1;
+			String message = readMessage();
+			if(message == null){
+				closed = true;
+				return -1;
+			}
+			//a line break would split the message, and JSON never needs one outside of a string
+			pending = message.replace('\r', ' ').replace('\n', ' ') + "\n";
+			pendingPos = 0;
+		}
+		int count = Math.min(len, pending.length() - pendingPos);
+		pending.getChars(pendingPos, pendingPos + count, cbuf, off);
+		pendingPos += count;
+		return count;
+	}
+
+	/**
+	 * Reads frames until a whole text message has arrived.
+	 * @return The message, or null when the browser closes the connection
+	 */
+	private String readMessage() throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		boolean binary = false;
+		while(true){
+			int first, second;
+			try{
+				first = in.readUnsignedByte();
+			} catch (EOFException e){
+				return null;
+			}
+			second = in.readUnsignedByte();
+			boolean fin = (first & 0x80) != 0;
+			int opcode = first & 0x0F;
+			boolean masked = (second & 0x80) != 0;
+			long length = second & 0x7F;
+			if(length == 126){
+				length = in.readUnsignedShort();
+			} else if(length == 127){
+				length = in.readLong();
+			}
+			if(!masked) throw new IOException("Client frames must be masked");
+			if(length < 0 || message.size() + length > MAX_MESSAGE_SIZE) throw new IOException("WebSocket message too large");
+			byte[] mask = new byte[4];
+			in.readFully(mask);
+			byte[] payload = new byte[(int) length];
+			in.readFully(payload);
+			for(int i = 0; i < payload.length; i++){
+				payload[i] ^= mask[i & 3];
+			}
+
+			switch(opcode){
+			case WebSocketWriter.OPCODE_PING:
+				writer.sendFrame(WebSocketWriter.OPCODE_PONG, payload);
+				continue;
+			case WebSocketWriter.OPCODE_PONG:
+				continue;
+			case WebSocketWriter.OPCODE_CLOSE:
+				writer.close(); //answers the close frame
+				return null;
+			case WebSocketWriter.OPCODE_TEXT:
+			case OPCODE_BINARY:
+				message.reset();
+				binary = opcode == OPCODE_BINARY;
+				break;
+			case OPCODE_CONTINUATION:
+				break;
+			default:
+				throw new IOException("Unknown WebSocket opcode " + opcode);
+			}
+			message.write(payload);
+			if(fin){
+				if(binary){ //messages are JSON text, binary messages are ignored
+					message.reset();
+					continue;
+				}
+				return new String(message.toByteArray(), StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		in.close();
+	}
+}
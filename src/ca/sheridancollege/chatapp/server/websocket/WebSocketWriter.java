@@ -0,0 +1,93 @@
+package ca.sheridancollege.chatapp.server.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import ca.sheridancollege.chatapp.common.FrameWriter;
+import ca.sheridancollege.chatapp.common.Message;
+
+/**
+ * WebSocketWriter sends each message to the browser as one JSON text frame.
+ * Server frames are never masked, so one encoded message is written unchanged to every browser that receives it.
+ *
+ * @author danielnewton
+ *
+ */
+public class WebSocketWriter extends FrameWriter {
+
+	public static final String ENCODING = "json";
+
+	static final int OPCODE_TEXT = 0x1;
+	static final int OPCODE_CLOSE = 0x8;
+	static final int OPCODE_PING = 0x9;
+	static final int OPCODE_PONG = 0xA;
+
+	private final OutputStream socketOut;
+	private boolean closeSent = false;
+
+	public WebSocketWriter(OutputStream socketOut) {
+		super(new OutputStreamWriter(socketOut, StandardCharsets.UTF_8));
+		this.socketOut = socketOut;
+	}
+
+	@Override
+	public String getEncoding() {
+		return ENCODING;
+	}
+
+	@Override
+	public String encode(Message message) {
+		return JsonMessageCodec.encode(message);
+	}
+
+	@Override
+	public void writeFrame(String encoded) {
+		sendFrame(OPCODE_TEXT, encoded.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Anything printed as a line still reaches the browser as a text frame.
+	 */
+	@Override
+	public void println(String x) {
+		writeFrame(x);
+	}
+
+	/**
+	 * Writes one unfragmented frame. Frames from different threads never interleave.
+	 */
+	void sendFrame(int opcode, byte[] payload){
+		synchronized(lock){
+			if(closeSent) return;
+			try{
+				byte[] header;
+				if(payload.length < 126){
+					header = new byte[]{ (byte) (0x80 | opcode), (byte) payload.length };
+				} else if(payload.length <= 0xFFFF){
+					header = new byte[]{ (byte) (0x80 | opcode), 126, (byte) (payload.length >> 8), (byte) payload.length };
+				} else {
+					header = new byte[10];
+					header[0] = (byte) (0x80 | opcode);
+					header[1] = 127;
+					for(int i = 0; i < 8; i++){
+						header[9 - i] = (byte) ((long) payload.length >> (8 * i));
+					}
+				}
+				socketOut.write(header);
+				socketOut.write(payload);
+				socketOut.flush();
+				if(opcode == OPCODE_CLOSE) closeSent = true;
+			} catch (IOException e){
+				setError();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		sendFrame(OPCODE_CLOSE, new byte[0]);
+		super.close();
+	}
+}